@@ -0,0 +1,91 @@
+package evaluation;
+
+import java.util.Random;
+
+import org.bytedeco.javacpp.opencv_core;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.indexer.FloatIndexer;
+
+import indexing.utils.DistanceKernels;
+
+/**
+ * Micro-benchmark comparing the distance kernels of indexing.utils.DistanceKernels
+ * to opencv_core.norm() on random data, for 128-d SIFT descriptors and
+ * 4096-d color histograms.
+ *
+ * Run with --add-modules jdk.incubator.vector to benchmark the SIMD kernels,
+ * and without it (or with -Dindexing.scalarKernels=true) for the scalar ones.
+ * Optional arguments: number of database vectors, number of repetitions.
+ */
+public class DistanceKernelBenchmark {
+
+	/**
+	 * Sink for computed distances, so that the JIT compiler cannot drop them.
+	 */
+	private static double sink = 0;
+
+	public static void main( String[] args ) {
+		int nbVectors = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int repetitions = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+		System.out.println("Vectorized kernels: " + DistanceKernels.isVectorized());
+		benchmark(DistanceKernels.SIFT_DIMENSION, nbVectors, repetitions);
+		benchmark(DistanceKernels.HISTOGRAM_DIMENSION, nbVectors / 8, repetitions);
+		System.out.println("(checksum " + sink + ")");
+	}
+
+	/**
+	 * Times the distance computation between one query and a set of random
+	 * vectors with each method, and prints the time per distance.
+	 * @param dim Dimension of the vectors.
+	 * @param nbVectors Number of vectors compared to the query.
+	 * @param repetitions Number of timed passes (after one warm-up pass).
+	 */
+	private static void benchmark( int dim, int nbVectors, int repetitions ) {
+		Random random = new Random(42);
+		float[] query = new float[dim];
+		float[] vectors = new float[nbVectors * dim];
+		for ( int i = 0 ; i < dim ; i++ ) {
+			query[i] = random.nextFloat() * 255f;
+		}
+		for ( int i = 0 ; i < vectors.length ; i++ ) {
+			vectors[i] = random.nextFloat() * 255f;
+		}
+
+		Mat queryMat = new Mat( 1, dim, opencv_core.CV_32F );
+		Mat vectorsMat = new Mat( nbVectors, dim, opencv_core.CV_32F );
+		((FloatIndexer)queryMat.createIndexer()).put( 0, 0, query, 0, dim );
+		FloatIndexer vidx = (FloatIndexer)vectorsMat.createIndexer();
+		for ( int i = 0 ; i < nbVectors ; i++ ) {
+			vidx.put( i, 0, vectors, i * dim, dim );
+		}
+
+		double normTime = 0, scalarTime = 0, kernelTime = 0;
+		for ( int r = 0 ; r <= repetitions ; r++ ) {
+			long start = System.nanoTime();
+			for ( int i = 0 ; i < nbVectors ; i++ ) {
+				sink += opencv_core.norm( queryMat, vectorsMat.row(i) );
+			}
+			long t1 = System.nanoTime();
+			for ( int i = 0 ; i < nbVectors ; i++ ) {
+				sink += Math.sqrt( DistanceKernels.scalarSquaredL2( query, 0, vectors, i * dim, dim ) );
+			}
+			long t2 = System.nanoTime();
+			for ( int i = 0 ; i < nbVectors ; i++ ) {
+				sink += DistanceKernels.l2( query, 0, vectors, i * dim, dim );
+			}
+			long t3 = System.nanoTime();
+			if ( r > 0 ) { // first pass is warm-up
+				normTime += t1 - start;
+				scalarTime += t2 - t1;
+				kernelTime += t3 - t2;
+			}
+		}
+
+		double count = (double)nbVectors * repetitions;
+		System.out.println( "Dimension " + dim + " (" + nbVectors + " vectors, ns per distance):" );
+		System.out.println( "  opencv_core.norm      : " + normTime / count );
+		System.out.println( "  generic scalar kernel : " + scalarTime / count + " (x" + normTime / scalarTime + ")" );
+		System.out.println( "  DistanceKernels.l2    : " + kernelTime / count + " (x" + normTime / kernelTime + ")" );
+	}
+}
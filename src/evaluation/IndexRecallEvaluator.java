@@ -0,0 +1,154 @@
+package evaluation;
+
+import java.util.Random;
+
+import org.bytedeco.javacpp.opencv_core;
+import org.bytedeco.javacpp.opencv_core.DMatch;
+import org.bytedeco.javacpp.opencv_core.DMatchVector;
+import org.bytedeco.javacpp.opencv_core.DMatchVectorVector;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.MatVector;
+import org.bytedeco.javacpp.indexer.FloatIndexer;
+
+import indexing.Index;
+import indexing.LinearSearchIndex;
+import indexing.ivf.IvfFlatIndex;
+import indexing.kdtree.KdForest;
+import indexing.kdtree.KdTree;
+import indexing.kmeans.KMeansTreeIndex;
+import indexing.utils.DistanceKernels;
+
+/**
+ * Evaluation of approximate indices against the exact matches of a
+ * LinearSearchIndex, on random clustered data with the dimension of SIFT
+ * descriptors.
+ *
+ * For each leaf budget, the recall of the k nearest neighbors (fraction of
+ * the exact neighbors that are found) and the query time are printed for a
+ * single best bin first kd-tree, a kd-forest and a hierarchical k-means tree
+ * visiting the same total number of leaves, and for an IVF-Flat index
+ * probing about as many vectors.
+ * Optional arguments: number of database vectors, number of queries, k,
+ * number of trees of the forest, leaf size.
+ */
+public class IndexRecallEvaluator {
+
+	/**
+	 * Leaf budgets evaluated.
+	 */
+	private static final int[] CHECKS = { 16, 64, 256, 1024 };
+
+	/**
+	 * Average number of vectors per list of the IVF-Flat index.
+	 */
+	private static final int LIST_SIZE = 256;
+
+	public static void main( String[] args ) {
+		int nbVectors = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int nbQueries = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int k = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		int nbTrees = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+		int leafSize = args.length > 4 ? Integer.parseInt(args[4]) : 8;
+		int dim = DistanceKernels.SIFT_DIMENSION;
+
+		Random random = new Random(42);
+		float[][] centers = new float[nbVectors / 100 + 1][dim];
+		for ( float[] center : centers ) {
+			for ( int j = 0 ; j < dim ; j++ ) {
+				center[j] = random.nextFloat() * 255f;
+			}
+		}
+		MatVector data = new MatVector( nbVectors / 1000 + 1 );
+		for ( int i = 0 ; i < data.size() ; i++ ) {
+			data.put( i, randomMat( random, centers, Math.min( 1000, nbVectors - 1000 * i ), dim ) );
+		}
+		Mat queries = randomMat( random, centers, nbQueries, dim );
+
+		LinearSearchIndex exact = new LinearSearchIndex();
+		exact.index( data );
+		DMatchVectorVector groundTruth = exact.knnQuery( queries, k );
+
+		IvfFlatIndex ivf = new IvfFlatIndex( Math.max( 1, nbVectors / LIST_SIZE ) );
+		ivf.index( data );
+
+		System.out.println( nbVectors + " vectors, " + nbQueries + " queries, " + k + "-NN, leaf size " + leafSize + ":" );
+		for ( int checks : CHECKS ) {
+			KdTree tree = new KdTree( checks, true, leafSize );
+			tree.index( data );
+			report( "kd-tree           ", tree, queries, k, groundTruth, checks );
+			KdForest forest = new KdForest( nbTrees, checks, leafSize, 42L );
+			forest.index( data );
+			report( "kd-forest (" + nbTrees + " trees)", forest, queries, k, groundTruth, checks );
+			KMeansTreeIndex kmeansTree = new KMeansTreeIndex( 32, KMeansTreeIndex.DEFAULT_ITERATIONS, leafSize, checks );
+			kmeansTree.index( data );
+			report( "k-means tree      ", kmeansTree, queries, k, groundTruth, checks );
+			ivf.setNbProbes( Math.max( 1, checks * leafSize / LIST_SIZE ) );
+			report( "IVF-Flat (" + ivf.getNbProbes() + " probes)", ivf, queries, k, groundTruth, checks );
+		}
+	}
+
+	/**
+	 * Creates a matrix of random vectors drawn around random centers.
+	 * @param random Random generator.
+	 * @param centers Centers the vectors are drawn around.
+	 * @param rows Number of vectors.
+	 * @param dim Dimension of the vectors.
+	 * @return The matrix, one vector per row.
+	 */
+	private static Mat randomMat( Random random, float[][] centers, int rows, int dim ) {
+		Mat m = new Mat( Math.max( rows, 0 ), dim, opencv_core.CV_32F );
+		FloatIndexer idx = (FloatIndexer)m.createIndexer();
+		float[] row = new float[dim];
+		for ( int i = 0 ; i < rows ; i++ ) {
+			float[] center = centers[random.nextInt( centers.length )];
+			for ( int j = 0 ; j < dim ; j++ ) {
+				row[j] = center[j] + (float)random.nextGaussian() * 20f;
+			}
+			idx.put( i, 0, row, 0, dim );
+		}
+		return m;
+	}
+
+	/**
+	 * Runs the queries on an index and prints its recall and query time.
+	 * @param name Name of the index.
+	 * @param index The index, data indexed.
+	 * @param queries The queries.
+	 * @param k Number of neighbors.
+	 * @param groundTruth Exact matches of the queries.
+	 * @param checks Leaf budget of the index.
+	 */
+	private static void report( String name, Index index, Mat queries, int k, DMatchVectorVector groundTruth, int checks ) {
+		long start = System.nanoTime();
+		DMatchVectorVector matches = index.knnQuery( queries, k );
+		long time = System.nanoTime() - start;
+		System.out.println( "  " + name + " checks " + checks + ": recall " + recall( matches, groundTruth )
+				+ ", " + time / 1e6 / queries.rows() + " ms per query" );
+	}
+
+	/**
+	 * Computes the recall of approximate matches: the fraction of the exact
+	 * matches that are also approximate matches of the same query.
+	 * @param matches Approximate matches.
+	 * @param groundTruth Exact matches.
+	 * @return The recall, between 0 and 1.
+	 */
+	public static double recall( DMatchVectorVector matches, DMatchVectorVector groundTruth ) {
+		long found = 0, total = 0;
+		for ( int i = 0 ; i < groundTruth.size() ; i++ ) {
+			DMatchVector expected = groundTruth.get(i);
+			DMatchVector actual = matches.get(i);
+			for ( int j = 0 ; j < expected.size() ; j++ ) {
+				DMatch e = expected.get(j);
+				for ( int l = 0 ; l < actual.size() ; l++ ) {
+					if ( actual.get(l).imgIdx() == e.imgIdx() && actual.get(l).trainIdx() == e.trainIdx() ) {
+						found++;
+						break;
+					}
+				}
+			}
+			total += expected.size();
+		}
+		return total == 0 ? 1. : (double)found / total;
+	}
+}
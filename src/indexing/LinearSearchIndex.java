@@ -1,12 +1,15 @@
 package indexing;
 
-import org.bytedeco.javacpp.opencv_core;
-import org.bytedeco.javacpp.opencv_core.DMatch;
-import org.bytedeco.javacpp.opencv_core.DMatchVector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
 import org.bytedeco.javacpp.opencv_core.DMatchVectorVector;
 import org.bytedeco.javacpp.opencv_core.Mat;
 import org.bytedeco.javacpp.opencv_core.MatVector;
 
+import indexing.utils.DescriptorStore;
+import indexing.utils.DistanceKernels;
 import indexing.utils.EpsSearchResults;
 import indexing.utils.KnnSearchResults;
 import indexing.utils.SearchResults;
@@ -16,47 +19,354 @@ import indexing.utils.SearchResults;
  * 
  * Performs linear search over a dataset of vectors.
  * 
+ * When queries are processed one row after the other, distance computations
+ * are abandoned as soon as the partial distance exceeds the current distance
+ * bound of the matches (early abandoning). The number of distance
+ * computations and of abandoned ones are counted.
+ * 
+ * Queries containing many descriptors (e.g. SIFT descriptors of an image)
+ * can be processed in batched mode: query-to-database squared distances are
+ * computed by tiles as ||q||^2 + ||x||^2 - 2 q.x, the dot products being a
+ * blocked matrix product between query and database rows, and database
+ * norms being precomputed. These approximate distances only filter the
+ * candidates: the exact distance of a candidate that may enter the results
+ * is computed before it is added, so that the search remains exact.
+ * 
+ * If a ForkJoinPool is given, the indexed images are split into partitions
+ * that are scanned in parallel, each partition collecting its own matches.
+ * Partial results are merged in partition order, so that the results are
+ * the same as the sequential ones.
+ * 
  * @author Pierre Tirilly - pierre.tirilly@imt-lille-douai.fr
  *
  */
 public class LinearSearchIndex implements Index {
 
+	/**
+	 * Minimum number of query rows for the batched search to be used.
+	 */
+	private static final int BATCH_MIN_QUERIES = 8;
+	
+	/**
+	 * Number of query rows in a tile of the batched search.
+	 */
+	private static final int QUERY_BLOCK = 64;
+	
+	/**
+	 * Number of database rows in a tile of the batched search.
+	 */
+	private static final int DATA_BLOCK = 256;
+	
+	/**
+	 * Number of partitions per worker thread in parallel search, for load
+	 * balancing.
+	 */
+	private static final int PARTITIONS_PER_THREAD = 4;
+	
 	/**
 	 * Indexed data.
 	 */
-	private MatVector data;
+	private DescriptorStore data;
 	
 	/**
-	 * Return a new, empty, linear search index.
+	 * If true, queries with many rows are processed in batched mode.
+	 */
+	private boolean batchedSearch;
+	
+	/**
+	 * Pool running the parallel search, or null for sequential search.
+	 */
+	private ForkJoinPool pool;
+	
+	/**
+	 * Row boundaries of the partitions used in parallel search. Partition i
+	 * contains rows partitions[i] to partitions[i+1]-1 and only whole images.
+	 */
+	private int[] partitions;
+	
+	/**
+	 * Number of distances computed in non-batched search.
+	 */
+	private LongAdder distanceCount;
+	
+	/**
+	 * Number of candidates rejected by early abandoning in non-batched search.
+	 */
+	private LongAdder abandonedCount;
+	
+	/**
+	 * Return a new, empty, linear search index. Batched search is enabled,
+	 * search is sequential.
 	 */
 	public LinearSearchIndex() {
+		this(true, null);
+	}
+	
+	/**
+	 * Return a new, empty, linear search index performing sequential search.
+	 * @param batchedSearch If true, queries containing many descriptors are
+	 * processed in batched mode. Otherwise, the collection is scanned once per
+	 * query descriptor.
+	 */
+	public LinearSearchIndex(boolean batchedSearch) {
+		this(batchedSearch, null);
+	}
+	
+	/**
+	 * Return a new, empty, linear search index performing parallel search.
+	 * Batched search is enabled.
+	 * @param pool Pool running the search over the data partitions.
+	 */
+	public LinearSearchIndex(ForkJoinPool pool) {
+		this(true, pool);
+	}
+	
+	/**
+	 * Return a new, empty, linear search index.
+	 * @param batchedSearch If true, queries containing many descriptors are
+	 * processed in batched mode. Otherwise, the collection is scanned once per
+	 * query descriptor.
+	 * @param pool Pool running the search over the data partitions. If null,
+	 * search is sequential.
+	 */
+	public LinearSearchIndex(boolean batchedSearch, ForkJoinPool pool) {
 		this.data = null;
+		this.batchedSearch = batchedSearch;
+		this.pool = pool;
+		this.partitions = null;
+		this.distanceCount = new LongAdder();
+		this.abandonedCount = new LongAdder();
 	}
 	
 	@Override
 	public void index(MatVector data) {
-		this.data = data;
+		this.data = new DescriptorStore(data);
+		if( this.pool != null ) {
+			this.partitions = this.computePartitions(this.pool.getParallelism() * PARTITIONS_PER_THREAD);
+		}
 	}
-
+	
 	/**
-	 * Performs a linear search of matches for query vector q in the collection.
-	 * @param q Query row vector.
-	 * @param qid ID of the query.
-	 * @param matches Empty match container depending on the type of
+	 * Splits the indexed images into partitions of about the same number
+	 * of descriptors.
+	 * @param nbPartitions Expected number of partitions.
+	 * @return The row boundaries of the partitions.
+	 */
+	private int[] computePartitions(int nbPartitions) {
+		nbPartitions = Math.max(1, Math.min(nbPartitions, this.data.getNbImages()));
+		int[] boundaries = new int[nbPartitions + 1];
+		int rowsPerPartition = (this.data.size() + nbPartitions - 1) / nbPartitions;
+		int current = 1;
+		
+		for( int i = 0 ; i < this.data.getNbImages() && current < nbPartitions ; i++ ) {
+			if( this.data.getImageEnd(i) >= current * rowsPerPartition ) {
+				boundaries[current] = this.data.getImageEnd(i);
+				current++;
+			}
+		}
+		for( ; current <= nbPartitions ; current++ ) {
+			boundaries[current] = this.data.size();
+		}
+		
+		return boundaries;
+	}
+	
+	/**
+	 * Performs a linear search of matches for query vector q in a range of
+	 * rows of the collection. The distance computation of a row is abandoned
+	 * as soon as it exceeds the distance bound of the matches.
+	 * @param queries Query vectors, stored row after row.
+	 * @param qid ID of the query (row of the query vector in queries).
+	 * @param matches Match container depending on the type of
 	 * search performed (k-NN or radius search).
-	 * @return The matches of the query vector in the database.
+	 * @param start First row of the collection to scan.
+	 * @param end Row following the last row to scan.
 	 */
-	private DMatchVector search(Mat q, int qid, SearchResults matches) {
-		float distance;
+	private void search(float[] queries, int qid, SearchResults matches, int start, int end) {
+		int offset = qid * this.data.getDimension();
+		float squaredBound = matches.getSquaredDistanceBound();
+		float squared;
+		int abandoned = 0;
 		
-		for( int i = 0 ; i < this.data.size() ; i++ ) {
-			for( int j = 0 ; j < this.data.get(i).rows() ; j++ ) {
-				distance = (float)opencv_core.norm(q, this.data.get(i).row(j));
-				matches.add(new DMatch(qid, j, i, distance));
-				}
+		for( int i = start ; i < end ; i++ ) {
+			squared = this.data.boundedSquaredDistance(queries, offset, i, squaredBound);
+			if( squared > squaredBound ) {
+				abandoned++;
+				continue;
+			}
+			matches.add(qid, this.data.getDescIdx(i), this.data.getImageIdx(i), squared);
+			squaredBound = matches.getSquaredDistanceBound();
+		}
+		
+		this.distanceCount.add(end - start);
+		this.abandonedCount.add(abandoned);
+	}
+	
+	/**
+	 * Performs an exact search of all the rows of a query at once, in a range
+	 * of rows of the collection.
+	 * The range is traversed once, by blocks of DATA_BLOCK rows. For each
+	 * block, dot products with blocks of QUERY_BLOCK query rows are computed
+	 * as a matrix product, and turned into approximate squared distances
+	 * using the precomputed norms. The expansion suffers from cancellation for
+	 * close vectors, so it is only used as a filter: a candidate whose
+	 * approximate distance is within the bound of its query plus the rounding
+	 * error of the expansion has its exact distance computed, and is added
+	 * with it if it can enter the results of its query.
+	 * @param queries Query vectors, stored row after row.
+	 * @param matches Match containers, one per query row.
+	 * @param start First row of the collection to scan.
+	 * @param end Row following the last row to scan.
+	 */
+	private void batchedSearch(float[] queries, SearchResults[] matches, int start, int end) {
+		int dim = this.data.getDimension();
+		int nbQueries = matches.length;
+		float[] vectors = this.data.getVectors();
+		float[] queryNorms = new float[nbQueries];
+		float[] squaredBounds = new float[nbQueries];
+		float[] dots = new float[QUERY_BLOCK * DATA_BLOCK];
+		// relative rounding error bound of the expansion (2 ulp per term)
+		float tolerance = (dim + 2) * 0x1p-23f;
+		
+		for( int i = 0 ; i < nbQueries ; i++ ) {
+			queryNorms[i] = DistanceKernels.dot(queries, i * dim, queries, i * dim, dim);
+			squaredBounds[i] = matches[i].getSquaredDistanceBound();
 		}
+		
+		for( int ds = start ; ds < end ; ds += DATA_BLOCK ) {
+			int nbRows = Math.min(DATA_BLOCK, end - ds);
+			for( int qs = 0 ; qs < nbQueries ; qs += QUERY_BLOCK ) {
+				int nbQueryRows = Math.min(QUERY_BLOCK, nbQueries - qs);
+				DistanceKernels.dotBlock(queries, qs, nbQueryRows, vectors, ds, nbRows, dim, dots);
 				
-		return matches.toDMatchVector();
+				for( int i = 0 ; i < nbQueryRows ; i++ ) {
+					int qid = qs + i;
+					for( int j = 0 ; j < nbRows ; j++ ) {
+						float norms = queryNorms[qid] + this.data.getSquaredNorm(ds + j);
+						float squared = norms - 2f * dots[i * nbRows + j];
+						if( squared <= squaredBounds[qid] + tolerance * norms ) {
+							squared = this.data.boundedSquaredDistance(queries, qid * dim, ds + j, squaredBounds[qid]);
+							if( squared <= squaredBounds[qid] ) {
+								matches[qid].add(qid, this.data.getDescIdx(ds + j), this.data.getImageIdx(ds + j), squared);
+								squaredBounds[qid] = matches[qid].getSquaredDistanceBound();
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Searches all query rows in a range of rows of the collection, in
+	 * batched mode or one query row after the other.
+	 * @param queries Query vectors, stored row after row.
+	 * @param matches Match containers, one per query row.
+	 * @param batched If true, the batched search is used.
+	 * @param start First row of the collection to scan.
+	 * @param end Row following the last row to scan.
+	 */
+	private void searchRange(float[] queries, SearchResults[] matches, boolean batched, int start, int end) {
+		if( batched ) {
+			this.batchedSearch(queries, matches, start, end);
+		} else {
+			for( int i = 0 ; i < matches.length ; i++ ) {
+				this.search(queries, i, matches[i], start, end);
+			}
+		}
+	}
+	
+	/**
+	 * Task searching one partition of the collection with its own match
+	 * containers.
+	 */
+	private class PartitionSearch extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private float[] queries;
+		private SearchResults[] matches;
+		private boolean batched;
+		private int start;
+		private int end;
+		
+		/**
+		 * Creates a partition search task.
+		 * @param queries Query vectors, stored row after row.
+		 * @param templates Empty match containers (one per query row), copied
+		 * to create the containers of the partition.
+		 * @param batched If true, the batched search is used.
+		 * @param start First row of the partition.
+		 * @param end Row following the last row of the partition.
+		 */
+		private PartitionSearch(float[] queries, SearchResults[] templates, boolean batched, int start, int end) {
+			this.queries = queries;
+			this.matches = new SearchResults[templates.length];
+			for( int i = 0 ; i < templates.length ; i++ ) {
+				this.matches[i] = templates[i].emptyCopy();
+			}
+			this.batched = batched;
+			this.start = start;
+			this.end = end;
+		}
+		
+		@Override
+		protected void compute() {
+			searchRange(this.queries, this.matches, this.batched, this.start, this.end);
+		}
+	}
+	
+	/**
+	 * Searches the collection for all the rows of a query.
+	 * @param query The query. Each row is a descriptor.
+	 * @param matches Empty match containers, one per query row.
+	 * @return The matches of each query row in the database.
+	 */
+	private DMatchVectorVector search(Mat query, SearchResults[] matches) {
+		float[] queries = DescriptorStore.toArray(query);
+		boolean batched = this.batchedSearch && matches.length >= BATCH_MIN_QUERIES;
+		
+		if( this.pool == null ) {
+			this.searchRange(queries, matches, batched, 0, this.data.size());
+		} else {
+			PartitionSearch[] tasks = new PartitionSearch[this.partitions.length - 1];
+			for( int i = 0 ; i < tasks.length ; i++ ) {
+				tasks[i] = new PartitionSearch(queries, matches, batched, this.partitions[i], this.partitions[i+1]);
+				this.pool.execute(tasks[i]);
+			}
+			// merge partial results in partition order
+			for( int i = 0 ; i < tasks.length ; i++ ) {
+				tasks[i].join();
+				for( int j = 0 ; j < matches.length ; j++ ) {
+					matches[j].addAll(tasks[i].matches[j]);
+				}
+			}
+		}
+		
+		DMatchVectorVector results = new DMatchVectorVector(matches.length);
+		for( int i = 0 ; i < matches.length ; i++ ) {
+			results.put(i, matches[i].toDMatchVector());
+		}
+		
+		return results;
+	}
+	
+	/**
+	 * Gets the number of distances computed by non-batched searches since
+	 * the creation of the index.
+	 * @return The number of distance computations.
+	 */
+	public long getDistanceCount() {
+		return this.distanceCount.sum();
+	}
+	
+	/**
+	 * Gets the number of distance computations of non-batched searches that
+	 * were abandoned because the candidate could not enter the matches.
+	 * @return The number of abandoned distance computations.
+	 */
+	public long getAbandonedCount() {
+		return this.abandonedCount.sum();
 	}
 	
 	@Override
@@ -70,13 +380,12 @@ public class LinearSearchIndex implements Index {
 			return null;
 		}
 		
-		DMatchVectorVector results = new DMatchVectorVector(query.rows());
-		
-		for( int i = 0 ; i < query.rows() ; i++ ) {
-			results.put(i, this.search(query.row(i), i, new KnnSearchResults(k)));
+		SearchResults[] matches = new SearchResults[query.rows()];
+		for( int i = 0 ; i < matches.length ; i++ ) {
+			matches[i] = new KnnSearchResults(k);
 		}
 		
-		return results;
+		return this.search(query, matches);
 	}
 	
 	@Override
@@ -90,13 +399,12 @@ public class LinearSearchIndex implements Index {
 			return null;
 		}
 		
-		DMatchVectorVector results = new DMatchVectorVector(query.rows());
-		
-		for( int i = 0 ; i < query.rows() ; i++ ) {
-			results.put(i, this.search(query.row(i), i, new EpsSearchResults(eps)));
+		SearchResults[] matches = new SearchResults[query.rows()];
+		for( int i = 0 ; i < matches.length ; i++ ) {
+			matches[i] = new EpsSearchResults(eps);
 		}
 		
-		return results;
+		return this.search(query, matches);
 	}
-
+	
 }
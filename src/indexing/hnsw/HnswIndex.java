@@ -0,0 +1,712 @@
+package indexing.hnsw;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.bytedeco.javacpp.opencv_core.DMatchVector;
+import org.bytedeco.javacpp.opencv_core.DMatchVectorVector;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.MatVector;
+
+import indexing.Index;
+import indexing.utils.DescriptorStore;
+import indexing.utils.DistanceKernels;
+import indexing.utils.EpsSearchResults;
+import indexing.utils.KnnSearchResults;
+import indexing.utils.MinHeap;
+import indexing.utils.SearchResults;
+import indexing.utils.VisitedRows;
+
+/**
+ * Hierarchical Navigable Small World graph (Malkov and Yashunin).
+ *
+ * Index structure in which each vector is a node of a layered proximity
+ * graph. Each node gets a random maximum layer (exponentially decaying
+ * distribution), and is linked, on each layer up to its own, to at most m
+ * neighbors (2m on layer 0) chosen by the neighbor selection heuristic.
+ * Search descends greedily from the entry point through the upper layers,
+ * then runs a best-first search on layer 0 keeping the ef closest nodes
+ * found.
+ *
+ * Adjacency is stored in primitive int arrays: layer 0 in a single array
+ * with a fixed-size slot per node (neighbor count followed by the
+ * neighbors), upper layers in one such array per node that has upper
+ * layers. The indexed vectors are not reordered: nodes are rows of the
+ * DescriptorStore.
+ *
+ * If a ForkJoinPool is given, nodes are inserted in parallel. Neighbor
+ * lists are guarded by striped locks (the lock of node i is
+ * locks[i % NB_LOCKS]); during the build, neighbor lists are copied under
+ * their lock before being traversed, and each thread holds at most one
+ * lock at a time. Node layers are drawn from a seeded generator before the
+ * insertions, but the graph depends on the insertion order, hence on thread
+ * scheduling, in parallel build.
+ *
+ * The number of neighbors explored at query time (efSearch) can be changed
+ * at any time. Radius search doubles ef until the ef-th closest node found
+ * is outside the radius (or all nodes are found). Both searches are
+ * approximate.
+ */
+public class HnswIndex implements Index {
+
+	/**
+	 * Default number of candidates explored at query time.
+	 */
+	public static final int DEFAULT_EF_SEARCH = 64;
+
+	/**
+	 * Number of striped locks guarding the neighbor lists (power of 2).
+	 */
+	private static final int NB_LOCKS = 1 << 10;
+
+	/**
+	 * Number of nodes below which a parallel insertion task is not split
+	 * further.
+	 */
+	private static final int INSERTION_BLOCK = 256;
+
+	/**
+	 * Indexed data.
+	 */
+	private DescriptorStore data;
+
+	/**
+	 * Maximum number of neighbors of a node on upper layers.
+	 */
+	private int m;
+
+	/**
+	 * Maximum number of neighbors of a node on layer 0.
+	 */
+	private int maxM0;
+
+	/**
+	 * Number of candidates explored when inserting a node.
+	 */
+	private int efConstruction;
+
+	/**
+	 * Number of candidates explored at query time.
+	 */
+	private int efSearch;
+
+	/**
+	 * Seed of the random layers of the nodes.
+	 */
+	private long seed;
+
+	/**
+	 * Pool running the parallel build, or null for sequential build.
+	 */
+	private ForkJoinPool pool;
+
+	/**
+	 * Maximum layer of each node.
+	 */
+	private int[] levels;
+
+	/**
+	 * Neighbors on layer 0: the slot of node i starts at i * (maxM0 + 1) and
+	 * holds the neighbor count followed by the neighbors.
+	 */
+	private int[] links0;
+
+	/**
+	 * Neighbors on upper layers: for a node of maximum layer l > 0, l slots
+	 * of m + 1 ints (layer 1 first), null for the other nodes.
+	 */
+	private int[][] upperLinks;
+
+	/**
+	 * Node from which searches start, or -1 if no data is indexed.
+	 */
+	private int entryPoint;
+
+	/**
+	 * Maximum layer of the entry point.
+	 */
+	private int maxLevel;
+
+	/**
+	 * Lock guarding the entry point and maximum layer during the build.
+	 */
+	private Object entryLock;
+
+	/**
+	 * Striped locks guarding the neighbor lists during the build.
+	 */
+	private Object[] locks;
+
+	/**
+	 * Search state of each searching or inserting thread.
+	 */
+	private ThreadLocal<SearchState> searchStates;
+
+	/**
+	 * Number of distances computed by searches.
+	 */
+	private LongAdder distanceCount;
+
+	/**
+	 * State of the graph searches of a thread: visited nodes, priority
+	 * queues of the candidates and of the results, and buffers.
+	 */
+	private class SearchState {
+
+		private VisitedRows visited;
+		private MinHeap candidates;
+		private MinHeap results;
+		private int[] neighbors;
+		private int[] ids;
+		private float[] distances;
+		private int[] pruneIds;
+		private float[] pruneDistances;
+		private int entry;
+		private float entryDistance;
+		private long distanceCount;
+
+		/**
+		 * Creates the search state for the indexed data.
+		 */
+		private SearchState() {
+			this.visited = new VisitedRows(data.size());
+			this.candidates = new MinHeap(64);
+			this.results = new MinHeap(64);
+			this.neighbors = new int[maxM0];
+			this.ids = new int[64];
+			this.distances = new float[64];
+			this.pruneIds = new int[maxM0 + 1];
+			this.pruneDistances = new float[maxM0 + 1];
+		}
+	}
+
+	/**
+	 * Creates an HNSW index.
+	 * @param m Maximum number of neighbors of a node on upper layers (twice
+	 * as many on layer 0).
+	 * @param efConstruction Number of candidates explored when inserting a
+	 * node.
+	 */
+	public HnswIndex(int m, int efConstruction) {
+		this(m, efConstruction, null);
+	}
+
+	/**
+	 * Creates an HNSW index built in parallel.
+	 * @param m Maximum number of neighbors of a node on upper layers (twice
+	 * as many on layer 0).
+	 * @param efConstruction Number of candidates explored when inserting a
+	 * node.
+	 * @param pool Pool running the build. If null, the build is sequential.
+	 */
+	public HnswIndex(int m, int efConstruction, ForkJoinPool pool) {
+		this.data = null;
+		this.m = Math.max(2, m);
+		this.maxM0 = 2 * this.m;
+		this.efConstruction = Math.max(this.m, efConstruction);
+		this.efSearch = DEFAULT_EF_SEARCH;
+		this.seed = 0L;
+		this.pool = pool;
+		this.entryPoint = -1;
+		this.maxLevel = -1;
+		this.entryLock = new Object();
+		this.locks = new Object[NB_LOCKS];
+		for( int i = 0 ; i < NB_LOCKS ; i++ ) {
+			this.locks[i] = new Object();
+		}
+		this.distanceCount = new LongAdder();
+	}
+
+	/**
+	 * Sets the number of candidates explored at query time. It is raised to
+	 * k for k-NN queries.
+	 * @param efSearch The number of candidates.
+	 */
+	public void setEfSearch(int efSearch) {
+		this.efSearch = Math.max(1, efSearch);
+	}
+
+	/**
+	 * Gets the number of candidates explored at query time.
+	 * @return The number of candidates.
+	 */
+	public int getEfSearch() {
+		return this.efSearch;
+	}
+
+	/**
+	 * Sets the seed of the random layers of the nodes. Must be called before
+	 * index().
+	 * @param seed The seed.
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Gets the maximum layer of the graph.
+	 * @return The maximum layer, -1 if no data is indexed.
+	 */
+	public int getMaxLevel() {
+		return this.maxLevel;
+	}
+
+	@Override
+	public void index(MatVector data) {
+		this.data = new DescriptorStore(data);
+		this.build();
+	}
+
+	/**
+	 * Builds the graph of the indexed data.
+	 */
+	private void build() {
+		int n = this.data.size();
+
+		// draw the layers of the nodes
+		Random random = new Random(this.seed);
+		double levelFactor = 1. / Math.log(this.m);
+		this.levels = new int[n];
+		this.upperLinks = new int[n][];
+		for( int i = 0 ; i < n ; i++ ) {
+			this.levels[i] = (int)(-Math.log(1. - random.nextDouble()) * levelFactor);
+			if( this.levels[i] > 0 ) {
+				this.upperLinks[i] = new int[this.levels[i] * (this.m + 1)];
+			}
+		}
+		this.links0 = new int[n * (this.maxM0 + 1)];
+		this.searchStates = new ThreadLocal<SearchState>() {
+			@Override
+			protected SearchState initialValue() {
+				return new SearchState();
+			}
+		};
+
+		// insert the nodes
+		this.entryPoint = -1;
+		this.maxLevel = -1;
+		if( n == 0 ) {
+			return;
+		}
+		this.entryPoint = 0;
+		this.maxLevel = this.levels[0];
+		if( this.pool == null ) {
+			SearchState state = this.searchStates.get();
+			for( int i = 1 ; i < n ; i++ ) {
+				this.insert(i, state);
+			}
+		} else {
+			this.pool.invoke(new Insertion(1, n));
+		}
+	}
+
+	/**
+	 * Task inserting a range of nodes, split in halves down to
+	 * INSERTION_BLOCK nodes.
+	 */
+	private class Insertion extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private int start;
+		private int end;
+
+		/**
+		 * Creates an insertion task.
+		 * @param start First node to insert.
+		 * @param end Node following the last node to insert.
+		 */
+		private Insertion(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if( this.end - this.start > INSERTION_BLOCK ) {
+				int middle = (this.start + this.end) >>> 1;
+				invokeAll(new Insertion(this.start, middle), new Insertion(middle, this.end));
+				return;
+			}
+			SearchState state = searchStates.get();
+			for( int i = this.start ; i < this.end ; i++ ) {
+				insert(i, state);
+			}
+		}
+	}
+
+	/**
+	 * Inserts a node in the graph: its neighbors are searched from the entry
+	 * point on each of its layers, selected by the heuristic, and linked to
+	 * it in both directions.
+	 * @param node The node.
+	 * @param state Search state of the thread.
+	 */
+	private void insert(int node, SearchState state) {
+		float[] vectors = this.data.getVectors();
+		int dim = this.data.getDimension();
+		int offset = node * dim;
+		int level = this.levels[node];
+		int entry;
+		int top;
+		synchronized( this.entryLock ) {
+			entry = this.entryPoint;
+			top = this.maxLevel;
+		}
+
+		// greedy descent through the layers above the layers of the node
+		state.entry = entry;
+		state.entryDistance = DistanceKernels.squaredL2(vectors, offset, vectors, entry * dim, dim);
+		for( int lc = top ; lc > level ; lc-- ) {
+			this.greedySearch(vectors, offset, lc, state, true);
+		}
+
+		// link the node on each of its layers
+		for( int lc = Math.min(level, top) ; lc >= 0 ; lc-- ) {
+			this.searchLayer(vectors, offset, this.efConstruction, lc, state, true);
+			int count = this.sortResults(state);
+			state.entry = state.ids[0];
+			state.entryDistance = state.distances[0];
+			int kept = this.selectNeighbors(state.ids, state.distances, count, this.m);
+			synchronized( this.lock(node) ) {
+				int[] links = this.links(node, lc);
+				int slot = this.slot(node, lc);
+				System.arraycopy(state.ids, 0, links, slot + 1, kept);
+				links[slot] = kept;
+			}
+			for( int i = 0 ; i < kept ; i++ ) {
+				this.connect(state.ids[i], node, state.distances[i], lc, state);
+			}
+		}
+
+		if( level > top ) {
+			synchronized( this.entryLock ) {
+				if( level > this.maxLevel ) {
+					this.maxLevel = level;
+					this.entryPoint = node;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds a link from a node to a new neighbor. If the neighbor list of the
+	 * node is full, the list is pruned by the selection heuristic.
+	 * @param node The node.
+	 * @param neighbor The new neighbor.
+	 * @param squaredDistance Squared distance between the node and the
+	 * neighbor.
+	 * @param level Layer of the link.
+	 * @param state Search state of the thread.
+	 */
+	private void connect(int node, int neighbor, float squaredDistance, int level, SearchState state) {
+		float[] vectors = this.data.getVectors();
+		int dim = this.data.getDimension();
+		int maxNeighbors = level == 0 ? this.maxM0 : this.m;
+
+		synchronized( this.lock(node) ) {
+			int[] links = this.links(node, level);
+			int slot = this.slot(node, level);
+			int count = links[slot];
+			if( count < maxNeighbors ) {
+				links[slot + 1 + count] = neighbor;
+				links[slot] = count + 1;
+				return;
+			}
+
+			// prune: keep the best of the current neighbors and the new one,
+			// sorted by distance to the node (insertion sort)
+			int[] ids = state.pruneIds;
+			float[] distances = state.pruneDistances;
+			for( int i = 0 ; i <= count ; i++ ) {
+				int id = i < count ? links[slot + 1 + i] : neighbor;
+				float d = i < count ? DistanceKernels.squaredL2(vectors, node * dim, vectors, id * dim, dim) : squaredDistance;
+				int j = i;
+				while( j > 0 && distances[j-1] > d ) {
+					ids[j] = ids[j-1];
+					distances[j] = distances[j-1];
+					j--;
+				}
+				ids[j] = id;
+				distances[j] = d;
+			}
+			int kept = this.selectNeighbors(ids, distances, count + 1, maxNeighbors);
+			System.arraycopy(ids, 0, links, slot + 1, kept);
+			links[slot] = kept;
+		}
+	}
+
+	/**
+	 * Selects neighbors among candidates sorted by increasing distance
+	 * (heuristic of Malkov and Yashunin): a candidate is kept if it is closer
+	 * to the base node than to every candidate already kept. The kept
+	 * candidates are moved to the beginning of the arrays, in order.
+	 * @param ids Candidates.
+	 * @param distances Squared distances of the candidates to the base node.
+	 * @param count Number of candidates.
+	 * @param max Maximum number of candidates to keep.
+	 * @return The number of candidates kept.
+	 */
+	private int selectNeighbors(int[] ids, float[] distances, int count, int max) {
+		float[] vectors = this.data.getVectors();
+		int dim = this.data.getDimension();
+		int kept = 0;
+
+		for( int i = 0 ; i < count && kept < max ; i++ ) {
+			boolean good = true;
+			for( int j = 0 ; j < kept && good ; j++ ) {
+				float d = DistanceKernels.squaredL2Bounded(vectors, ids[i] * dim, vectors, ids[j] * dim, dim, distances[i]);
+				good = d >= distances[i];
+			}
+			if( good ) {
+				ids[kept] = ids[i];
+				distances[kept] = distances[i];
+				kept++;
+			}
+		}
+		return kept;
+	}
+
+	/**
+	 * Gets the lock guarding the neighbor lists of a node.
+	 * @param node The node.
+	 * @return The lock.
+	 */
+	private Object lock(int node) {
+		return this.locks[node & (NB_LOCKS - 1)];
+	}
+
+	/**
+	 * Gets the array holding the neighbor list of a node on a layer.
+	 * @param node The node.
+	 * @param level The layer (at most the maximum layer of the node).
+	 * @return The array, see slot() for the position of the list.
+	 */
+	private int[] links(int node, int level) {
+		return level == 0 ? this.links0 : this.upperLinks[node];
+	}
+
+	/**
+	 * Gets the position of the neighbor list of a node on a layer in its
+	 * array (see links()): the neighbor count, followed by the neighbors.
+	 * @param node The node.
+	 * @param level The layer (at most the maximum layer of the node).
+	 * @return The position of the list.
+	 */
+	private int slot(int node, int level) {
+		return level == 0 ? node * (this.maxM0 + 1) : (level - 1) * (this.m + 1);
+	}
+
+	/**
+	 * Copies the neighbor list of a node on a layer.
+	 * @param node The node.
+	 * @param level The layer.
+	 * @param buffer Array receiving the neighbors.
+	 * @param locked If true, the list is read under its lock (during the
+	 * build).
+	 * @return The number of neighbors.
+	 */
+	private int copyNeighbors(int node, int level, int[] buffer, boolean locked) {
+		int[] links = this.links(node, level);
+		int slot = this.slot(node, level);
+		if( locked ) {
+			synchronized( this.lock(node) ) {
+				System.arraycopy(links, slot + 1, buffer, 0, links[slot]);
+				return links[slot];
+			}
+		}
+		System.arraycopy(links, slot + 1, buffer, 0, links[slot]);
+		return links[slot];
+	}
+
+	/**
+	 * Moves the entry point of the state to the closest node reachable
+	 * greedily on a layer.
+	 * @param q Vector searched for.
+	 * @param qOffset Offset of the vector in q.
+	 * @param level The layer.
+	 * @param state Search state, entry point set.
+	 * @param locked If true, neighbor lists are read under their lock.
+	 */
+	private void greedySearch(float[] q, int qOffset, int level, SearchState state, boolean locked) {
+		boolean changed = true;
+		while( changed ) {
+			changed = false;
+			int count = this.copyNeighbors(state.entry, level, state.neighbors, locked);
+			for( int i = 0 ; i < count ; i++ ) {
+				int e = state.neighbors[i];
+				float d = this.data.boundedSquaredDistance(q, qOffset, e, state.entryDistance);
+				state.distanceCount++;
+				if( d < state.entryDistance ) {
+					state.entry = e;
+					state.entryDistance = d;
+					changed = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Searches the ef closest nodes of a layer, by best-first search from the
+	 * entry point of the state. The results are left in state.results, a
+	 * max-heap (keys are negated squared distances).
+	 * @param q Vector searched for.
+	 * @param qOffset Offset of the vector in q.
+	 * @param ef Number of nodes to keep.
+	 * @param level The layer.
+	 * @param state Search state, entry point set.
+	 * @param locked If true, neighbor lists are read under their lock.
+	 */
+	private void searchLayer(float[] q, int qOffset, int ef, int level, SearchState state, boolean locked) {
+		MinHeap candidates = state.candidates;
+		MinHeap results = state.results;
+		state.visited.clear();
+		candidates.clear();
+		results.clear();
+
+		state.visited.visit(state.entry);
+		candidates.add(state.entry, state.entryDistance);
+		results.add(state.entry, -state.entryDistance);
+		while( !candidates.isEmpty() ) {
+			if( candidates.peekKey() > -results.peekKey() ) {
+				break;
+			}
+			int c = candidates.poll();
+			int count = this.copyNeighbors(c, level, state.neighbors, locked);
+			for( int i = 0 ; i < count ; i++ ) {
+				int e = state.neighbors[i];
+				if( !state.visited.visit(e) ) {
+					continue;
+				}
+				boolean full = results.size() >= ef;
+				float bound = full ? -results.peekKey() : Float.MAX_VALUE;
+				float d = this.data.boundedSquaredDistance(q, qOffset, e, bound);
+				state.distanceCount++;
+				if( !full || d < bound ) {
+					candidates.add(e, d);
+					results.add(e, -d);
+					if( results.size() > ef ) {
+						results.poll();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Empties the results of the last layer search into state.ids and
+	 * state.distances, by increasing distance.
+	 * @param state Search state.
+	 * @return The number of results.
+	 */
+	private int sortResults(SearchState state) {
+		int count = state.results.size();
+		if( state.ids.length < count ) {
+			state.ids = new int[2 * count];
+			state.distances = new float[2 * count];
+		}
+		for( int i = count - 1 ; i >= 0 ; i-- ) {
+			state.distances[i] = -state.results.peekKey();
+			state.ids[i] = state.results.poll();
+		}
+		return count;
+	}
+
+	/**
+	 * Performs a search of matches for query vector q in the collection.
+	 * @param q Query row vector.
+	 * @param qid ID of the query.
+	 * @param matches Empty match container depending on the type of
+	 * search performed (k-NN or radius search).
+	 * @param ef Number of candidates explored.
+	 * @param squaredEps Squared radius of a radius search (ef is doubled
+	 * while the ef-th closest node found is within it), or a negative value
+	 * for a k-NN search or a negative radius (ef is not doubled).
+	 * @return The matches of the query vector in the database.
+	 */
+	private DMatchVector search(float[] q, int qid, SearchResults matches, int ef, float squaredEps) {
+		SearchState state = this.searchStates.get();
+		int n = this.data.size();
+
+		// greedy descent through the upper layers
+		state.entry = this.entryPoint;
+		state.entryDistance = this.data.squaredDistance(q, 0, this.entryPoint);
+		state.distanceCount = 1;
+		for( int lc = this.maxLevel ; lc > 0 ; lc-- ) {
+			this.greedySearch(q, 0, lc, state, false);
+		}
+		int entry = state.entry;
+		float entryDistance = state.entryDistance;
+
+		// search layer 0
+		while( true ) {
+			this.searchLayer(q, 0, ef, 0, state, false);
+			if( squaredEps < 0 || state.results.size() < ef || -state.results.peekKey() > squaredEps || ef >= n ) {
+				break;
+			}
+			ef = (int)Math.min(2L * ef, n);
+			state.entry = entry;
+			state.entryDistance = entryDistance;
+		}
+		while( !state.results.isEmpty() ) {
+			float squared = -state.results.peekKey();
+			int row = state.results.poll();
+			matches.add(qid, this.data.getDescIdx(row), this.data.getImageIdx(row), squared);
+		}
+		this.distanceCount.add(state.distanceCount);
+
+		return matches.toDMatchVector();
+	}
+
+	/**
+	 * Gets the number of distances computed by searches since the creation of
+	 * the index (construction excluded).
+	 * @return The number of distances.
+	 */
+	public long getDistanceCount() {
+		return this.distanceCount.sum();
+	}
+
+	@Override
+	public DMatchVectorVector knnQuery(Mat query, int k) {
+		if( this.data == null || this.entryPoint < 0 ) {
+			System.err.println("Error: no data indexed. Cannot perform search.");
+			return null;
+		}
+		if( query == null ) {
+			System.err.println("Error: null query. Cannot perform search.");
+			return null;
+		}
+
+		DMatchVectorVector results = new DMatchVectorVector(query.rows());
+		int ef = Math.max(this.efSearch, k);
+		for( int i = 0 ; i < query.rows() ; i++ ) {
+			results.put(i, this.search(DescriptorStore.rowToArray(query, i), i, new KnnSearchResults(k), ef, -1f));
+		}
+
+		return results;
+	}
+
+	@Override
+	public DMatchVectorVector epsQuery(Mat query, float eps) {
+		if( this.data == null || this.entryPoint < 0 ) {
+			System.err.println("Error: no data indexed. Cannot perform search.");
+			return null;
+		}
+		if( query == null ) {
+			System.err.println("Error: null query. Cannot perform search.");
+			return null;
+		}
+
+		DMatchVectorVector results = new DMatchVectorVector(query.rows());
+		for( int i = 0 ; i < query.rows() ; i++ ) {
+			EpsSearchResults matches = new EpsSearchResults(eps);
+			results.put(i, this.search(DescriptorStore.rowToArray(query, i), i, matches, this.efSearch, matches.getSquaredDistanceBound()));
+		}
+
+		return results;
+	}
+
+}
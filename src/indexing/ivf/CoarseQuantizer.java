@@ -0,0 +1,186 @@
+package indexing.ivf;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import indexing.utils.DescriptorStore;
+import indexing.utils.DistanceKernels;
+import indexing.utils.KMeans;
+import indexing.utils.MinHeap;
+
+/**
+ * Coarse quantizer of an inverted file index: k-means centroids, one per
+ * inverted list, trained on a sample of the indexed data. Each vector is
+ * stored in the list of its closest centroid, and a query is searched in
+ * the lists of its nbProbes closest centroids.
+ */
+class CoarseQuantizer {
+
+	/**
+	 * Number of rows below which a parallel assignment task is not split
+	 * further.
+	 */
+	private static final int ASSIGNMENT_BLOCK = 1 << 12;
+
+	/**
+	 * Centroids, row-major.
+	 */
+	private float[] centroids;
+
+	/**
+	 * Number of centroids.
+	 */
+	private int nbLists;
+
+	/**
+	 * Dimension of the centroids.
+	 */
+	private int dim;
+
+	/**
+	 * Trains the centroids by k-means on a sample of vectors.
+	 * @param sample Row-major sample vectors.
+	 * @param dim Dimension of the vectors.
+	 * @param nbLists Number of centroids. Lowered to the sample size if the
+	 * sample is smaller.
+	 * @param iterations Number of iterations of k-means.
+	 * @param random Random generator used for seeding.
+	 * @param pool Pool running k-means, or null.
+	 */
+	public CoarseQuantizer(float[] sample, int dim, int nbLists, int iterations, Random random, ForkJoinPool pool) {
+		int size = dim == 0 ? 0 : sample.length / dim;
+		int[] rows = new int[size];
+		for( int i = 0 ; i < size ; i++ ) {
+			rows[i] = i;
+		}
+		this.dim = dim;
+		this.centroids = new KMeans(nbLists, iterations, pool).cluster(sample, dim, rows, 0, size, new int[size], random);
+		this.nbLists = dim == 0 ? 0 : this.centroids.length / dim;
+	}
+
+	/**
+	 * Draws a random sample of the rows of a store, without replacement.
+	 * @param store The store.
+	 * @param sampleSize Size of the sample. If the store is smaller, all its
+	 * rows are returned.
+	 * @param random Random generator.
+	 * @return The sample vectors, row-major.
+	 */
+	public static float[] sample(DescriptorStore store, int sampleSize, Random random) {
+		int n = store.size();
+		int dim = store.getDimension();
+		int size = Math.min(sampleSize, n);
+		int[] rows = new int[n];
+		for( int i = 0 ; i < n ; i++ ) {
+			rows[i] = i;
+		}
+		// partial Fisher-Yates shuffle
+		float[] sample = new float[size * dim];
+		for( int i = 0 ; i < size ; i++ ) {
+			int j = i + random.nextInt(n - i);
+			int row = rows[j];
+			rows[j] = rows[i];
+			rows[i] = row;
+			System.arraycopy(store.getVectors(), row * dim, sample, i * dim, dim);
+		}
+		return sample;
+	}
+
+	/**
+	 * Gets the number of centroids, i.e. of inverted lists.
+	 * @return The number of centroids.
+	 */
+	public int getNbLists() {
+		return this.nbLists;
+	}
+
+	/**
+	 * Gets the centroids.
+	 * @return The centroids, row-major.
+	 */
+	public float[] getCentroids() {
+		return this.centroids;
+	}
+
+	/**
+	 * Assigns each row of a store to its closest centroid.
+	 * @param store The store.
+	 * @param pool Pool running the assignment, or null.
+	 * @return The list of each row.
+	 */
+	public int[] assign(DescriptorStore store, ForkJoinPool pool) {
+		int[] lists = new int[store.size()];
+		Assignment task = new Assignment(store, lists, 0, store.size());
+		if( pool == null ) {
+			task.compute();
+		} else {
+			pool.invoke(task);
+		}
+		return lists;
+	}
+
+	/**
+	 * Task assigning a range of rows to their closest centroid, split in
+	 * halves down to ASSIGNMENT_BLOCK rows.
+	 */
+	private class Assignment extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private DescriptorStore store;
+		private int[] lists;
+		private int start;
+		private int end;
+
+		/**
+		 * Creates an assignment task.
+		 * @param store The store.
+		 * @param lists Array receiving the list of each row.
+		 * @param start First row of the range.
+		 * @param end Row following the last row of the range.
+		 */
+		private Assignment(DescriptorStore store, int[] lists, int start, int end) {
+			this.store = store;
+			this.lists = lists;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if( this.end - this.start > ASSIGNMENT_BLOCK && inForkJoinPool() ) {
+				int middle = (this.start + this.end) >>> 1;
+				invokeAll(new Assignment(this.store, this.lists, this.start, middle),
+						new Assignment(this.store, this.lists, middle, this.end));
+				return;
+			}
+			float[] vectors = this.store.getVectors();
+			for( int i = this.start ; i < this.end ; i++ ) {
+				this.lists[i] = KMeans.nearestCenter(vectors, i * dim, centroids, nbLists, dim);
+			}
+		}
+	}
+
+	/**
+	 * Finds the lists to search for a query: the lists of its closest
+	 * centroids.
+	 * @param q Query vector.
+	 * @param nbProbes Number of lists to search.
+	 * @param lists Array receiving the lists, by increasing distance of
+	 * their centroid to the query (at least nbProbes long).
+	 * @param heap Heap used to sort the centroids.
+	 * @return The number of lists found, min(nbProbes, getNbLists()).
+	 */
+	public int probe(float[] q, int nbProbes, int[] lists, MinHeap heap) {
+		heap.clear();
+		for( int c = 0 ; c < this.nbLists ; c++ ) {
+			heap.add(c, DistanceKernels.squaredL2(q, 0, this.centroids, c * this.dim, this.dim));
+		}
+		int count = Math.min(nbProbes, this.nbLists);
+		for( int i = 0 ; i < count ; i++ ) {
+			lists[i] = heap.poll();
+		}
+		return count;
+	}
+}
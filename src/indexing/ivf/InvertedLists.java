@@ -0,0 +1,134 @@
+package indexing.ivf;
+
+import indexing.utils.DescriptorStore;
+
+/**
+ * Inverted lists of an inverted file index, in compressed sparse row form:
+ * the rows of the indexed data are sorted by list (by increasing row within
+ * a list), and the entries of list l are the positions from
+ * getListStart(l) to getListEnd(l) of this order.
+ *
+ * Rows are stored as ints, and converted to (image index, descriptor index)
+ * pairs by a binary search in the first rows of the images, so that an
+ * entry costs 4 bytes in addition to the vector data stored by the index.
+ */
+class InvertedLists {
+
+	/**
+	 * Position of the first entry of each list, followed by the number of
+	 * entries.
+	 */
+	private int[] listOffsets;
+
+	/**
+	 * Row of each entry.
+	 */
+	private int[] rows;
+
+	/**
+	 * First row of each image, followed by the number of rows.
+	 */
+	private int[] imageStarts;
+
+	/**
+	 * Sorts the rows of a store by list.
+	 * @param lists List of each row of the store.
+	 * @param nbLists Number of lists.
+	 * @param store The store (not reordered).
+	 */
+	public InvertedLists(int[] lists, int nbLists, DescriptorStore store) {
+		this.listOffsets = new int[nbLists + 1];
+		for( int i = 0 ; i < lists.length ; i++ ) {
+			this.listOffsets[lists[i] + 1]++;
+		}
+		for( int l = 0 ; l < nbLists ; l++ ) {
+			this.listOffsets[l + 1] += this.listOffsets[l];
+		}
+		int[] next = new int[nbLists];
+		System.arraycopy(this.listOffsets, 0, next, 0, nbLists);
+		this.rows = new int[lists.length];
+		for( int i = 0 ; i < lists.length ; i++ ) {
+			this.rows[next[lists[i]]++] = i;
+		}
+
+		this.imageStarts = new int[store.getNbImages() + 1];
+		for( int i = 0 ; i < store.getNbImages() ; i++ ) {
+			this.imageStarts[i] = store.getImageStart(i);
+		}
+		this.imageStarts[store.getNbImages()] = store.size();
+	}
+
+	/**
+	 * Gets the number of lists.
+	 * @return The number of lists.
+	 */
+	public int getNbLists() {
+		return this.listOffsets.length - 1;
+	}
+
+	/**
+	 * Gets the number of entries of all lists.
+	 * @return The number of entries.
+	 */
+	public int size() {
+		return this.rows.length;
+	}
+
+	/**
+	 * Gets the position of the first entry of a list.
+	 * @param list The list.
+	 * @return The position of the first entry.
+	 */
+	public int getListStart(int list) {
+		return this.listOffsets[list];
+	}
+
+	/**
+	 * Gets the position following the last entry of a list.
+	 * @param list The list.
+	 * @return The position following the last entry.
+	 */
+	public int getListEnd(int list) {
+		return this.listOffsets[list + 1];
+	}
+
+	/**
+	 * Gets the row of an entry.
+	 * @param position Position of the entry.
+	 * @return The row of the entry in the indexed data.
+	 */
+	public int getRow(int position) {
+		return this.rows[position];
+	}
+
+	/**
+	 * Gets the image index of a row.
+	 * @param row The row.
+	 * @return The index of the image of the row.
+	 */
+	public int getImageIdx(int row) {
+		// last image starting at or before row (the images after an empty
+		// image start at the same row, so the last one is not empty)
+		int lo = 0;
+		int hi = this.imageStarts.length - 2;
+		while( lo < hi ) {
+			int mid = (lo + hi + 1) >>> 1;
+			if( this.imageStarts[mid] <= row ) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Gets the descriptor index (within its image) of a row.
+	 * @param row The row.
+	 * @param imageIdx The image index of the row.
+	 * @return The index of the row within its image.
+	 */
+	public int getDescIdx(int row, int imageIdx) {
+		return row - this.imageStarts[imageIdx];
+	}
+}
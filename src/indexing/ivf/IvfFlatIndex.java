@@ -0,0 +1,375 @@
+package indexing.ivf;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.bytedeco.javacpp.opencv_core.DMatchVectorVector;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.MatVector;
+
+import indexing.Index;
+import indexing.utils.DescriptorStore;
+import indexing.utils.EpsSearchResults;
+import indexing.utils.KnnSearchResults;
+import indexing.utils.MinHeap;
+import indexing.utils.SearchResults;
+
+/**
+ * Inverted file index storing the full vectors.
+ *
+ * Vectors are assigned to the inverted list of their closest coarse
+ * centroid (see CoarseQuantizer), trained by k-means on a random sample of
+ * the data. The indexed vectors are reordered so that the vectors of each
+ * list are stored contiguously.
+ *
+ * All the rows of a query are first assigned to the lists of their nbProbes
+ * closest centroids, then each probed list is scanned once for all the query
+ * rows that probe it, with the early abandoning distance of the linear
+ * search index. Distances are exact: only the lists that are not probed are
+ * missed. If a ForkJoinPool is given, the lists are scanned in parallel,
+ * each list collecting its own matches, which are merged in list order.
+ */
+public class IvfFlatIndex implements Index {
+
+	/**
+	 * Default number of lists probed by searches.
+	 */
+	public static final int DEFAULT_NB_PROBES = 8;
+
+	/**
+	 * Default number of vectors sampled to train the coarse quantizer.
+	 */
+	public static final int DEFAULT_TRAINING_SIZE = 1 << 16;
+
+	/**
+	 * Number of iterations of k-means.
+	 */
+	private static final int ITERATIONS = 10;
+
+	/**
+	 * Number of coarse centroids requested.
+	 */
+	private int nbLists;
+
+	/**
+	 * Number of lists probed by searches.
+	 */
+	private int nbProbes;
+
+	/**
+	 * Number of vectors sampled to train the coarse quantizer.
+	 */
+	private int trainingSize;
+
+	/**
+	 * Seed of the sampling and of the k-means seeding.
+	 */
+	private long seed;
+
+	/**
+	 * Pool running the parallel build and search, or null for sequential
+	 * build and search.
+	 */
+	private ForkJoinPool pool;
+
+	/**
+	 * Coarse quantizer, or null if no data is indexed.
+	 */
+	private CoarseQuantizer quantizer;
+
+	/**
+	 * Indexed data, reordered by list: the vectors of list l are the rows
+	 * listOffsets[l] to listOffsets[l+1]-1.
+	 */
+	private DescriptorStore data;
+
+	/**
+	 * First row of each list, followed by the number of rows.
+	 */
+	private int[] listOffsets;
+
+	/**
+	 * Creates an IVF-Flat index.
+	 * @param nbLists Number of inverted lists (coarse centroids).
+	 */
+	public IvfFlatIndex(int nbLists) {
+		this(nbLists, null);
+	}
+
+	/**
+	 * Creates an IVF-Flat index built and searched in parallel.
+	 * @param nbLists Number of inverted lists (coarse centroids).
+	 * @param pool Pool running the build and the search. If null, they are
+	 * sequential.
+	 */
+	public IvfFlatIndex(int nbLists, ForkJoinPool pool) {
+		this.nbLists = Math.max(1, nbLists);
+		this.nbProbes = DEFAULT_NB_PROBES;
+		this.trainingSize = DEFAULT_TRAINING_SIZE;
+		this.seed = 0L;
+		this.pool = pool;
+		this.quantizer = null;
+	}
+
+	/**
+	 * Sets the number of lists probed by searches.
+	 * @param nbProbes The number of lists.
+	 */
+	public void setNbProbes(int nbProbes) {
+		this.nbProbes = Math.max(1, nbProbes);
+	}
+
+	/**
+	 * Gets the number of lists probed by searches.
+	 * @return The number of lists.
+	 */
+	public int getNbProbes() {
+		return this.nbProbes;
+	}
+
+	/**
+	 * Sets the number of vectors sampled to train the coarse quantizer. Must
+	 * be called before index().
+	 * @param trainingSize The number of vectors.
+	 */
+	public void setTrainingSize(int trainingSize) {
+		this.trainingSize = Math.max(1, trainingSize);
+	}
+
+	/**
+	 * Sets the seed of the sampling and of the k-means seeding. Must be
+	 * called before index().
+	 * @param seed The seed.
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	@Override
+	public void index(MatVector data) {
+		this.build(new DescriptorStore(data));
+	}
+
+	/**
+	 * Trains the coarse quantizer on the indexed data and reorders the data
+	 * by list.
+	 * @param store Indexed data.
+	 */
+	private void build(DescriptorStore store) {
+		this.quantizer = null;
+		this.data = null;
+		if( store.size() == 0 ) {
+			return;
+		}
+		int dim = store.getDimension();
+
+		Random random = new Random(this.seed);
+		float[] sample = CoarseQuantizer.sample(store, this.trainingSize, random);
+		CoarseQuantizer coarse = new CoarseQuantizer(sample, dim, this.nbLists, ITERATIONS, random, this.pool);
+		InvertedLists lists = new InvertedLists(coarse.assign(store, this.pool), coarse.getNbLists(), store);
+
+		int[] order = new int[lists.size()];
+		for( int p = 0 ; p < order.length ; p++ ) {
+			order[p] = lists.getRow(p);
+		}
+		this.listOffsets = new int[lists.getNbLists() + 1];
+		for( int l = 0 ; l < lists.getNbLists() ; l++ ) {
+			this.listOffsets[l + 1] = lists.getListEnd(l);
+		}
+		this.data = store.reorder(order);
+		this.quantizer = coarse;
+	}
+
+	/**
+	 * Gets the number of inverted lists of the indexed data.
+	 * @return The number of lists, or 0 if no data is indexed.
+	 */
+	public int getNbLists() {
+		return this.quantizer == null ? 0 : this.quantizer.getNbLists();
+	}
+
+	/**
+	 * Scans a list for some query rows, with early abandoning.
+	 * @param queries Query vectors, stored row after row.
+	 * @param list The list.
+	 * @param qids IDs of the query rows probing the list.
+	 * @param matches Match containers of these query rows, in the same order.
+	 */
+	private void scanList(float[] queries, int list, int[] qids, SearchResults[] matches) {
+		int dim = this.data.getDimension();
+		int start = this.listOffsets[list];
+		int end = this.listOffsets[list + 1];
+
+		for( int i = 0 ; i < qids.length ; i++ ) {
+			int qid = qids[i];
+			int offset = qid * dim;
+			SearchResults m = matches[i];
+			float squaredBound = m.getSquaredDistanceBound();
+			for( int r = start ; r < end ; r++ ) {
+				float squared = this.data.boundedSquaredDistance(queries, offset, r, squaredBound);
+				if( squared <= squaredBound ) {
+					m.add(qid, this.data.getDescIdx(r), this.data.getImageIdx(r), squared);
+					squaredBound = m.getSquaredDistanceBound();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Task scanning one list for the query rows that probe it, with its own
+	 * match containers.
+	 */
+	private class ListScan extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private float[] queries;
+		private int list;
+		private int[] qids;
+		private SearchResults[] matches;
+
+		/**
+		 * Creates a list scan task.
+		 * @param queries Query vectors, stored row after row.
+		 * @param list The list.
+		 * @param qids IDs of the query rows probing the list.
+		 * @param templates Empty match containers of all query rows, copied
+		 * to create the containers of the task.
+		 */
+		private ListScan(float[] queries, int list, int[] qids, SearchResults[] templates) {
+			this.queries = queries;
+			this.list = list;
+			this.qids = qids;
+			this.matches = new SearchResults[qids.length];
+			for( int i = 0 ; i < qids.length ; i++ ) {
+				this.matches[i] = templates[qids[i]].emptyCopy();
+			}
+		}
+
+		@Override
+		protected void compute() {
+			scanList(this.queries, this.list, this.qids, this.matches);
+		}
+	}
+
+	/**
+	 * Searches the probed lists for all the rows of a query.
+	 * @param queries Query vectors, stored row after row.
+	 * @param matches Empty match containers, one per query row, filled
+	 * with the matches of each query row.
+	 */
+	private void search(float[] queries, SearchResults[] matches) {
+		int dim = this.data.getDimension();
+		int nbLists = this.quantizer.getNbLists();
+		int probesPerQuery = Math.min(this.nbProbes, nbLists);
+
+		// lists probed by each query row, then query rows of each list
+		int[] probes = new int[nbLists];
+		int[] probed = new int[matches.length * probesPerQuery];
+		int[] counts = new int[nbLists + 1];
+		MinHeap heap = new MinHeap(nbLists);
+		float[] q = new float[dim];
+		int nbProbed = 0;
+		for( int i = 0 ; i < matches.length ; i++ ) {
+			System.arraycopy(queries, i * dim, q, 0, dim);
+			int count = this.quantizer.probe(q, this.nbProbes, probes, heap);
+			for( int j = 0 ; j < count ; j++ ) {
+				probed[nbProbed++] = probes[j];
+				counts[probes[j]]++;
+			}
+		}
+		int[][] listQueries = new int[nbLists][];
+		for( int l = 0 ; l < nbLists ; l++ ) {
+			listQueries[l] = new int[counts[l]];
+			counts[l] = 0;
+		}
+		for( int p = 0 ; p < nbProbed ; p++ ) {
+			int l = probed[p];
+			listQueries[l][counts[l]++] = p / probesPerQuery;
+		}
+
+		if( this.pool == null ) {
+			SearchResults[] listMatches = new SearchResults[matches.length];
+			for( int l = 0 ; l < nbLists ; l++ ) {
+				for( int i = 0 ; i < listQueries[l].length ; i++ ) {
+					listMatches[i] = matches[listQueries[l][i]];
+				}
+				this.scanList(queries, l, listQueries[l], listMatches);
+			}
+		} else {
+			ListScan[] tasks = new ListScan[nbLists];
+			for( int l = 0 ; l < nbLists ; l++ ) {
+				if( listQueries[l].length > 0 ) {
+					tasks[l] = new ListScan(queries, l, listQueries[l], matches);
+					this.pool.execute(tasks[l]);
+				}
+			}
+			// merge partial results in list order
+			for( int l = 0 ; l < nbLists ; l++ ) {
+				if( tasks[l] != null ) {
+					tasks[l].join();
+					for( int i = 0 ; i < listQueries[l].length ; i++ ) {
+						matches[listQueries[l][i]].addAll(tasks[l].matches[i]);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Searches the collection for all the rows of a query.
+	 * @param query The query. Each row is a descriptor.
+	 * @param matches Empty match containers, one per query row.
+	 * @return The matches of each query row in the database.
+	 */
+	private DMatchVectorVector search(Mat query, SearchResults[] matches) {
+		this.search(DescriptorStore.toArray(query), matches);
+
+		DMatchVectorVector results = new DMatchVectorVector(matches.length);
+		for( int i = 0 ; i < matches.length ; i++ ) {
+			results.put(i, matches[i].toDMatchVector());
+		}
+
+		return results;
+	}
+
+	@Override
+	public DMatchVectorVector knnQuery(Mat query, int k) {
+		if( this.quantizer == null ) {
+			System.err.println("Error: no data indexed. Cannot perform search.");
+			return null;
+		}
+		if( query == null ) {
+			System.err.println("Error: null query. Cannot perform search.");
+			return null;
+		}
+
+		SearchResults[] matches = new SearchResults[query.rows()];
+		for( int i = 0 ; i < matches.length ; i++ ) {
+			matches[i] = new KnnSearchResults(k);
+		}
+
+		return this.search(query, matches);
+	}
+
+	@Override
+	public DMatchVectorVector epsQuery(Mat query, float eps) {
+		if( this.quantizer == null ) {
+			System.err.println("Error: no data indexed. Cannot perform search.");
+			return null;
+		}
+		if( query == null ) {
+			System.err.println("Error: null query. Cannot perform search.");
+			return null;
+		}
+
+		SearchResults[] matches = new SearchResults[query.rows()];
+		for( int i = 0 ; i < matches.length ; i++ ) {
+			matches[i] = new EpsSearchResults(eps);
+		}
+
+		return this.search(query, matches);
+	}
+
+}
@@ -0,0 +1,637 @@
+package indexing.ivf;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.bytedeco.javacpp.opencv_core.DMatchVector;
+import org.bytedeco.javacpp.opencv_core.DMatchVectorVector;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.MatVector;
+
+import indexing.Index;
+import indexing.utils.DescriptorStore;
+import indexing.utils.DistanceKernels;
+import indexing.utils.EpsSearchResults;
+import indexing.utils.KMeans;
+import indexing.utils.KnnSearchResults;
+import indexing.utils.MinHeap;
+import indexing.utils.SearchResults;
+
+/**
+ * Inverted file index with product quantization (Jegou et al.).
+ *
+ * Vectors are assigned to the inverted list of their closest coarse
+ * centroid (see CoarseQuantizer), and the residual of each vector to its
+ * centroid is encoded by a product quantizer: the residual is split into
+ * nbSubQuantizers sub-vectors, each replaced by the index (one byte) of its
+ * closest codeword in a codebook of 256 codewords. Coarse centroids and
+ * codebooks are trained by k-means on a random sample of the data. Each
+ * indexed vector then costs nbSubQuantizers bytes of code plus a 4-byte row
+ * (see InvertedLists), e.g. 16 or 32 bytes of code for 128-d SIFT
+ * descriptors instead of 512 bytes of floats. The raw vectors are not kept
+ * in memory.
+ *
+ * Search probes the lists of the nbProbes closest centroids of the query.
+ * For each list, a table of the squared distances of the residual of the
+ * query to all codewords is computed, and the distance to each entry is the
+ * sum of nbSubQuantizers table lookups (asymmetric distance computation).
+ *
+ * Optionally (see setReRanking()), the raw vectors are written to a file at
+ * indexing time, and the candidates found with approximate distances are
+ * re-ranked with their exact distance, read from the file: for k-NN search,
+ * the k * reRankFactor best candidates are re-ranked; for radius search, the
+ * candidates whose approximate distance is within the radius plus the
+ * largest encoding error of their list.
+ *
+ * The re-ranking file is created by index() at the path given by the caller,
+ * who owns it: the index keeps it open until close() is called or the index
+ * is rebuilt, and never deletes it. The file can be deleted once the index
+ * is closed; the index can still be searched, without re-ranking.
+ */
+public class IvfPqIndex implements Index, AutoCloseable {
+
+	/**
+	 * Number of codewords of each sub-quantizer (codes are bytes).
+	 */
+	private static final int NB_CODEWORDS = 256;
+
+	/**
+	 * Default number of lists probed by searches.
+	 */
+	public static final int DEFAULT_NB_PROBES = 8;
+
+	/**
+	 * Default number of vectors sampled to train the quantizers.
+	 */
+	public static final int DEFAULT_TRAINING_SIZE = 1 << 16;
+
+	/**
+	 * Number of iterations of k-means.
+	 */
+	private static final int ITERATIONS = 10;
+
+	/**
+	 * Number of entries below which a parallel encoding task is not split
+	 * further.
+	 */
+	private static final int ENCODING_BLOCK = 1 << 12;
+
+	/**
+	 * Number of coarse centroids requested.
+	 */
+	private int nbLists;
+
+	/**
+	 * Number of sub-quantizers, i.e. of bytes per code.
+	 */
+	private int nbSubQuantizers;
+
+	/**
+	 * Number of lists probed by searches.
+	 */
+	private int nbProbes;
+
+	/**
+	 * Number of vectors sampled to train the quantizers.
+	 */
+	private int trainingSize;
+
+	/**
+	 * Seed of the sampling and of the k-means seeding.
+	 */
+	private long seed;
+
+	/**
+	 * Pool running the parallel build, or null for sequential build.
+	 */
+	private ForkJoinPool pool;
+
+	/**
+	 * Dimension of the indexed vectors.
+	 */
+	private int dim;
+
+	/**
+	 * Dimension of the sub-vectors.
+	 */
+	private int subDim;
+
+	/**
+	 * Coarse quantizer, or null if no data is indexed.
+	 */
+	private CoarseQuantizer quantizer;
+
+	/**
+	 * Inverted lists.
+	 */
+	private InvertedLists lists;
+
+	/**
+	 * Codebook of each sub-quantizer, row-major.
+	 */
+	private float[][] codebooks;
+
+	/**
+	 * Number of codewords of the codebooks (lower than NB_CODEWORDS if the
+	 * training sample is small).
+	 */
+	private int nbCodewords;
+
+	/**
+	 * Codes of the entries of the inverted lists: the code of the entry at
+	 * position p starts at p * nbSubQuantizers.
+	 */
+	private byte[] codes;
+
+	/**
+	 * Largest distance between a vector of each list and its encoding.
+	 */
+	private float[] maxErrors;
+
+	/**
+	 * Path of the file receiving the raw vectors, or null if candidates are
+	 * not re-ranked.
+	 */
+	private String reRankPath;
+
+	/**
+	 * Number of candidates re-ranked per neighbor in k-NN search.
+	 */
+	private int reRankFactor;
+
+	/**
+	 * File containing the raw vectors (native byte order, row-major), or null.
+	 */
+	private FileChannel rawVectors;
+
+	/**
+	 * Search state of each searching thread.
+	 */
+	private ThreadLocal<SearchState> searchStates;
+
+	/**
+	 * State of the search of a thread: probed lists, distance table,
+	 * candidates to re-rank and buffers.
+	 */
+	private class SearchState {
+
+		private MinHeap probeHeap;
+		private int[] probes;
+		private float[] residual;
+		private float[] table;
+		private MinHeap candidates;
+		private float[] vector;
+		private ByteBuffer buffer;
+
+		/**
+		 * Creates the search state for the indexed data.
+		 */
+		private SearchState() {
+			this.probeHeap = new MinHeap(quantizer.getNbLists());
+			this.probes = new int[quantizer.getNbLists()];
+			this.residual = new float[dim];
+			this.table = new float[nbSubQuantizers * NB_CODEWORDS];
+			this.candidates = new MinHeap(64);
+			this.vector = new float[dim];
+			this.buffer = ByteBuffer.allocate(4 * dim).order(ByteOrder.nativeOrder());
+		}
+	}
+
+	/**
+	 * Creates an IVF-PQ index.
+	 * @param nbLists Number of inverted lists (coarse centroids).
+	 * @param nbSubQuantizers Number of sub-quantizers, i.e. bytes per code.
+	 * Must divide the dimension of the data.
+	 */
+	public IvfPqIndex(int nbLists, int nbSubQuantizers) {
+		this(nbLists, nbSubQuantizers, null);
+	}
+
+	/**
+	 * Creates an IVF-PQ index built in parallel.
+	 * @param nbLists Number of inverted lists (coarse centroids).
+	 * @param nbSubQuantizers Number of sub-quantizers, i.e. bytes per code.
+	 * Must divide the dimension of the data.
+	 * @param pool Pool running the build. If null, the build is sequential.
+	 */
+	public IvfPqIndex(int nbLists, int nbSubQuantizers, ForkJoinPool pool) {
+		this.nbLists = Math.max(1, nbLists);
+		this.nbSubQuantizers = Math.max(1, nbSubQuantizers);
+		this.nbProbes = DEFAULT_NB_PROBES;
+		this.trainingSize = DEFAULT_TRAINING_SIZE;
+		this.seed = 0L;
+		this.pool = pool;
+		this.quantizer = null;
+		this.reRankPath = null;
+		this.reRankFactor = 0;
+		this.rawVectors = null;
+	}
+
+	/**
+	 * Sets the number of lists probed by searches.
+	 * @param nbProbes The number of lists.
+	 */
+	public void setNbProbes(int nbProbes) {
+		this.nbProbes = Math.max(1, nbProbes);
+	}
+
+	/**
+	 * Gets the number of lists probed by searches.
+	 * @return The number of lists.
+	 */
+	public int getNbProbes() {
+		return this.nbProbes;
+	}
+
+	/**
+	 * Sets the number of vectors sampled to train the quantizers. Must be
+	 * called before index().
+	 * @param trainingSize The number of vectors.
+	 */
+	public void setTrainingSize(int trainingSize) {
+		this.trainingSize = Math.max(1, trainingSize);
+	}
+
+	/**
+	 * Sets the seed of the sampling and of the k-means seeding. Must be
+	 * called before index().
+	 * @param seed The seed.
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Enables the exact re-ranking of candidates against the raw vectors,
+	 * which index() writes to a file. Must be called before index().
+	 * @param path Path of the file receiving the raw vectors, or null to
+	 * disable re-ranking.
+	 * @param reRankFactor Number of candidates re-ranked per neighbor in
+	 * k-NN search.
+	 */
+	public void setReRanking(String path, int reRankFactor) {
+		this.reRankPath = path;
+		this.reRankFactor = Math.max(1, reRankFactor);
+	}
+
+	/**
+	 * Gets the size of the code of a vector.
+	 * @return The number of bytes per code.
+	 */
+	public int getCodeSize() {
+		return this.nbSubQuantizers;
+	}
+
+	@Override
+	public void index(MatVector data) {
+		this.build(new DescriptorStore(data));
+	}
+
+	/**
+	 * Trains the quantizers on the indexed data and fills the inverted lists.
+	 * The data itself is not kept.
+	 * @param store Indexed data.
+	 */
+	private void build(DescriptorStore store) {
+		int n = store.size();
+		this.quantizer = null;
+		this.closeRawVectors();
+		this.dim = store.getDimension();
+		if( n == 0 ) {
+			return;
+		}
+		if( this.dim % this.nbSubQuantizers != 0 ) {
+			System.err.println("Error: dimension " + this.dim + " is not a multiple of the number of sub-quantizers.");
+			return;
+		}
+		this.subDim = this.dim / this.nbSubQuantizers;
+
+		// train the coarse quantizer
+		Random random = new Random(this.seed);
+		float[] sample = CoarseQuantizer.sample(store, this.trainingSize, random);
+		int sampleSize = sample.length / this.dim;
+		CoarseQuantizer coarse = new CoarseQuantizer(sample, this.dim, this.nbLists, ITERATIONS, random, this.pool);
+
+		// train the codebooks on the residuals of the sample
+		float[] centroids = coarse.getCentroids();
+		for( int i = 0 ; i < sampleSize ; i++ ) {
+			int c = KMeans.nearestCenter(sample, i * this.dim, centroids, coarse.getNbLists(), this.dim);
+			for( int j = 0 ; j < this.dim ; j++ ) {
+				sample[i * this.dim + j] -= centroids[c * this.dim + j];
+			}
+		}
+		int[] identity = new int[sampleSize];
+		for( int i = 0 ; i < sampleSize ; i++ ) {
+			identity[i] = i;
+		}
+		this.codebooks = new float[this.nbSubQuantizers][];
+		float[] subVectors = new float[sampleSize * this.subDim];
+		KMeans kmeans = new KMeans(NB_CODEWORDS, ITERATIONS, this.pool);
+		for( int s = 0 ; s < this.nbSubQuantizers ; s++ ) {
+			for( int i = 0 ; i < sampleSize ; i++ ) {
+				System.arraycopy(sample, i * this.dim + s * this.subDim, subVectors, i * this.subDim, this.subDim);
+			}
+			this.codebooks[s] = kmeans.cluster(subVectors, this.subDim, identity, 0, sampleSize, new int[sampleSize], random);
+		}
+		this.nbCodewords = this.codebooks[0].length / this.subDim;
+
+		// fill the inverted lists
+		int[] assignment = coarse.assign(store, this.pool);
+		this.lists = new InvertedLists(assignment, coarse.getNbLists(), store);
+		this.codes = new byte[n * this.nbSubQuantizers];
+		float[] errors = new float[n];
+		Encoding encoding = new Encoding(store, coarse, assignment, errors, 0, n);
+		if( this.pool == null ) {
+			encoding.compute();
+		} else {
+			this.pool.invoke(encoding);
+		}
+		this.maxErrors = new float[coarse.getNbLists()];
+		for( int p = 0 ; p < n ; p++ ) {
+			int list = assignment[this.lists.getRow(p)];
+			this.maxErrors[list] = Math.max(this.maxErrors[list], (float)Math.sqrt(errors[p]));
+		}
+
+		if( this.reRankPath != null ) {
+			this.writeRawVectors(store);
+		}
+		this.quantizer = coarse;
+		this.searchStates = new ThreadLocal<SearchState>() {
+			@Override
+			protected SearchState initialValue() {
+				return new SearchState();
+			}
+		};
+	}
+
+	/**
+	 * Task encoding the entries of a range of positions of the inverted
+	 * lists, split in halves down to ENCODING_BLOCK entries.
+	 */
+	private class Encoding extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private DescriptorStore store;
+		private CoarseQuantizer coarse;
+		private int[] assignment;
+		private float[] errors;
+		private int start;
+		private int end;
+
+		/**
+		 * Creates an encoding task.
+		 * @param store Indexed data.
+		 * @param coarse Coarse quantizer.
+		 * @param assignment List of each row.
+		 * @param errors Array receiving the squared encoding error of each
+		 * entry.
+		 * @param start First position of the range.
+		 * @param end Position following the last position of the range.
+		 */
+		private Encoding(DescriptorStore store, CoarseQuantizer coarse, int[] assignment, float[] errors, int start, int end) {
+			this.store = store;
+			this.coarse = coarse;
+			this.assignment = assignment;
+			this.errors = errors;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if( this.end - this.start > ENCODING_BLOCK && inForkJoinPool() ) {
+				int middle = (this.start + this.end) >>> 1;
+				invokeAll(new Encoding(this.store, this.coarse, this.assignment, this.errors, this.start, middle),
+						new Encoding(this.store, this.coarse, this.assignment, this.errors, middle, this.end));
+				return;
+			}
+			float[] vectors = this.store.getVectors();
+			float[] centroids = this.coarse.getCentroids();
+			float[] residual = new float[dim];
+			for( int p = this.start ; p < this.end ; p++ ) {
+				int row = lists.getRow(p);
+				int centroid = this.assignment[row] * dim;
+				for( int j = 0 ; j < dim ; j++ ) {
+					residual[j] = vectors[row * dim + j] - centroids[centroid + j];
+				}
+				float error = 0f;
+				for( int s = 0 ; s < nbSubQuantizers ; s++ ) {
+					int code = KMeans.nearestCenter(residual, s * subDim, codebooks[s], nbCodewords, subDim);
+					codes[p * nbSubQuantizers + s] = (byte)code;
+					error += DistanceKernels.squaredL2(residual, s * subDim, codebooks[s], code * subDim, subDim);
+				}
+				this.errors[p] = error;
+			}
+		}
+	}
+
+	/**
+	 * Writes the raw vectors to the re-ranking file and keeps it open for
+	 * reading. If the file cannot be written, re-ranking is disabled.
+	 * @param store Indexed data.
+	 */
+	private void writeRawVectors(DescriptorStore store) {
+		float[] vectors = store.getVectors();
+		ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.nativeOrder());
+		int floatsPerWrite = buffer.capacity() / 4;
+		try {
+			this.rawVectors = FileChannel.open(Paths.get(this.reRankPath), StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			for( int i = 0 ; i < vectors.length ; i += floatsPerWrite ) {
+				int count = Math.min(floatsPerWrite, vectors.length - i);
+				buffer.clear();
+				buffer.asFloatBuffer().put(vectors, i, count);
+				buffer.limit(4 * count);
+				while( buffer.hasRemaining() ) {
+					this.rawVectors.write(buffer);
+				}
+			}
+		} catch( IOException e ) {
+			System.err.println("Error: cannot write raw vectors to " + this.reRankPath + ". Re-ranking is disabled.");
+			this.closeRawVectors();
+		}
+	}
+
+	/**
+	 * Closes the re-ranking file, if open. Searches are then performed
+	 * without re-ranking, and the file may be deleted.
+	 */
+	@Override
+	public void close() {
+		this.closeRawVectors();
+	}
+
+	/**
+	 * Closes the re-ranking file, if open.
+	 */
+	private void closeRawVectors() {
+		if( this.rawVectors != null ) {
+			try {
+				this.rawVectors.close();
+			} catch( IOException e ) {
+				System.err.println("Error: cannot close " + this.reRankPath + ".");
+			}
+			this.rawVectors = null;
+		}
+	}
+
+	/**
+	 * Reads a raw vector from the re-ranking file into state.vector.
+	 * @param row Row of the vector.
+	 * @param state Search state.
+	 * @throws IOException If the vector cannot be read.
+	 */
+	private void readRawVector(int row, SearchState state) throws IOException {
+		ByteBuffer buffer = state.buffer;
+		long position = 4L * row * this.dim;
+		buffer.clear();
+		while( buffer.hasRemaining() ) {
+			if( this.rawVectors.read(buffer, position + buffer.position()) < 0 ) {
+				throw new EOFException();
+			}
+		}
+		buffer.flip();
+		buffer.asFloatBuffer().get(state.vector);
+	}
+
+	/**
+	 * Adds an entry to the matches.
+	 * @param qid ID of the query.
+	 * @param matches Matches found so far.
+	 * @param position Position of the entry in the inverted lists.
+	 * @param squaredDistance Squared distance of the entry to the query.
+	 */
+	private void addMatch(int qid, SearchResults matches, int position, float squaredDistance) {
+		int row = this.lists.getRow(position);
+		int imageIdx = this.lists.getImageIdx(row);
+		matches.add(qid, this.lists.getDescIdx(row, imageIdx), imageIdx, squaredDistance);
+	}
+
+	/**
+	 * Performs a search of matches for query vector q in the collection.
+	 * @param q Query row vector.
+	 * @param qid ID of the query.
+	 * @param matches Empty match container depending on the type of
+	 * search performed (k-NN or radius search).
+	 * @param nbCandidates Number of candidates re-ranked in k-NN search, or
+	 * 0 for radius search.
+	 * @return The matches of the query vector in the database.
+	 * @throws IOException If a raw vector cannot be read for re-ranking.
+	 */
+	private DMatchVector search(float[] q, int qid, SearchResults matches, int nbCandidates) throws IOException {
+		SearchState state = this.searchStates.get();
+		float[] centroids = this.quantizer.getCentroids();
+		float[] table = state.table;
+		MinHeap candidates = state.candidates;
+		boolean reRank = this.rawVectors != null;
+		int nbProbed = this.quantizer.probe(q, this.nbProbes, state.probes, state.probeHeap);
+
+		candidates.clear();
+		for( int i = 0 ; i < nbProbed ; i++ ) {
+			int list = state.probes[i];
+
+			// distance table of the residual of the query
+			for( int j = 0 ; j < this.dim ; j++ ) {
+				state.residual[j] = q[j] - centroids[list * this.dim + j];
+			}
+			for( int s = 0 ; s < this.nbSubQuantizers ; s++ ) {
+				for( int c = 0 ; c < this.nbCodewords ; c++ ) {
+					table[s * NB_CODEWORDS + c] = DistanceKernels.squaredL2(state.residual, s * this.subDim,
+							this.codebooks[s], c * this.subDim, this.subDim);
+				}
+			}
+
+			// asymmetric distances of the entries
+			float radius = matches.getDistanceBound() + this.maxErrors[list];
+			for( int p = this.lists.getListStart(list) ; p < this.lists.getListEnd(list) ; p++ ) {
+				float d = 0f;
+				int code = p * this.nbSubQuantizers;
+				for( int s = 0 ; s < this.nbSubQuantizers ; s++ ) {
+					d += table[s * NB_CODEWORDS + (this.codes[code + s] & 0xFF)];
+				}
+				if( !reRank ) {
+					if( d <= matches.getSquaredDistanceBound() ) {
+						this.addMatch(qid, matches, p, d);
+					}
+				} else if( nbCandidates > 0 ) {
+					// keep the nbCandidates best (max-heap of negated distances)
+					if( candidates.size() < nbCandidates ) {
+						candidates.add(p, -d);
+					} else if( d < -candidates.peekKey() ) {
+						candidates.poll();
+						candidates.add(p, -d);
+					}
+				} else if( d <= radius * radius ) {
+					candidates.add(p, -d);
+				}
+			}
+		}
+
+		// exact re-ranking
+		while( !candidates.isEmpty() ) {
+			int p = candidates.poll();
+			this.readRawVector(this.lists.getRow(p), state);
+			this.addMatch(qid, matches, p, DistanceKernels.squaredL2(q, 0, state.vector, 0, this.dim));
+		}
+
+		return matches.toDMatchVector();
+	}
+
+	@Override
+	public DMatchVectorVector knnQuery(Mat query, int k) {
+		if( this.quantizer == null ) {
+			System.err.println("Error: no data indexed. Cannot perform search.");
+			return null;
+		}
+		if( query == null ) {
+			System.err.println("Error: null query. Cannot perform search.");
+			return null;
+		}
+
+		DMatchVectorVector results = new DMatchVectorVector(query.rows());
+		try {
+			for( int i = 0 ; i < query.rows() ; i++ ) {
+				results.put(i, this.search(DescriptorStore.rowToArray(query, i), i, new KnnSearchResults(k), k * this.reRankFactor));
+			}
+		} catch( IOException e ) {
+			System.err.println("Error: cannot read raw vectors from " + this.reRankPath + ". Cannot perform search.");
+			return null;
+		}
+
+		return results;
+	}
+
+	@Override
+	public DMatchVectorVector epsQuery(Mat query, float eps) {
+		if( this.quantizer == null ) {
+			System.err.println("Error: no data indexed. Cannot perform search.");
+			return null;
+		}
+		if( query == null ) {
+			System.err.println("Error: null query. Cannot perform search.");
+			return null;
+		}
+
+		DMatchVectorVector results = new DMatchVectorVector(query.rows());
+		try {
+			for( int i = 0 ; i < query.rows() ; i++ ) {
+				results.put(i, this.search(DescriptorStore.rowToArray(query, i), i, new EpsSearchResults(eps), 0));
+			}
+		} catch( IOException e ) {
+			System.err.println("Error: cannot read raw vectors from " + this.reRankPath + ". Cannot perform search.");
+			return null;
+		}
+
+		return results;
+	}
+
+}
@@ -1,14 +1,22 @@
 package indexing.kdtree;
 
-import java.util.LinkedList;
-import java.util.PriorityQueue;
+import java.util.Arrays;
+
+import indexing.utils.MinHeap;
 
 /**
  * Node priority queue for best bin first search.
  * 
- * Nodes are organized according to the proximity of the query to their split
- * line. Leaves have highest priority.
+ * Nodes are organized according to the proximity of the query to their
+ * region (the squared distance of the query to the box of the node). Leaves
+ * have highest priority.
  * 
+ * Nodes are identified by their references in a FlatKdTree. The queue
+ * belongs to one query at a time: internal nodes are kept with their priority
+ * score in a primitive heap, and leaves in a primitive FIFO, so that the tree
+ * itself holds no search state. The queue is cleared and reused from one
+ * query to the next. The number of internal nodes in the queue can be
+ * capped: nodes added to a full queue are discarded.
  * 
  * @author Pierre Tirilly - pierre.tirilly@imt-lille-douai.fr
  *
@@ -16,46 +24,104 @@ import java.util.PriorityQueue;
 class BestBinFirstPriorityQueue {
 	
 	/**
-	 * Priority queue of nodes.
+	 * Initial capacity of the queue.
+	 */
+	private static final int INITIAL_CAPACITY = 64;
+	
+	/**
+	 * Priority queue of internal nodes.
+	 */
+	private MinHeap nodes;
+	
+	/**
+	 * Leaves in their expected visit order, stored in a circular buffer.
+	 */
+	private int[] leaves;
+	
+	/**
+	 * Priority scores of the leaves, aligned with leaves.
+	 */
+	private float[] leafScores;
+	
+	/**
+	 * Position of the first leaf in leaves.
+	 */
+	private int firstLeaf;
+	
+	/**
+	 * Number of leaves in the queue.
 	 */
-	private PriorityQueue<BestBinFirstNode> nodes;
+	private int nbLeaves;
 	
 	/**
-	 * List of leaves in their expected visit order.
+	 * Maximum number of internal nodes in the queue.
 	 */
-	private LinkedList<BestBinFirstNode> leaves;
+	private int maxSize;
+	
+	/**
+	 * Priority score of the last node returned by getNext().
+	 */
+	private float lastScore;
 	
 	/**
 	 * Creates a new priority queue.
+	 * @param maxSize Maximum number of internal nodes in the queue.
 	 */
-	public BestBinFirstPriorityQueue() {
-		this.nodes = new PriorityQueue<>();
-		this.leaves = new LinkedList<>();
+	public BestBinFirstPriorityQueue(int maxSize) {
+		this.maxSize = maxSize;
+		this.nodes = new MinHeap(Math.min(INITIAL_CAPACITY, maxSize));
+		this.leaves = new int[INITIAL_CAPACITY];
+		this.leafScores = new float[INITIAL_CAPACITY];
+		this.firstLeaf = 0;
+		this.nbLeaves = 0;
 	}
 	
 	/**
 	 * Get next node (leaf or internal node) to visit.
-	 * @return The next node to visit.
+	 * @return The reference of the next node to visit.
 	 */
-	public BestBinFirstNode getNext() {
-		BestBinFirstNode next = null;
-		if( !this.leaves.isEmpty() ) {
-			next = this.leaves.poll();
-		} else {
-			next = this.nodes.poll();
+	public int getNext() {
+		if( this.nbLeaves > 0 ) {
+			int next = this.leaves[this.firstLeaf];
+			this.lastScore = this.leafScores[this.firstLeaf];
+			this.firstLeaf = (this.firstLeaf + 1) % this.leaves.length;
+			this.nbLeaves--;
+			return next;
 		}
-		return next;
+		this.lastScore = this.nodes.peekKey();
+		return this.nodes.poll();
+	}
+	
+	/**
+	 * Gets the priority score of the last node returned by getNext().
+	 * @return The priority score of the node.
+	 */
+	public float getLastScore() {
+		return this.lastScore;
 	}
 	
 	/**
 	 * Add node to the queue.
-	 * @param n Node to be added to the queue.
+	 * @param n Reference of the node to be added to the queue.
+	 * @param priorityScore Priority score of the node.
 	 */
-	public void addNode(BestBinFirstNode n) {
-		if(n instanceof BestBinFirstLeaf) {
-			this.leaves.add(n);
-		} else {
-			this.nodes.add(n);
+	public void addNode(int n, float priorityScore) {
+		if( FlatKdTree.isLeaf(n) ) {
+			if( this.nbLeaves == this.leaves.length ) {
+				// unroll the circular buffer into a larger array
+				int[] larger = Arrays.copyOf(this.leaves, 2 * this.leaves.length);
+				System.arraycopy(this.leaves, 0, larger, this.leaves.length, this.firstLeaf);
+				float[] largerScores = Arrays.copyOf(this.leafScores, 2 * this.leafScores.length);
+				System.arraycopy(this.leafScores, 0, largerScores, this.leafScores.length, this.firstLeaf);
+				this.leaves = larger;
+				this.leafScores = largerScores;
+			}
+			int last = (this.firstLeaf + this.nbLeaves) % this.leaves.length;
+			this.leaves[last] = n;
+			this.leafScores[last] = priorityScore;
+			this.nbLeaves++;
+		} else if( this.nodes.size() < this.maxSize ) {
+			this.nodes.add(n, priorityScore);
 		}
 	}
 
@@ -64,7 +130,24 @@ class BestBinFirstPriorityQueue {
 	 * @return True if there are nodes let to visit, false otherwise.
 	 */
 	public boolean hasNext() {
-		return !this.leaves.isEmpty() || !this.nodes.isEmpty();
+		return this.nbLeaves > 0 || !this.nodes.isEmpty();
+	}
+	
+	/**
+	 * Removes all nodes from the queue.
+	 */
+	public void clear() {
+		this.nodes.clear();
+		this.firstLeaf = 0;
+		this.nbLeaves = 0;
+	}
+	
+	/**
+	 * Gets the maximum number of internal nodes in the queue.
+	 * @return The maximum size of the queue.
+	 */
+	public int getMaxSize() {
+		return this.maxSize;
 	}
 	
 }
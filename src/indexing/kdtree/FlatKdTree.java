@@ -0,0 +1,379 @@
+package indexing.kdtree;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Compact representation of a kd-tree as parallel primitive arrays.
+ *
+ * Internal nodes are numbered in breadth-first order, and their split
+ * dimension, split value and children are stored in arrays indexed by node
+ * number. Leaves are numbered separately (also in breadth-first order) and
+ * store the range of rows of the data they contain. A child reference is
+ * either the number of an internal node (non-negative), the bitwise
+ * complement of the number of a leaf (negative, see isLeaf() and
+ * getLeaf()), or NONE for an empty child. The parent of each node is also
+ * stored, so that the path from the root to a node can be walked back.
+ *
+ * The tree is built from a temporary linked representation (BuildNode) that
+ * is discarded once flattened.
+ */
+class FlatKdTree {
+
+	/**
+	 * Reference to an empty child.
+	 */
+	public static final int NONE = Integer.MIN_VALUE;
+
+	/**
+	 * Node of the linked representation used during the construction of
+	 * the tree.
+	 */
+	static class BuildNode {
+
+		private int splitDimension;
+		private float splitValue;
+		private BuildNode left;
+		private BuildNode right;
+		private int start;
+		private int end;
+		private boolean leaf;
+
+		/**
+		 * Creates an internal node.
+		 * @param splitDimension Dimension at which data is split.
+		 * @param splitValue Value on splitDimension at which data is split.
+		 * @param left Left child, or null.
+		 * @param right Right child, or null.
+		 */
+		BuildNode(int splitDimension, float splitValue, BuildNode left, BuildNode right) {
+			this.splitDimension = splitDimension;
+			this.splitValue = splitValue;
+			this.left = left;
+			this.right = right;
+			this.leaf = false;
+		}
+
+		/**
+		 * Creates a leaf.
+		 * @param start First row of the leaf.
+		 * @param end Row following the last row of the leaf.
+		 */
+		BuildNode(int start, int end) {
+			this.start = start;
+			this.end = end;
+			this.leaf = true;
+		}
+	}
+
+	/**
+	 * Split dimension of each internal node.
+	 */
+	private int[] splitDimensions;
+
+	/**
+	 * Split value of each internal node.
+	 */
+	private float[] splitValues;
+
+	/**
+	 * Children of each internal node: left child of node i at 2*i, right
+	 * child at 2*i+1.
+	 */
+	private int[] children;
+
+	/**
+	 * First row of each leaf.
+	 */
+	private int[] leafStarts;
+
+	/**
+	 * Row following the last row of each leaf.
+	 */
+	private int[] leafEnds;
+
+	/**
+	 * Parent of each internal node (NONE for the root).
+	 */
+	private int[] parents;
+
+	/**
+	 * Parent of each leaf (NONE for a root leaf).
+	 */
+	private int[] leafParents;
+
+	/**
+	 * Reference to the root.
+	 */
+	private int root;
+
+	/**
+	 * Number of internal nodes on the longest path from the root to a leaf.
+	 */
+	private int depth;
+
+	/**
+	 * Flattens a tree.
+	 * @param root Root of the linked representation of the tree, or null for
+	 * an empty tree.
+	 */
+	FlatKdTree(BuildNode root) {
+		int nbNodes = 0;
+		int nbLeaves = 0;
+		ArrayDeque<BuildNode> queue = new ArrayDeque<BuildNode>();
+
+		// count nodes
+		if( root != null ) {
+			queue.add(root);
+		}
+		while( !queue.isEmpty() ) {
+			BuildNode n = queue.poll();
+			if( n.leaf ) {
+				nbLeaves++;
+			} else {
+				nbNodes++;
+				if( n.left != null ) {
+					queue.add(n.left);
+				}
+				if( n.right != null ) {
+					queue.add(n.right);
+				}
+			}
+		}
+
+		this.splitDimensions = new int[nbNodes];
+		this.splitValues = new float[nbNodes];
+		this.children = new int[2 * nbNodes];
+		this.leafStarts = new int[nbLeaves];
+		this.leafEnds = new int[nbLeaves];
+		this.parents = new int[nbNodes];
+		this.leafParents = new int[nbLeaves];
+		this.depth = 0;
+
+		// number nodes in breadth-first order: a child is numbered when
+		// its parent is dequeued, in the same order as it is enqueued
+		int nextNode = 0;
+		int nextLeaf = 0;
+		this.root = this.reference(root, nextNode, nextLeaf);
+		if( root != null ) {
+			if( root.leaf ) {
+				this.leafParents[nextLeaf++] = NONE;
+			} else {
+				this.parents[nextNode++] = NONE;
+			}
+			queue.add(root);
+		}
+		int node = 0;
+		int leaf = 0;
+		while( !queue.isEmpty() ) {
+			BuildNode n = queue.poll();
+			if( n.leaf ) {
+				this.leafStarts[leaf] = n.start;
+				this.leafEnds[leaf] = n.end;
+				leaf++;
+				continue;
+			}
+			this.splitDimensions[node] = n.splitDimension;
+			this.splitValues[node] = n.splitValue;
+			BuildNode[] nodeChildren = { n.left, n.right };
+			for( int i = 0 ; i < 2 ; i++ ) {
+				BuildNode child = nodeChildren[i];
+				this.children[2 * node + i] = this.reference(child, nextNode, nextLeaf);
+				if( child != null ) {
+					if( child.leaf ) {
+						this.leafParents[nextLeaf++] = node;
+					} else {
+						this.parents[nextNode++] = node;
+					}
+					queue.add(child);
+				}
+			}
+			node++;
+		}
+
+		this.depth = this.computeDepth(this.root);
+	}
+
+	/**
+	 * Computes the reference of a node given the next free numbers.
+	 * @param n The node.
+	 * @param nextNode Next free internal node number.
+	 * @param nextLeaf Next free leaf number.
+	 * @return The reference of the node.
+	 */
+	private int reference(BuildNode n, int nextNode, int nextLeaf) {
+		if( n == null ) {
+			return NONE;
+		}
+		return n.leaf ? ~nextLeaf : nextNode;
+	}
+
+	/**
+	 * Computes the number of internal nodes on the longest path from a node
+	 * to a leaf.
+	 * @param root Reference of the node.
+	 * @return The depth of the subtree.
+	 */
+	private int computeDepth(int root) {
+		if( root == NONE || isLeaf(root) ) {
+			return 0;
+		}
+		// depth of the nodes, computed in breadth-first order (parents first)
+		int[] depths = new int[this.splitDimensions.length];
+		int max = 1;
+		depths[root] = 1;
+		for( int i = 0 ; i < depths.length ; i++ ) {
+			for( int j = 0 ; j < 2 ; j++ ) {
+				int child = this.children[2 * i + j];
+				if( child != NONE && !isLeaf(child) ) {
+					depths[child] = depths[i] + 1;
+					max = Math.max(max, depths[child]);
+				}
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Checks whether a reference is a reference to a leaf.
+	 * @param ref The reference (not NONE).
+	 * @return True if ref refers to a leaf.
+	 */
+	public static boolean isLeaf(int ref) {
+		return ref < 0;
+	}
+
+	/**
+	 * Gets the leaf number of a reference to a leaf.
+	 * @param ref Reference to a leaf.
+	 * @return The number of the leaf.
+	 */
+	public static int getLeaf(int ref) {
+		return ~ref;
+	}
+
+	/**
+	 * Gets the reference to the root of the tree.
+	 * @return The root, or NONE if the tree is empty.
+	 */
+	public int getRoot() {
+		return this.root;
+	}
+
+	/**
+	 * Gets the number of internal nodes on the longest path from the root
+	 * to a leaf, i.e. the maximum number of nodes deferred during a descent.
+	 * @return The depth of the tree.
+	 */
+	public int getDepth() {
+		return this.depth;
+	}
+
+	/**
+	 * Gets the number of internal nodes.
+	 * @return The number of internal nodes.
+	 */
+	public int getNbNodes() {
+		return this.splitDimensions.length;
+	}
+
+	/**
+	 * Gets the number of leaves.
+	 * @return The number of leaves.
+	 */
+	public int getNbLeaves() {
+		return this.leafStarts.length;
+	}
+
+	/**
+	 * Gets the split dimension of an internal node.
+	 * @param node Number of the node.
+	 * @return The split dimension.
+	 */
+	public int getSplitDimension(int node) {
+		return this.splitDimensions[node];
+	}
+
+	/**
+	 * Gets the split value of an internal node.
+	 * @param node Number of the node.
+	 * @return The split value.
+	 */
+	public float getSplitValue(int node) {
+		return this.splitValues[node];
+	}
+
+	/**
+	 * Gets the left child of an internal node.
+	 * @param node Number of the node.
+	 * @return Reference to the left child.
+	 */
+	public int getLeftChild(int node) {
+		return this.children[2 * node];
+	}
+
+	/**
+	 * Gets the right child of an internal node.
+	 * @param node Number of the node.
+	 * @return Reference to the right child.
+	 */
+	public int getRightChild(int node) {
+		return this.children[2 * node + 1];
+	}
+
+	/**
+	 * Gets the parent of a node.
+	 * @param ref Reference to the node (internal node or leaf).
+	 * @return The number of the parent, or NONE for the root.
+	 */
+	public int getParent(int ref) {
+		return isLeaf(ref) ? this.leafParents[~ref] : this.parents[ref];
+	}
+
+	/**
+	 * Gets the first row of a leaf.
+	 * @param leaf Number of the leaf.
+	 * @return The first row of the leaf.
+	 */
+	public int getLeafStart(int leaf) {
+		return this.leafStarts[leaf];
+	}
+
+	/**
+	 * Gets the row following the last row of a leaf.
+	 * @param leaf Number of the leaf.
+	 * @return The row following the last row of the leaf.
+	 */
+	public int getLeafEnd(int leaf) {
+		return this.leafEnds[leaf];
+	}
+
+	/**
+	 * Computes the distances of a query to the region of a node along each
+	 * dimension, by walking the path from the node back to the root: along
+	 * dimension d, the distance is given by the deepest split line on d that
+	 * the path crosses away from the query.
+	 * @param q Query vector.
+	 * @param ref Reference to the node.
+	 * @param offsets Array receiving the distances.
+	 * @param crossed Array used to mark the dimensions already set.
+	 */
+	public void computeOffsets(float[] q, int ref, float[] offsets, boolean[] crossed) {
+		Arrays.fill(offsets, 0f);
+		Arrays.fill(crossed, false);
+		int child = ref;
+		int parent = this.getParent(ref);
+		
+		while( parent != NONE ) {
+			int d = this.splitDimensions[parent];
+			float distanceToSplit = q[d] - this.splitValues[parent];
+			int near = distanceToSplit <= 0 ? this.children[2 * parent] : this.children[2 * parent + 1];
+			if( child != near && !crossed[d] ) {
+				crossed[d] = true;
+				offsets[d] = distanceToSplit;
+			}
+			child = parent;
+			parent = this.parents[parent];
+		}
+	}
+}
@@ -0,0 +1,443 @@
+package indexing.kdtree;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.bytedeco.javacpp.opencv_core.DMatchVector;
+import org.bytedeco.javacpp.opencv_core.DMatchVectorVector;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.MatVector;
+
+import indexing.Index;
+import indexing.utils.DescriptorStore;
+import indexing.utils.EpsSearchResults;
+import indexing.utils.KnnSearchResults;
+import indexing.utils.MinHeap;
+import indexing.utils.SearchResults;
+import indexing.utils.VisitedRows;
+
+/**
+ * Forest of randomized kd-trees.
+ *
+ * Index structure based on several kd-trees built on the same data. In each
+ * tree, the split dimension of a node is picked at random among the
+ * dimensions of largest variance of its rows, so that the trees partition
+ * the space differently (Silpa-Anan and Hartley). All trees share the
+ * indexed data, and the leaves of each tree refer to its own permutation of
+ * the rows.
+ *
+ * Search is a best bin first search over all the trees at once: each tree
+ * is first descended towards the query, and the deferred nodes of all trees
+ * are kept in a single priority queue, ordered by the squared distance of
+ * the query to their region. The search then goes on from the best node of
+ * the queue, whatever its tree, until checks leaves were visited in total.
+ * A descriptor found in several trees is only compared to the query once.
+ */
+public class KdForest implements Index {
+
+	/**
+	 * Default number of dimensions of largest variance among which split
+	 * dimensions are picked.
+	 */
+	public static final int DEFAULT_SPLIT_CANDIDATES = 5;
+
+	/**
+	 * The trees.
+	 */
+	private FlatKdTree[] trees;
+
+	/**
+	 * Permutation of the rows of each tree: the rows of a leaf of tree t are
+	 * the values of permutations[t] between the start and end of the leaf.
+	 */
+	private int[][] permutations;
+
+	/**
+	 * Indexed data.
+	 */
+	private DescriptorStore data;
+
+	/**
+	 * Number of trees.
+	 */
+	private int nbTrees;
+
+	/**
+	 * Maximum number of leaves to visit at each search, over all trees.
+	 */
+	private int checks;
+
+	/**
+	 * Maximum number of vectors stored in a leaf.
+	 */
+	private int leafSize;
+
+	/**
+	 * Number of dimensions of largest variance among which split dimensions
+	 * are picked.
+	 */
+	private int nbSplitCandidates;
+
+	/**
+	 * Seed of the random choice of split dimensions.
+	 */
+	private long seed;
+
+	/**
+	 * Pool running the parallel build, or null for sequential build.
+	 */
+	private ForkJoinPool pool;
+
+	/**
+	 * Search state of each searching thread, reused from one query to the
+	 * next.
+	 */
+	private ThreadLocal<SearchState> searchStates;
+
+	/**
+	 * Number of leaves visited by searches.
+	 */
+	private LongAdder visitedLeafCount;
+
+	/**
+	 * Number of distance computations abandoned early by searches.
+	 */
+	private LongAdder abandonedCount;
+
+	/**
+	 * State of the search of a thread: priority queue of the nodes of all
+	 * trees, rows already compared to the query and offsets of the query to
+	 * the region of the current node.
+	 */
+	private class SearchState {
+
+		private MinHeap nodeQueue;
+		private VisitedRows visited;
+		private float[] offsets;
+		private boolean[] crossed;
+
+		/**
+		 * Creates the search state for the indexed data.
+		 */
+		private SearchState() {
+			this.nodeQueue = new MinHeap(64);
+			this.visited = new VisitedRows(data.size());
+			this.offsets = new float[data.getDimension()];
+			this.crossed = new boolean[data.getDimension()];
+		}
+	}
+
+	/**
+	 * Creates a kd-forest index.
+	 * @param nbTrees Number of randomized kd-trees.
+	 * @param checks Maximum number of leaves visited during search, over all
+	 * trees.
+	 */
+	public KdForest(int nbTrees, int checks) {
+		this(nbTrees, checks, 1, 0L);
+	}
+
+	/**
+	 * Creates a kd-forest index with buckets of vectors as leaves.
+	 * @param nbTrees Number of randomized kd-trees.
+	 * @param checks Maximum number of leaves visited during search, over all
+	 * trees.
+	 * @param leafSize Maximum number of vectors stored in a leaf.
+	 * @param seed Seed of the random choice of split dimensions.
+	 */
+	public KdForest(int nbTrees, int checks, int leafSize, long seed) {
+		this(nbTrees, checks, leafSize, seed, null);
+	}
+
+	/**
+	 * Creates a kd-forest index whose trees are built in parallel.
+	 * @param nbTrees Number of randomized kd-trees.
+	 * @param checks Maximum number of leaves visited during search, over all
+	 * trees.
+	 * @param leafSize Maximum number of vectors stored in a leaf.
+	 * @param seed Seed of the random choice of split dimensions.
+	 * @param pool Pool running the build. If null, the build is sequential.
+	 */
+	public KdForest(int nbTrees, int checks, int leafSize, long seed, ForkJoinPool pool) {
+		this.trees = null;
+		this.permutations = null;
+		this.data = null;
+		this.nbTrees = Math.max(1, nbTrees);
+		this.checks = checks;
+		this.leafSize = Math.max(1, leafSize);
+		this.nbSplitCandidates = DEFAULT_SPLIT_CANDIDATES;
+		this.seed = seed;
+		this.pool = pool;
+		this.searchStates = null;
+		this.visitedLeafCount = new LongAdder();
+		this.abandonedCount = new LongAdder();
+	}
+
+	/**
+	 * Sets the number of dimensions of largest variance among which split
+	 * dimensions are picked. Must be called before index().
+	 * @param nbSplitCandidates The number of candidate dimensions.
+	 */
+	public void setNbSplitCandidates(int nbSplitCandidates) {
+		this.nbSplitCandidates = Math.max(1, nbSplitCandidates);
+	}
+
+	/**
+	 * Sets the maximum number of leaves visited at each search, over all
+	 * trees.
+	 * @param checks The maximum number of leaves.
+	 */
+	public void setChecks(int checks) {
+		this.checks = checks;
+	}
+
+	/**
+	 * Gets the maximum number of leaves visited at each search.
+	 * @return The maximum number of leaves.
+	 */
+	public int getChecks() {
+		return this.checks;
+	}
+
+	/**
+	 * Gets the number of trees of the forest.
+	 * @return The number of trees.
+	 */
+	public int getNbTrees() {
+		return this.nbTrees;
+	}
+
+	/**
+	 * Builds the trees of the forest on the given descriptors.
+	 * @param data The descriptors to index. Each entry is a matrix containing
+	 * image descriptors as rows.
+	 * @throws IllegalArgumentException If the nodes of the trees may not be
+	 * numbered in the priority queue of the searches (see encode()).
+	 */
+	@Override
+	public void index(MatVector data) {
+		DescriptorStore store = new DescriptorStore(data);
+		// median splits may peel off a single row when values are tied, so a
+		// tree has up to one leaf per row (and one node less)
+		long maxLeaves = store.size() <= this.leafSize ? 1 : store.size();
+		long maxId = (2 * maxLeaves - 1) * this.nbTrees + this.nbTrees - 1;
+		if( maxId > Integer.MAX_VALUE ) {
+			throw new IllegalArgumentException("Cannot index " + store.size() + " descriptors in " + this.nbTrees
+					+ " trees: node IDs up to " + maxId + " exceed the int range. Use fewer trees.");
+		}
+		this.data = store;
+		this.trees = new FlatKdTree[this.nbTrees];
+		this.permutations = new int[this.nbTrees][];
+		for( int t = 0 ; t < this.nbTrees ; t++ ) {
+			KdTreeBuilder builder = new KdTreeBuilder(this.data, this.leafSize, this.pool);
+			builder.setRandomSplits(this.nbSplitCandidates, this.seed + t);
+			this.trees[t] = builder.build();
+			this.permutations[t] = builder.getPermutation();
+		}
+		this.searchStates = new ThreadLocal<SearchState>() {
+			@Override
+			protected SearchState initialValue() {
+				return new SearchState();
+			}
+		};
+	}
+
+	/**
+	 * Encodes a node of a tree as an ID of the priority queue. IDs are below
+	 * 2 * (number of rows) * (number of trees), which index() checks to fit
+	 * in an int.
+	 * @param tree Number of the tree.
+	 * @param ref Reference to the node in its tree.
+	 * @return The ID of the node.
+	 */
+	private int encode(int tree, int ref) {
+		int code = FlatKdTree.isLeaf(ref) ? 2 * FlatKdTree.getLeaf(ref) + 1 : 2 * ref;
+		return code * this.nbTrees + tree;
+	}
+
+	/**
+	 * Gets the reference of the node of a priority queue ID.
+	 * @param id ID of the node.
+	 * @return The reference to the node in its tree.
+	 */
+	private int decodeReference(int id) {
+		int code = id / this.nbTrees;
+		return (code & 1) == 1 ? ~(code >>> 1) : code >>> 1;
+	}
+
+	/**
+	 * Computes the distances of the query to the vectors of a leaf that were
+	 * not compared to it yet, and adds them to the matches. Distance
+	 * computations are abandoned as soon as they exceed the distance bound of
+	 * the matches.
+	 * @param q Query vector.
+	 * @param qid ID of the query.
+	 * @param matches Matches found so far.
+	 * @param tree Number of the tree of the leaf.
+	 * @param leaf Number of the leaf.
+	 * @param state Search state.
+	 * @param counters Counters of the search.
+	 */
+	private void scanLeaf(float[] q, int qid, SearchResults matches, int tree, int leaf, SearchState state,
+			TraversalCounters counters) {
+		int[] permutation = this.permutations[tree];
+		float squaredBound = matches.getSquaredDistanceBound();
+		float squared;
+
+		for( int i = this.trees[tree].getLeafStart(leaf) ; i < this.trees[tree].getLeafEnd(leaf) ; i++ ) {
+			int row = permutation[i];
+			if( !state.visited.visit(row) ) {
+				continue;
+			}
+			squared = this.data.boundedSquaredDistance(q, 0, row, squaredBound);
+			if( squared <= squaredBound ) {
+				matches.add(qid, this.data.getDescIdx(row), this.data.getImageIdx(row), squared);
+				squaredBound = matches.getSquaredDistanceBound();
+			} else {
+				counters.abandonDistance();
+			}
+		}
+		counters.visitLeaf();
+	}
+
+	/**
+	 * Descends a tree from a node towards the query, adding the children on
+	 * the other side of the split lines to the priority queue, and scans the
+	 * leaf reached if the leaf budget allows it. The score of a deferred child
+	 * is the squared distance of the query to its region, computed
+	 * incrementally from the offsets of the node (see KdTree).
+	 * @param q Query vector.
+	 * @param qid ID of the query.
+	 * @param matches Matches found so far.
+	 * @param tree Number of the tree.
+	 * @param node Reference to the node the descent starts from.
+	 * @param score Squared distance of the query to the region of the node.
+	 * @param state Search state, offsets set for the node.
+	 * @param counters Counters of the search.
+	 */
+	private void descend(float[] q, int qid, SearchResults matches, int tree, int node, float score,
+			SearchState state, TraversalCounters counters) {
+		FlatKdTree t = this.trees[tree];
+		float[] offsets = state.offsets;
+
+		while( node != FlatKdTree.NONE && !FlatKdTree.isLeaf(node) ) {
+			int d = t.getSplitDimension(node);
+			float distanceToSplit = q[d] - t.getSplitValue(node);
+			int far;
+			if( distanceToSplit <= 0 ) {
+				far = t.getRightChild(node);
+				node = t.getLeftChild(node);
+			} else {
+				far = t.getLeftChild(node);
+				node = t.getRightChild(node);
+			}
+			float farScore = score - offsets[d] * offsets[d] + distanceToSplit * distanceToSplit;
+			if( far != FlatKdTree.NONE && farScore < matches.getSquaredDistanceBound() ) {
+				state.nodeQueue.add(this.encode(tree, far), farScore);
+			}
+		}
+		if( node != FlatKdTree.NONE && counters.getVisitedLeaves() < this.checks ) {
+			this.scanLeaf(q, qid, matches, tree, FlatKdTree.getLeaf(node), state, counters);
+		}
+	}
+
+	/**
+	 * Performs a search of matches for query vector q in the collection.
+	 * @param q Query row vector.
+	 * @param qid ID of the query.
+	 * @param matches Empty match container depending on the type of
+	 * search performed (k-NN or radius search).
+	 * @return The matches of the query vector in the database.
+	 */
+	private DMatchVector search(float[] q, int qid, SearchResults matches) {
+		SearchState state = this.searchStates.get();
+		MinHeap nodeQueue = state.nodeQueue;
+		TraversalCounters counters = new TraversalCounters();
+
+		nodeQueue.clear();
+		state.visited.clear();
+
+		// first descent in each tree
+		for( int t = 0 ; t < this.nbTrees && counters.getVisitedLeaves() < this.checks ; t++ ) {
+			Arrays.fill(state.offsets, 0f);
+			this.descend(q, qid, matches, t, this.trees[t].getRoot(), 0f, state, counters);
+		}
+
+		// best nodes of all trees
+		while( !nodeQueue.isEmpty() && counters.getVisitedLeaves() < this.checks ) {
+			float score = nodeQueue.peekKey();
+			int id = nodeQueue.poll();
+			if( score >= matches.getSquaredDistanceBound() ) {
+				continue;
+			}
+			int tree = id % this.nbTrees;
+			int node = this.decodeReference(id);
+			if( !FlatKdTree.isLeaf(node) ) {
+				this.trees[tree].computeOffsets(q, node, state.offsets, state.crossed);
+			}
+			this.descend(q, qid, matches, tree, node, score, state, counters);
+		}
+		this.visitedLeafCount.add(counters.getVisitedLeaves());
+		this.abandonedCount.add(counters.getAbandonedDistances());
+
+		return matches.toDMatchVector();
+	}
+
+	/**
+	 * Gets the number of leaves visited by searches since the creation of the
+	 * index, over all trees.
+	 * @return The number of visited leaves.
+	 */
+	public long getVisitedLeafCount() {
+		return this.visitedLeafCount.sum();
+	}
+
+	/**
+	 * Gets the number of distance computations that were abandoned because
+	 * the candidate could not enter the matches.
+	 * @return The number of abandoned distance computations.
+	 */
+	public long getAbandonedCount() {
+		return this.abandonedCount.sum();
+	}
+
+	@Override
+	public DMatchVectorVector knnQuery(Mat query, int k) {
+		if( this.data == null || this.trees == null || this.data.size() == 0 ) {
+			System.err.println("Error: no data indexed. Cannot perform search.");
+			return null;
+		}
+		if( query == null ) {
+			System.err.println("Error: null query. Cannot perform search.");
+			return null;
+		}
+
+		DMatchVectorVector results = new DMatchVectorVector(query.rows());
+		for( int i = 0 ; i < query.rows() ; i++ ) {
+			results.put(i, this.search(DescriptorStore.rowToArray(query, i), i, new KnnSearchResults(k)));
+		}
+
+		return results;
+	}
+
+	@Override
+	public DMatchVectorVector epsQuery(Mat query, float eps) {
+		if( this.data == null || this.trees == null || this.data.size() == 0 ) {
+			System.err.println("Error: no data indexed. Cannot perform search.");
+			return null;
+		}
+		if( query == null ) {
+			System.err.println("Error: null query. Cannot perform search.");
+			return null;
+		}
+
+		DMatchVectorVector results = new DMatchVectorVector(query.rows());
+		for( int i = 0 ; i < query.rows() ; i++ ) {
+			results.put(i, this.search(DescriptorStore.rowToArray(query, i), i, new EpsSearchResults(eps)));
+		}
+
+		return results;
+	}
+
+}
@@ -1,16 +1,16 @@
 package indexing.kdtree;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.bytedeco.javacpp.opencv_core.DMatchVector;
 import org.bytedeco.javacpp.opencv_core.DMatchVectorVector;
 import org.bytedeco.javacpp.opencv_core.Mat;
 import org.bytedeco.javacpp.opencv_core.MatVector;
-import org.bytedeco.javacpp.indexer.FloatIndexer;
 
 import indexing.Index;
+import indexing.utils.DescriptorStore;
 import indexing.utils.EpsSearchResults;
 import indexing.utils.KnnSearchResults;
 import indexing.utils.SearchResults;
@@ -21,20 +21,42 @@ import indexing.utils.SearchResults;
  * Index structure based on a kd-tree. The kd-tree supports both the regular
  * branch-and-bound search and the best bin first optimization.
  * 
+ * Leaves are buckets of up to leafSize vectors. Once the tree is built, the
+ * indexed vectors are reordered so that the vectors of each leaf are stored
+ * in consecutive rows, and visiting a leaf scans these rows. maxLeaves
+ * therefore bounds the number of buckets visited.
+ * 
+ * The tree is stored as parallel primitive arrays (see FlatKdTree), and the
+ * regular branch-and-bound search is an iterative descent using an explicit
+ * stack of deferred nodes. Best bin first search is also a loop, which
+ * keeps the visit order of the recursive traversal with an explicit stack.
+ * Both searches prune subtrees using the distance of the query to the
+ * region of their root, maintained incrementally along the search path.
+ * Search state (deferred nodes, best bin first queue, counters) belongs to
+ * each query or searching thread, and the tree is not modified by searches:
+ * one index can be searched by several threads at once.
+ * 
+ * In leaves, distance computations are abandoned as soon as the partial
+ * distance exceeds the current distance bound of the matches. The number of
+ * abandoned computations is counted.
+ * 
+ * If a ForkJoinPool is given, the tree is built in parallel (see
+ * KdTreeBuilder).
+ * 
  * @author Pierre Tirilly - pierre.tirilly@imt-lille-douai.fr
  *
  */
 public class KdTree implements Index {
 
 	/**
-	 * Root of the tree.
+	 * The tree.
 	 */
-	private Node root;
+	private FlatKdTree tree;
 	
 	/**
 	 * Indexed data.
 	 */
-	private MatVector data;
+	private DescriptorStore data;
 	
 	/**
 	 * Maximum number of leaves to visit at each search.
@@ -46,6 +68,32 @@ public class KdTree implements Index {
 	 */
 	private boolean bestBinFirst;
 	
+	/**
+	 * Best bin first queue of each searching thread, reused from one query
+	 * to the next.
+	 */
+	private ThreadLocal<BestBinFirstPriorityQueue> nodeQueues;
+	
+	/**
+	 * Maximum number of vectors stored in a leaf.
+	 */
+	private int leafSize;
+	
+	/**
+	 * Pool running the parallel build, or null for sequential build.
+	 */
+	private ForkJoinPool pool;
+	
+	/**
+	 * Number of leaves visited by searches.
+	 */
+	private LongAdder visitedLeafCount;
+	
+	/**
+	 * Number of distance computations abandoned early by searches.
+	 */
+	private LongAdder abandonedCount;
+	
 	/**
 	 * Creates a kd-tree index.
 	 * @param maxLeaves Maximum number of leaves visited during search.
@@ -53,152 +101,274 @@ public class KdTree implements Index {
 	 * the regular branch-and-bound search is performed.
 	 */
 	public KdTree(int maxLeaves, boolean bestBinFirst) {
-		this.root = null;
+		this(maxLeaves, bestBinFirst, 1, null);
+	}
+	
+	/**
+	 * Creates a kd-tree index with buckets of vectors as leaves.
+	 * @param maxLeaves Maximum number of leaves visited during search.
+	 * @param bestBinFirst If true, best bin first search is used. Otherwise,
+	 * the regular branch-and-bound search is performed.
+	 * @param leafSize Maximum number of vectors stored in a leaf.
+	 */
+	public KdTree(int maxLeaves, boolean bestBinFirst, int leafSize) {
+		this(maxLeaves, bestBinFirst, leafSize, null);
+	}
+	
+	/**
+	 * Creates a kd-tree index built in parallel.
+	 * @param maxLeaves Maximum number of leaves visited during search.
+	 * @param bestBinFirst If true, best bin first search is used. Otherwise,
+	 * the regular branch-and-bound search is performed.
+	 * @param leafSize Maximum number of vectors stored in a leaf.
+	 * @param pool Pool running the build. If null, the build is sequential.
+	 */
+	public KdTree(int maxLeaves, boolean bestBinFirst, int leafSize, ForkJoinPool pool) {
+		this.tree = null;
 		this.data = null;
 		this.maxLeaves = maxLeaves;
 		this.bestBinFirst = bestBinFirst;
+		this.leafSize = Math.max(1, leafSize);
+		this.setMaxQueueSize(Integer.MAX_VALUE);
+		this.pool = pool;
+		this.visitedLeafCount = new LongAdder();
+		this.abandonedCount = new LongAdder();
 	}
 	
 	/**
-	 * Builds the kd-tree for given data to index.
-	 * The node for current data is built, and children are recursively built
-	 * based on data split at the median of the dimension of largest variance.
-	 * Rather than splitting actual data, lists of
-	 * @param data Data to index.
-	 * @param imageIndices Image indices of the subset of data to be indexed.
-	 * @param descIndices Descriptor indices of the subset of data to be indexed.
-	 * @return The root of the kd-tree built based on data present in imageIndices/descIndices.
+	 * Sets the maximum number of internal nodes held by the queue of best
+	 * bin first search. Nodes found when the queue is full are not visited.
+	 * By default, the queue is not bounded.
+	 * @param maxQueueSize The maximum size of the queue.
 	 */
-	private Node buildKdNodes(MatVector data, ArrayList<Integer> imageIndices, ArrayList<Integer> descIndices) {
-
-		float[] means = new float[data.get(0).cols()];
-		float[] variances = new float[data.get(0).cols()];
-		
-		// compute mean and variance
-		for( int i = 0 ; i < imageIndices.size() ; i++ ) {
-			FloatIndexer idx = (FloatIndexer)data.get(imageIndices.get(i)).createIndexer();
-			for( int j = 0 ; j < idx.cols() ; j++ ) {
-				means[j] += idx.get(descIndices.get(i), j);
-			}
-		}
-		for( int i = 0 ; i < means.length ; i++ ) {
-			means[i] /= (float)imageIndices.size();
-		}
-		
-		for( int i = 0 ; i < imageIndices.size() ; i++ ) {
-			FloatIndexer idx = data.get(imageIndices.get(i)).createIndexer();
-			for( int j = 0 ; j < idx.cols() ; j++ ) {
-				variances[j] += (idx.get(descIndices.get(i), j) - means[j]) * (idx.get(descIndices.get(i), j) - means[j]);
-			}
-		}
-		
-		// get max variance dimension
-		int maxVarianceDimension = 0;
-		for( int i = 1 ; i < variances.length ; i++ ) {
-			if( variances[maxVarianceDimension] < variances[i] ) {
-				maxVarianceDimension = i;
+	public void setMaxQueueSize(final int maxQueueSize) {
+		this.nodeQueues = new ThreadLocal<BestBinFirstPriorityQueue>() {
+			@Override
+			protected BestBinFirstPriorityQueue initialValue() {
+				return new BestBinFirstPriorityQueue(Math.max(1, maxQueueSize));
 			}
-		}
+		};
+	}
+	
+	@Override
+	public void index(MatVector data) {
+		this.data = new DescriptorStore(data);
+		KdTreeBuilder builder = new KdTreeBuilder(this.data, this.leafSize, this.pool);
+		this.tree = builder.build();
+		this.data = this.data.reorder(builder.getPermutation());
+	}
+	
+	/**
+	 * Computes the distances of the query to the vectors of a leaf and adds
+	 * them to the matches. Distance computations are abandoned as soon as they
+	 * exceed the distance bound of the matches.
+	 * @param q Query vector.
+	 * @param qid ID of the query.
+	 * @param matches Matches found so far.
+	 * @param leaf Number of the leaf.
+	 * @param counters Counters of the search.
+	 */
+	private void scanLeaf(float[] q, int qid, SearchResults matches, int leaf, TraversalCounters counters) {
+		float squaredBound = matches.getSquaredDistanceBound();
+		float squared;
 		
-		float splitValue;
-		float[] dimValues = new float[imageIndices.size()];
-		for( int i = 0 ; i < dimValues.length ; i++ ) {
-			dimValues[i] = ((FloatIndexer)data.get(imageIndices.get(i)).createIndexer()).get(descIndices.get(i), maxVarianceDimension);
-		}
-		Arrays.sort(dimValues);
-		if( dimValues.length%2 == 1 ) {
-			splitValue = dimValues[dimValues.length/2];
-		} else {
-			splitValue =(dimValues[dimValues.length/2-1] + dimValues[dimValues.length/2]) / 2f;
-		}
-		ArrayList<Integer> leftImageIndices = new ArrayList<Integer>();
-		ArrayList<Integer> rightImageIndices = new ArrayList<Integer>();
-		ArrayList<Integer> leftDescIndices = new ArrayList<Integer>();
-		ArrayList<Integer> rightDescIndices = new ArrayList<Integer>();
-		for( int i = 0 ; i < imageIndices.size() ; i++ ) {
-			if( ((FloatIndexer)data.get(imageIndices.get(i)).createIndexer()).get(descIndices.get(i), maxVarianceDimension) <= splitValue ) {
-				leftImageIndices.add(imageIndices.get(i));
-				leftDescIndices.add(descIndices.get(i));
+		for( int row = this.tree.getLeafStart(leaf) ; row < this.tree.getLeafEnd(leaf) ; row++ ) {
+			squared = this.data.boundedSquaredDistance(q, 0, row, squaredBound);
+			if( squared <= squaredBound ) {
+				matches.add(qid, this.data.getDescIdx(row), this.data.getImageIdx(row), squared);
+				squaredBound = matches.getSquaredDistanceBound();
 			} else {
-				rightImageIndices.add(imageIndices.get(i));
-				rightDescIndices.add(descIndices.get(i));
+				counters.abandonDistance();
 			}
 		}
+		counters.visitLeaf();
+	}
+	
+	/**
+	 * Performs the regular branch-and-bound search.
+	 * The tree is descended towards the query, the children on the other side
+	 * of the split lines being pushed on a stack. When a leaf is reached, the
+	 * deferred children are popped until one of them may contain a closer
+	 * match than the current ones, and the descent restarts from it.
+	 * 
+	 * A deferred child is only visited if the squared distance of the query
+	 * to its region (a box) is lower than the distance bound. This distance
+	 * is maintained incrementally (Arya and Mount): offsets[d] is the
+	 * distance of the query to the region of the current node along
+	 * dimension d, and crossing a split line on dimension d replaces the
+	 * contribution of offsets[d] by the one of the distance to the split
+	 * line. Offsets changed when entering a deferred child are logged, and
+	 * restored when backtracking above the node that deferred it.
+	 * @param q Query vector.
+	 * @param qid ID of the query.
+	 * @param matches Matches found so far.
+	 * @param counters Counters of the search.
+	 */
+	private void branchAndBoundSearch(float[] q, int qid, SearchResults matches, TraversalCounters counters) {
+		int depth = this.tree.getDepth();
+		int[] deferredNodes = new int[depth];
+		float[] deferredBounds = new float[depth];
+		int[] deferredDimensions = new int[depth];
+		float[] deferredOffsets = new float[depth];
+		int[] undoDimensions = new int[depth];
+		float[] undoOffsets = new float[depth];
+		int[] undoLevels = new int[depth];
+		float[] offsets = new float[this.data.getDimension()];
+		float bound = 0f;
+		int top = 0;
+		int undoTop = 0;
+		int node = this.maxLeaves > 0 ? this.tree.getRoot() : FlatKdTree.NONE;
 		
-		if(leftImageIndices.isEmpty()) {
-			for( int i = 0 ; i < rightImageIndices.size() && leftImageIndices.isEmpty() ; i++ ) {
-				if( ((FloatIndexer)data.get(rightImageIndices.get(i)).createIndexer()).get(rightDescIndices.get(i), maxVarianceDimension) == splitValue ) {
-					leftImageIndices.add(rightImageIndices.get(i));
-					leftDescIndices.add(rightDescIndices.get(i));
-					rightImageIndices.remove(i);
-					rightDescIndices.remove(i);
+		while( node != FlatKdTree.NONE ) {
+			// descend to a leaf
+			while( !FlatKdTree.isLeaf(node) ) {
+				int d = this.tree.getSplitDimension(node);
+				float distanceToSplit = q[d] - this.tree.getSplitValue(node);
+				if( distanceToSplit <= 0 ) {
+					deferredNodes[top] = this.tree.getRightChild(node);
+					node = this.tree.getLeftChild(node);
+				} else {
+					deferredNodes[top] = this.tree.getLeftChild(node);
+					node = this.tree.getRightChild(node);
 				}
+				deferredDimensions[top] = d;
+				deferredOffsets[top] = distanceToSplit;
+				deferredBounds[top] = bound - offsets[d] * offsets[d] + distanceToSplit * distanceToSplit;
+				top++;
+				if( node == FlatKdTree.NONE ) {
+					break;
+				}
+			}
+			if( node != FlatKdTree.NONE ) {
+				this.scanLeaf(q, qid, matches, FlatKdTree.getLeaf(node), counters);
 			}
-		} else if(rightImageIndices.isEmpty()) {
-			for( int i = 0 ; i < leftImageIndices.size() && rightImageIndices.isEmpty() ; i++ ) {
-				if( ((FloatIndexer)data.get(leftImageIndices.get(i)).createIndexer()).get(leftDescIndices.get(i), maxVarianceDimension) == splitValue ) {
-					rightImageIndices.add(leftImageIndices.get(i));
-					rightDescIndices.add(leftDescIndices.get(i));
-					leftImageIndices.remove(i);
-					leftDescIndices.remove(i);
+			
+			// backtrack to the next deferred node to visit
+			node = FlatKdTree.NONE;
+			while( top > 0 && node == FlatKdTree.NONE && counters.getVisitedLeaves() < this.maxLeaves ) {
+				top--;
+				if( deferredNodes[top] != FlatKdTree.NONE && deferredBounds[top] < matches.getSquaredDistanceBound() ) {
+					// restore the offsets of the node that deferred the child
+					while( undoTop > 0 && undoLevels[undoTop-1] > top ) {
+						undoTop--;
+						offsets[undoDimensions[undoTop]] = undoOffsets[undoTop];
+					}
+					int d = deferredDimensions[top];
+					undoDimensions[undoTop] = d;
+					undoOffsets[undoTop] = offsets[d];
+					undoLevels[undoTop] = top;
+					undoTop++;
+					offsets[d] = deferredOffsets[top];
+					bound = deferredBounds[top];
+					node = deferredNodes[top];
 				}
 			}
 		}
+	}
+	
+	/**
+	 * Performs the best bin first search.
+	 * The search is the loop form of a recursive traversal in which visiting
+	 * a node goes as follows. A leaf is scanned, then the next node of the
+	 * queue is visited. An internal node first visits its child on the query
+	 * side; then its other child is added to the queue if its priority score
+	 * is lower than the distance bound, and the next node of the queue is
+	 * visited. Internal nodes waiting for the visit of their first child to
+	 * end are kept on an explicit stack (with their other child), so that the
+	 * call stack does not grow.
+	 * 
+	 * The priority score of a node is the squared distance of the query to
+	 * its region, computed incrementally from the offsets of its parent (see
+	 * branchAndBoundSearch()). Nodes taken from the queue are skipped if
+	 * their score is no longer lower than the distance bound. The offsets of
+	 * an internal node taken from the queue are recomputed from its path to
+	 * the root.
+	 * @param q Query vector.
+	 * @param qid ID of the query.
+	 * @param matches Matches found so far.
+	 * @param counters Counters of the search.
+	 */
+	private void bestBinFirstSearch(float[] q, int qid, SearchResults matches, TraversalCounters counters) {
+		BestBinFirstPriorityQueue nodeQueue = this.nodeQueues.get();
+		int[] pendingNodes = new int[Math.max(16, 2 * this.tree.getDepth())];
+		float[] pendingScores = new float[pendingNodes.length];
+		float[] offsets = new float[this.data.getDimension()];
+		boolean[] crossed = new boolean[offsets.length];
+		int top = 0;
+		int node = this.tree.getRoot();
+		float score = 0f;
 		
-		// build children
-		Node leftChild;
-		Node rightChild;
-		if( leftImageIndices.size() == 0 ) {
-			leftChild = null;
-		} else if( leftImageIndices.size() == 1 ) {
-			if(this.bestBinFirst) {
-				leftChild = new BestBinFirstLeaf(leftImageIndices.get(0), leftDescIndices.get(0));
-			} else {
-				leftChild = new KdLeaf(leftImageIndices.get(0), leftDescIndices.get(0));				
+		nodeQueue.clear();
+		while( true ) {
+			// visit node
+			if( node != FlatKdTree.NONE ) {
+				if( FlatKdTree.isLeaf(node) ) {
+					if( counters.getVisitedLeaves() <= this.maxLeaves ) {
+						this.scanLeaf(q, qid, matches, FlatKdTree.getLeaf(node), counters);
+						node = this.nextNode(q, nodeQueue, matches, counters, offsets, crossed);
+						score = nodeQueue.getLastScore();
+						continue;
+					}
+				} else if( counters.getVisitedLeaves() < this.maxLeaves ) {
+					int d = this.tree.getSplitDimension(node);
+					float distanceToSplit = q[d] - this.tree.getSplitValue(node);
+					if( top == pendingNodes.length ) {
+						pendingNodes = Arrays.copyOf(pendingNodes, 2 * top);
+						pendingScores = Arrays.copyOf(pendingScores, 2 * top);
+					}
+					if( distanceToSplit <= 0 ) {
+						pendingNodes[top] = this.tree.getRightChild(node);
+						node = this.tree.getLeftChild(node);
+					} else {
+						pendingNodes[top] = this.tree.getLeftChild(node);
+						node = this.tree.getRightChild(node);
+					}
+					pendingScores[top] = score - offsets[d] * offsets[d] + distanceToSplit * distanceToSplit;
+					top++;
+					continue;
+				}
 			}
-		} else {
-			leftChild = buildKdNodes(data, leftImageIndices, leftDescIndices);				
-		}
-		if( rightImageIndices.size() == 0 ) {
-			rightChild = null;
-		} else if( rightImageIndices.size() == 1 ) {
-			if(this.bestBinFirst) {
-				rightChild = new BestBinFirstLeaf(rightImageIndices.get(0), rightDescIndices.get(0));
-			} else {
-				rightChild = new KdLeaf(rightImageIndices.get(0), rightDescIndices.get(0));				
+			
+			// end of a visit: resume the last pending internal node
+			if( top == 0 ) {
+				return;
 			}
-		} else {
-			rightChild = buildKdNodes(data, rightImageIndices, rightDescIndices);
-		}
-	
-		// build node
-		Node newNode;
-		if(this.bestBinFirst) {
-			newNode = new BestBinFirstInternalNode(maxVarianceDimension, splitValue, (BestBinFirstNode)leftChild, (BestBinFirstNode)rightChild);
-		} else {
-			newNode = new KdInternalNode(maxVarianceDimension, splitValue, leftChild, rightChild);
+			top--;
+			if( pendingNodes[top] != FlatKdTree.NONE && pendingScores[top] < matches.getSquaredDistanceBound() ) {
+				nodeQueue.addNode(pendingNodes[top], pendingScores[top]);
+			}
+			node = this.nextNode(q, nodeQueue, matches, counters, offsets, crossed);
+			score = nodeQueue.getLastScore();
 		}
-
-		return newNode;
 	}
 	
-	@Override
-	public void index(MatVector data) {
-		ArrayList<Integer> imageIndices = new ArrayList<Integer>();
-		ArrayList<Integer> descIndices = new ArrayList<Integer>();
-		
-		for( int i = 0 ; i < data.size() ; i++ ) {
-			for( int j = 0 ; j < data.get(i).rows() ; j++ ) {
-				imageIndices.add(i);
-				descIndices.add(j);
+	/**
+	 * Takes the next node to visit from the best bin first queue, skipping
+	 * the nodes whose score is not lower than the distance bound, and sets
+	 * the offsets of the query to its region.
+	 * @param q Query vector.
+	 * @param nodeQueue Queue of the nodes to visit.
+	 * @param matches Matches found so far.
+	 * @param counters Counters of the search.
+	 * @param offsets Array receiving the offsets of the node.
+	 * @param crossed Array used to compute the offsets.
+	 * @return The reference of the next node, or NONE if the queue has no
+	 * node left to visit or if no more leaf can be visited.
+	 */
+	private int nextNode(float[] q, BestBinFirstPriorityQueue nodeQueue, SearchResults matches, TraversalCounters counters,
+			float[] offsets, boolean[] crossed) {
+		while( nodeQueue.hasNext() && counters.getVisitedLeaves() <= this.maxLeaves ) {
+			int node = nodeQueue.getNext();
+			if( nodeQueue.getLastScore() < matches.getSquaredDistanceBound() ) {
+				if( !FlatKdTree.isLeaf(node) ) {
+					this.tree.computeOffsets(q, node, offsets, crossed);
+				}
+				return node;
 			}
 		}
-		
-		this.root = this.buildKdNodes(data, imageIndices, descIndices);
-		this.data = data;
+		return FlatKdTree.NONE;
 	}
 
-
 	/**
 	 * Performs a search of matches for query vector q in the collection.
 	 * @param q Query row vector.
@@ -207,17 +377,41 @@ public class KdTree implements Index {
 	 * search performed (k-NN or radius search).
 	 * @return The matches of the query vector in the database.
 	 */
-	private DMatchVector search(Mat q, int qid, SearchResults matches) {
+	private DMatchVector search(float[] q, int qid, SearchResults matches) {
 		
-		AtomicInteger visitedLeaves = new AtomicInteger(0);
-		this.root.traverse(q, qid, matches, this.data, visitedLeaves, this.maxLeaves);
+		TraversalCounters counters = new TraversalCounters();
+		if( this.bestBinFirst ) {
+			this.bestBinFirstSearch(q, qid, matches, counters);
+		} else {
+			this.branchAndBoundSearch(q, qid, matches, counters);
+		}
+		this.visitedLeafCount.add(counters.getVisitedLeaves());
+		this.abandonedCount.add(counters.getAbandonedDistances());
 		
 		return matches.toDMatchVector();
 	}
 	
+	/**
+	 * Gets the number of leaves visited by searches since the creation of the
+	 * index. Each visited leaf is a bucket of up to leafSize vectors.
+	 * @return The number of visited leaves.
+	 */
+	public long getVisitedLeafCount() {
+		return this.visitedLeafCount.sum();
+	}
+	
+	/**
+	 * Gets the number of distance computations that were abandoned because
+	 * the candidate could not enter the matches.
+	 * @return The number of abandoned distance computations.
+	 */
+	public long getAbandonedCount() {
+		return this.abandonedCount.sum();
+	}
+	
 	@Override
 	public DMatchVectorVector knnQuery(Mat query, int k) {
-		if( this.data == null || this.root == null ) {
+		if( this.data == null || this.tree == null || this.tree.getRoot() == FlatKdTree.NONE ) {
 			System.err.println("Error: no data indexed. Cannot perform search.");
 			return null;
 		}
@@ -228,7 +422,7 @@ public class KdTree implements Index {
 		
 		DMatchVectorVector results = new DMatchVectorVector(query.rows());
 		for( int i = 0 ; i < query.rows() ; i++ ) {
-			results.put(i, this.search(query.row(i), i, new KnnSearchResults(k)));
+			results.put(i, this.search(DescriptorStore.rowToArray(query, i), i, new KnnSearchResults(k)));
 		}
 		
 		return results;
@@ -236,7 +430,7 @@ public class KdTree implements Index {
 
 	@Override
 	public DMatchVectorVector epsQuery(Mat query, float eps) {
-		if( this.data == null || this.root == null ) {
+		if( this.data == null || this.tree == null || this.tree.getRoot() == FlatKdTree.NONE ) {
 			System.err.println("Error: no data indexed. Cannot perform search.");
 			return null;
 		}
@@ -247,7 +441,7 @@ public class KdTree implements Index {
 		
 		DMatchVectorVector results = new DMatchVectorVector(query.rows());
 		for( int i = 0 ; i < query.rows() ; i++ ) {
-			results.put(i, this.search(query.row(i), i, new EpsSearchResults(eps)));
+			results.put(i, this.search(DescriptorStore.rowToArray(query, i), i, new EpsSearchResults(eps)));
 		}
 		
 		return results;
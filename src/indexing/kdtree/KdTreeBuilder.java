@@ -0,0 +1,546 @@
+package indexing.kdtree;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import indexing.utils.DescriptorStore;
+
+/**
+ * Builder of kd-trees over the rows of a DescriptorStore.
+ * 
+ * Each node splits its rows at the median of one dimension. By default, the
+ * split dimension is the dimension of largest variance. With random splits
+ * (see setRandomSplits()), it is picked at random among the dimensions of
+ * largest variance, as in randomized kd-trees. The random choice only
+ * depends on the seed and on the range of rows of the node, so that a tree
+ * is the same whether it is built sequentially or in parallel.
+ * 
+ * The rows are not moved: the builder partitions a permutation of the rows
+ * in place, and leaves refer to ranges of this permutation (see
+ * getPermutation()).
+ * 
+ * If a ForkJoinPool is given, the tree is built in parallel: subtrees of
+ * large nodes are built as separate tasks, and the means and variances of
+ * the largest nodes are computed by parallel reductions over their rows.
+ */
+class KdTreeBuilder {
+
+	/**
+	 * Minimum number of rows of a node for its subtrees to be built as
+	 * separate tasks in parallel build.
+	 */
+	private static final int PARALLEL_BUILD_THRESHOLD = 1 << 14;
+	
+	/**
+	 * Minimum number of rows of a node for its means and variances to be
+	 * computed in parallel.
+	 */
+	private static final int PARALLEL_MOMENTS_THRESHOLD = 1 << 17;
+	
+	/**
+	 * Number of rows below which a parallel reduction of means or variances
+	 * is not split further.
+	 */
+	private static final int MOMENTS_BLOCK = 1 << 15;
+	
+	/**
+	 * Data the tree is built on.
+	 */
+	private DescriptorStore data;
+	
+	/**
+	 * Maximum number of vectors stored in a leaf.
+	 */
+	private int leafSize;
+	
+	/**
+	 * Pool running the parallel build, or null for sequential build.
+	 */
+	private ForkJoinPool pool;
+	
+	/**
+	 * Number of dimensions of largest variance among which the split
+	 * dimension is picked (1 for the dimension of largest variance).
+	 */
+	private int nbSplitCandidates;
+	
+	/**
+	 * Seed of the random choice of split dimensions.
+	 */
+	private long seed;
+	
+	/**
+	 * Permutation of the rows computed by the last build.
+	 */
+	private int[] permutation;
+	
+	/**
+	 * Creates a builder splitting nodes on their dimension of largest
+	 * variance.
+	 * @param data Data the tree is built on.
+	 * @param leafSize Maximum number of vectors stored in a leaf.
+	 * @param pool Pool running the build. If null, the build is sequential.
+	 */
+	public KdTreeBuilder(DescriptorStore data, int leafSize, ForkJoinPool pool) {
+		this.data = data;
+		this.leafSize = Math.max(1, leafSize);
+		this.pool = pool;
+		this.nbSplitCandidates = 1;
+		this.seed = 0;
+		this.permutation = null;
+	}
+	
+	/**
+	 * Makes the builder pick the split dimension of each node at random among
+	 * its dimensions of largest variance.
+	 * @param nbSplitCandidates Number of dimensions of largest variance the
+	 * split dimension is picked from.
+	 * @param seed Seed of the random choices.
+	 */
+	public void setRandomSplits(int nbSplitCandidates, long seed) {
+		this.nbSplitCandidates = Math.max(1, Math.min(nbSplitCandidates, this.data.getDimension()));
+		this.seed = seed;
+	}
+	
+	/**
+	 * Builds a kd-tree over all the rows of the data.
+	 * @return The tree. Its leaves refer to positions in the permutation
+	 * returned by getPermutation().
+	 */
+	public FlatKdTree build() {
+		BuildBuffers buffers = new BuildBuffers(this.data.size(), this.data.getDimension());
+		FlatKdTree.BuildNode root;
+		if( this.pool == null ) {
+			root = this.buildChild(buffers, 0, this.data.size());
+		} else {
+			root = this.pool.invoke(new SubtreeBuild(buffers, 0, this.data.size()));
+		}
+		this.permutation = buffers.rows;
+		return new FlatKdTree(root);
+	}
+	
+	/**
+	 * Gets the permutation of the rows computed by the last build: the rows
+	 * of a leaf are the values of the permutation between its start and end.
+	 * @return The permutation, or null if no tree was built.
+	 */
+	public int[] getPermutation() {
+		return this.permutation;
+	}
+	
+	/**
+	 * Buffers used during the construction of the tree. The permutation of
+	 * the rows is partitioned in place, and values is aligned with it. In
+	 * parallel build, tasks share the permutation and values (they work on
+	 * disjoint ranges) but have their own means and variances.
+	 */
+	private static class BuildBuffers {
+		
+		/**
+		 * Permutation of the rows of the indexed data.
+		 */
+		private int[] rows;
+		
+		/**
+		 * Values of the rows along the split dimension of the node being built.
+		 */
+		private float[] values;
+		
+		/**
+		 * Means of the rows of the node being built.
+		 */
+		private double[] means;
+		
+		/**
+		 * Variances (up to a factor) of the rows of the node being built.
+		 */
+		private double[] variances;
+		
+		/**
+		 * Creates the buffers for given data.
+		 * @param size Number of rows of the indexed data.
+		 * @param dimension Dimension of the indexed data.
+		 */
+		private BuildBuffers(int size, int dimension) {
+			this.rows = new int[size];
+			for( int i = 0 ; i < size ; i++ ) {
+				this.rows[i] = i;
+			}
+			this.values = new float[size];
+			this.means = new double[dimension];
+			this.variances = new double[dimension];
+		}
+		
+		/**
+		 * Creates buffers sharing the permutation and values of other buffers.
+		 * @param shared The buffers to share.
+		 */
+		private BuildBuffers(BuildBuffers shared) {
+			this.rows = shared.rows;
+			this.values = shared.values;
+			this.means = new double[shared.means.length];
+			this.variances = new double[shared.variances.length];
+		}
+		
+		/**
+		 * Swaps two positions of the permutation.
+		 * @param i First position.
+		 * @param j Second position.
+		 */
+		private void swap(int i, int j) {
+			int row = this.rows[i];
+			this.rows[i] = this.rows[j];
+			this.rows[j] = row;
+			float value = this.values[i];
+			this.values[i] = this.values[j];
+			this.values[j] = value;
+		}
+	}
+	
+	/**
+	 * Builds the kd-tree for a range of the permutation of the indexed rows.
+	 * The node for current data is built, and children are recursively built
+	 * based on data split at the median of the chosen split dimension (see
+	 * chooseSplitDimension()).
+	 * Rather than splitting actual data, the permutation is partitioned in
+	 * place: the rows of the left child are moved before the rows of the
+	 * right child. The median is found by quickselect.
+	 * @param buffers Build buffers.
+	 * @param start First position of the range.
+	 * @param end Position following the last position of the range.
+	 * @return The root of the kd-tree built based on the rows of the range.
+	 */
+	private FlatKdTree.BuildNode buildKdNodes(BuildBuffers buffers, int start, int end) {
+		int dim = this.data.getDimension();
+		float[] vectors = this.data.getVectors();
+		int[] rows = buffers.rows;
+		float[] values = buffers.values;
+		double[] means = buffers.means;
+		double[] variances = buffers.variances;
+		int n = end - start;
+		
+		// compute mean and variance
+		if( this.pool != null && n >= PARALLEL_MOMENTS_THRESHOLD ) {
+			double[] sums = new MomentSum(rows, null, start, end).invoke();
+			for( int j = 0 ; j < dim ; j++ ) {
+				means[j] = sums[j] / n;
+			}
+			System.arraycopy(new MomentSum(rows, means, start, end).invoke(), 0, variances, 0, dim);
+		} else {
+			Arrays.fill(means, 0.);
+			Arrays.fill(variances, 0.);
+			this.addMoments(rows, null, start, end, means);
+			for( int j = 0 ; j < dim ; j++ ) {
+				means[j] /= n;
+			}
+			this.addMoments(rows, means, start, end, variances);
+		}
+		
+		// get split dimension
+		int splitDimension = this.chooseSplitDimension(variances, start, end);
+		
+		// find the median
+		for( int i = start ; i < end ; i++ ) {
+			values[i] = vectors[rows[i] * dim + splitDimension];
+		}
+		int middle = start + n / 2;
+		select(buffers, start, end, middle);
+		float splitValue;
+		if( n%2 == 1 ) {
+			splitValue = values[middle];
+		} else {
+			// the lower middle value is the largest value before middle
+			float lower = values[start];
+			for( int i = start + 1 ; i < middle ; i++ ) {
+				if( values[i] > lower ) {
+					lower = values[i];
+				}
+			}
+			splitValue = (lower + values[middle]) / 2f;
+		}
+		
+		// split: values <= splitValue go left
+		int split = partition(buffers, start, end, splitValue);
+		if( split == start ) {
+			for( int i = start ; i < end ; i++ ) {
+				if( values[i] == splitValue ) {
+					buffers.swap(i, start);
+					split++;
+					break;
+				}
+			}
+		} else if( split == end ) {
+			for( int i = start ; i < end ; i++ ) {
+				if( values[i] == splitValue ) {
+					buffers.swap(i, end - 1);
+					split--;
+					break;
+				}
+			}
+		}
+		
+		// build children
+		FlatKdTree.BuildNode leftChild;
+		FlatKdTree.BuildNode rightChild;
+		if( this.pool != null && n >= PARALLEL_BUILD_THRESHOLD ) {
+			SubtreeBuild leftTask = new SubtreeBuild(new BuildBuffers(buffers), start, split);
+			leftTask.fork();
+			rightChild = this.buildChild(buffers, split, end);
+			leftChild = leftTask.join();
+		} else {
+			leftChild = this.buildChild(buffers, start, split);
+			rightChild = this.buildChild(buffers, split, end);
+		}
+	
+		// build node
+		return new FlatKdTree.BuildNode(splitDimension, splitValue, leftChild, rightChild);
+	}
+	
+	/**
+	 * Adds the per-dimension sums of the rows of a range of the permutation,
+	 * or of their squared deviations from given means, to an array.
+	 * @param rows Permutation of the rows.
+	 * @param means Means the deviations are computed from, or null to sum the
+	 * values themselves.
+	 * @param start First position of the range.
+	 * @param end Position following the last position of the range.
+	 * @param sums Array the sums are added to.
+	 */
+	private void addMoments(int[] rows, double[] means, int start, int end, double[] sums) {
+		int dim = this.data.getDimension();
+		float[] vectors = this.data.getVectors();
+		
+		for( int i = start ; i < end ; i++ ) {
+			int offset = rows[i] * dim;
+			if( means == null ) {
+				for( int j = 0 ; j < dim ; j++ ) {
+					sums[j] += vectors[offset + j];
+				}
+			} else {
+				for( int j = 0 ; j < dim ; j++ ) {
+					double d = vectors[offset + j] - means[j];
+					sums[j] += d * d;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Task computing the per-dimension sums of the rows of a range of the
+	 * permutation (or of their squared deviations from means) by splitting
+	 * the range in halves down to MOMENTS_BLOCK rows.
+	 */
+	private class MomentSum extends RecursiveTask<double[]> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private int[] rows;
+		private double[] means;
+		private int start;
+		private int end;
+		
+		/**
+		 * Creates a reduction task.
+		 * @param rows Permutation of the rows.
+		 * @param means Means the deviations are computed from, or null to sum
+		 * the values themselves.
+		 * @param start First position of the range.
+		 * @param end Position following the last position of the range.
+		 */
+		private MomentSum(int[] rows, double[] means, int start, int end) {
+			this.rows = rows;
+			this.means = means;
+			this.start = start;
+			this.end = end;
+		}
+		
+		@Override
+		protected double[] compute() {
+			if( this.end - this.start <= MOMENTS_BLOCK ) {
+				double[] sums = new double[data.getDimension()];
+				addMoments(this.rows, this.means, this.start, this.end, sums);
+				return sums;
+			}
+			int middle = (this.start + this.end) >>> 1;
+			MomentSum left = new MomentSum(this.rows, this.means, this.start, middle);
+			left.fork();
+			double[] sums = new MomentSum(this.rows, this.means, middle, this.end).compute();
+			double[] leftSums = left.join();
+			for( int j = 0 ; j < sums.length ; j++ ) {
+				sums[j] += leftSums[j];
+			}
+			return sums;
+		}
+	}
+	
+	/**
+	 * Task building the subtree of a range of the permutation of the rows.
+	 */
+	private class SubtreeBuild extends RecursiveTask<FlatKdTree.BuildNode> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private BuildBuffers buffers;
+		private int start;
+		private int end;
+		
+		/**
+		 * Creates a subtree build task.
+		 * @param buffers Build buffers of the task.
+		 * @param start First position of the range.
+		 * @param end Position following the last position of the range.
+		 */
+		private SubtreeBuild(BuildBuffers buffers, int start, int end) {
+			this.buffers = buffers;
+			this.start = start;
+			this.end = end;
+		}
+		
+		@Override
+		protected FlatKdTree.BuildNode compute() {
+			return buildChild(this.buffers, this.start, this.end);
+		}
+	}
+	
+	/**
+	 * Builds the child of a node for a range of the permutation of the rows.
+	 * @param buffers Build buffers.
+	 * @param start First position of the range.
+	 * @param end Position following the last position of the range.
+	 * @return Null if the range is empty, a leaf if it contains at most
+	 * leafSize rows, the root of a subtree otherwise. Leaves refer to
+	 * positions in the permutation.
+	 */
+	private FlatKdTree.BuildNode buildChild(BuildBuffers buffers, int start, int end) {
+		if( end == start ) {
+			return null;
+		}
+		if( end - start <= this.leafSize ) {
+			return new FlatKdTree.BuildNode(start, end);
+		}
+		return this.buildKdNodes(buffers, start, end);
+	}
+	
+	/**
+	 * Rearranges a range of the permutation so that position k holds the
+	 * value of rank k - start, smaller or equal values being placed before
+	 * it and greater or equal values after it (quickselect with median of
+	 * three pivots).
+	 * @param buffers Build buffers, values set for the range.
+	 * @param start First position of the range.
+	 * @param end Position following the last position of the range.
+	 * @param k Position to select.
+	 */
+	private static void select(BuildBuffers buffers, int start, int end, int k) {
+		float[] values = buffers.values;
+		int lo = start;
+		int hi = end - 1;
+		
+		while( lo < hi ) {
+			// median of three pivot, moved to lo
+			int mid = (lo + hi) >>> 1;
+			if( values[mid] < values[lo] ) {
+				buffers.swap(mid, lo);
+			}
+			if( values[hi] < values[lo] ) {
+				buffers.swap(hi, lo);
+			}
+			if( values[hi] < values[mid] ) {
+				buffers.swap(hi, mid);
+			}
+			buffers.swap(lo, mid);
+			float pivot = values[lo];
+			
+			// Hoare partition
+			int i = lo;
+			int j = hi + 1;
+			while( true ) {
+				do {
+					i++;
+				} while( i <= hi && values[i] < pivot );
+				do {
+					j--;
+				} while( values[j] > pivot );
+				if( i >= j ) {
+					break;
+				}
+				buffers.swap(i, j);
+			}
+			buffers.swap(lo, j);
+			
+			if( j == k ) {
+				return;
+			} else if( j < k ) {
+				lo = j + 1;
+			} else {
+				hi = j - 1;
+			}
+		}
+	}
+	
+	/**
+	 * Moves the positions of a range whose value is lower or equal to a
+	 * threshold before the other positions.
+	 * @param buffers Build buffers, values set for the range.
+	 * @param start First position of the range.
+	 * @param end Position following the last position of the range.
+	 * @param threshold The threshold.
+	 * @return The first position whose value is greater than threshold.
+	 */
+	private static int partition(BuildBuffers buffers, int start, int end, float threshold) {
+		float[] values = buffers.values;
+		int i = start;
+		int j = end - 1;
+		
+		while( i <= j ) {
+			if( values[i] <= threshold ) {
+				i++;
+			} else {
+				buffers.swap(i, j);
+				j--;
+			}
+		}
+		
+		return i;
+	}
+	
+	/**
+	 * Chooses the split dimension of a node given the variances of its rows.
+	 * @param variances Variances of the rows of the node.
+	 * @param start First position of the range of the node.
+	 * @param end Position following the last position of the range.
+	 * @return The dimension of largest variance, or one of the
+	 * nbSplitCandidates dimensions of largest variance picked at random.
+	 */
+	private int chooseSplitDimension(double[] variances, int start, int end) {
+		int[] candidates = new int[this.nbSplitCandidates];
+		int nbCandidates = 0;
+		
+		// keep the dimensions of largest variance, by decreasing variance
+		for( int i = 0 ; i < variances.length ; i++ ) {
+			if( nbCandidates == candidates.length && variances[i] <= variances[candidates[nbCandidates-1]] ) {
+				continue;
+			}
+			int j = Math.min(nbCandidates, candidates.length - 1);
+			while( j > 0 && variances[candidates[j-1]] < variances[i] ) {
+				candidates[j] = candidates[j-1];
+				j--;
+			}
+			candidates[j] = i;
+			nbCandidates = Math.min(nbCandidates + 1, candidates.length);
+		}
+		if( nbCandidates == 1 ) {
+			return candidates[0];
+		}
+		
+		// hash of the seed and of the range (MurmurHash3 finalizer)
+		long h = this.seed ^ (start * 0x9e3779b97f4a7c15L) ^ (end * 0xc2b2ae3d27d4eb4fL);
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return candidates[(int)((h >>> 1) % nbCandidates)];
+	}
+}
@@ -0,0 +1,58 @@
+package indexing.kdtree;
+
+/**
+ * Counters of a kd-tree search for one query vector: number of leaves
+ * visited, used to stop the search after maxLeaves leaves, and number of
+ * distance computations abandoned early.
+ */
+class TraversalCounters {
+
+	/**
+	 * Number of leaves visited so far.
+	 */
+	private int visitedLeaves;
+	
+	/**
+	 * Number of distance computations abandoned so far.
+	 */
+	private int abandonedDistances;
+	
+	/**
+	 * Creates counters for a new search.
+	 */
+	public TraversalCounters() {
+		this.visitedLeaves = 0;
+		this.abandonedDistances = 0;
+	}
+	
+	/**
+	 * Gets the number of leaves visited so far.
+	 * @return The number of visited leaves.
+	 */
+	public int getVisitedLeaves() {
+		return this.visitedLeaves;
+	}
+	
+	/**
+	 * Counts a visited leaf.
+	 */
+	public void visitLeaf() {
+		this.visitedLeaves++;
+	}
+	
+	/**
+	 * Gets the number of distance computations abandoned so far.
+	 * @return The number of abandoned distance computations.
+	 */
+	public int getAbandonedDistances() {
+		return this.abandonedDistances;
+	}
+	
+	/**
+	 * Counts an abandoned distance computation.
+	 */
+	public void abandonDistance() {
+		this.abandonedDistances++;
+	}
+	
+}
@@ -0,0 +1,628 @@
+package indexing.kmeans;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.bytedeco.javacpp.opencv_core.DMatchVector;
+import org.bytedeco.javacpp.opencv_core.DMatchVectorVector;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.MatVector;
+
+import indexing.Index;
+import indexing.utils.DescriptorStore;
+import indexing.utils.DistanceKernels;
+import indexing.utils.EpsSearchResults;
+import indexing.utils.KMeans;
+import indexing.utils.KnnSearchResults;
+import indexing.utils.MinHeap;
+import indexing.utils.SearchResults;
+
+/**
+ * Hierarchical k-means tree.
+ *
+ * Index structure in which the data is recursively partitioned into
+ * branching clusters by k-means (see KMeans), down to clusters of at most
+ * leafSize vectors, which are the leaves of the tree. Once the tree is
+ * built, the indexed vectors are reordered so that the vectors of each node
+ * are stored in consecutive rows.
+ *
+ * The tree is stored as parallel primitive arrays indexed by node number
+ * (breadth-first order, so that the children of a node have consecutive
+ * numbers), and the cluster centers of all nodes are stored in one
+ * contiguous row-major float array. Each node also stores its radius, the
+ * largest distance from its center to its vectors.
+ *
+ * Search is a priority search (Muja and Lowe): the tree is descended
+ * towards the closest center at each level, the other children being added
+ * to a priority queue ordered by the squared distance of the query to their
+ * center. The search then goes on from the best node of the queue until
+ * checks leaves were visited. A node is skipped if the distance of the query
+ * to its ball (center and radius) is not lower than the distance bound of
+ * the matches, so that the search is exact when checks is not limiting.
+ *
+ * If a ForkJoinPool is given, the tree is built in parallel: the children
+ * of large nodes are built as separate tasks, and the k-means passes over
+ * the rows of large nodes are parallel.
+ */
+public class KMeansTreeIndex implements Index {
+
+	/**
+	 * Minimum number of rows of a node for its children to be built as
+	 * separate tasks in parallel build.
+	 */
+	private static final int PARALLEL_BUILD_THRESHOLD = 1 << 12;
+
+	/**
+	 * Default number of iterations of k-means.
+	 */
+	public static final int DEFAULT_ITERATIONS = 11;
+
+	/**
+	 * Node of the linked representation used during the construction of
+	 * the tree.
+	 */
+	private static class BuildNode {
+
+		private int start;
+		private int end;
+		private float[] center;
+		private float radius;
+		private BuildNode[] children;
+
+		/**
+		 * Creates a node.
+		 * @param start First row of the node.
+		 * @param end Row following the last row of the node.
+		 * @param center Center of the node.
+		 * @param radius Radius of the node.
+		 */
+		private BuildNode(int start, int end, float[] center, float radius) {
+			this.start = start;
+			this.end = end;
+			this.center = center;
+			this.radius = radius;
+			this.children = null;
+		}
+	}
+
+	/**
+	 * Indexed data.
+	 */
+	private DescriptorStore data;
+
+	/**
+	 * Centers of the nodes, node i at i * dimension.
+	 */
+	private float[] centers;
+
+	/**
+	 * Radius of each node.
+	 */
+	private float[] radii;
+
+	/**
+	 * First child of each node.
+	 */
+	private int[] firstChildren;
+
+	/**
+	 * Number of children of each node (0 for a leaf).
+	 */
+	private int[] childCounts;
+
+	/**
+	 * First row of each node.
+	 */
+	private int[] starts;
+
+	/**
+	 * Row following the last row of each node.
+	 */
+	private int[] ends;
+
+	/**
+	 * Number of clusters of each k-means partition.
+	 */
+	private int branching;
+
+	/**
+	 * Number of iterations of k-means.
+	 */
+	private int iterations;
+
+	/**
+	 * Maximum number of vectors stored in a leaf.
+	 */
+	private int leafSize;
+
+	/**
+	 * Maximum number of leaves to visit at each search.
+	 */
+	private int checks;
+
+	/**
+	 * Seed of the random seeding of k-means.
+	 */
+	private long seed;
+
+	/**
+	 * Pool running the parallel build, or null for sequential build.
+	 */
+	private ForkJoinPool pool;
+
+	/**
+	 * Priority queue of each searching thread, reused from one query to the
+	 * next.
+	 */
+	private ThreadLocal<MinHeap> nodeQueues;
+
+	/**
+	 * Number of leaves visited by searches.
+	 */
+	private LongAdder visitedLeafCount;
+
+	/**
+	 * Number of distance computations abandoned early by searches.
+	 */
+	private LongAdder abandonedCount;
+
+	/**
+	 * Creates a hierarchical k-means tree index.
+	 * @param branching Number of children of each internal node.
+	 * @param iterations Number of iterations of k-means.
+	 * @param leafSize Maximum number of vectors stored in a leaf.
+	 * @param checks Maximum number of leaves visited during search.
+	 */
+	public KMeansTreeIndex(int branching, int iterations, int leafSize, int checks) {
+		this(branching, iterations, leafSize, checks, null);
+	}
+
+	/**
+	 * Creates a hierarchical k-means tree index built in parallel.
+	 * @param branching Number of children of each internal node.
+	 * @param iterations Number of iterations of k-means.
+	 * @param leafSize Maximum number of vectors stored in a leaf.
+	 * @param checks Maximum number of leaves visited during search.
+	 * @param pool Pool running the build. If null, the build is sequential.
+	 */
+	public KMeansTreeIndex(int branching, int iterations, int leafSize, int checks, ForkJoinPool pool) {
+		this.data = null;
+		this.branching = Math.max(2, branching);
+		this.iterations = Math.max(0, iterations);
+		this.leafSize = Math.max(1, leafSize);
+		this.checks = checks;
+		this.seed = 0L;
+		this.pool = pool;
+		this.nodeQueues = new ThreadLocal<MinHeap>() {
+			@Override
+			protected MinHeap initialValue() {
+				return new MinHeap(64);
+			}
+		};
+		this.visitedLeafCount = new LongAdder();
+		this.abandonedCount = new LongAdder();
+	}
+
+	/**
+	 * Sets the seed of the random seeding of k-means. Must be called before
+	 * index().
+	 * @param seed The seed.
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Sets the maximum number of leaves visited at each search.
+	 * @param checks The maximum number of leaves.
+	 */
+	public void setChecks(int checks) {
+		this.checks = checks;
+	}
+
+	/**
+	 * Gets the maximum number of leaves visited at each search.
+	 * @return The maximum number of leaves.
+	 */
+	public int getChecks() {
+		return this.checks;
+	}
+
+	/**
+	 * Gets the number of nodes of the tree.
+	 * @return The number of nodes, 0 if no data is indexed.
+	 */
+	public int getNbNodes() {
+		return this.radii == null ? 0 : this.radii.length;
+	}
+
+	@Override
+	public void index(MatVector data) {
+		DescriptorStore store = new DescriptorStore(data);
+		int n = store.size();
+		int dim = store.getDimension();
+		int[] rows = new int[n];
+		for( int i = 0 ; i < n ; i++ ) {
+			rows[i] = i;
+		}
+		int[] assignment = new int[n];
+
+		BuildNode root = null;
+		if( n > 0 ) {
+			// the center of the root is the mean of the data
+			double[] sums = new double[dim];
+			float[] vectors = store.getVectors();
+			for( int i = 0 ; i < n * dim ; i++ ) {
+				sums[i % dim] += vectors[i];
+			}
+			float[] center = new float[dim];
+			for( int j = 0 ; j < dim ; j++ ) {
+				center[j] = (float)(sums[j] / n);
+			}
+			SubtreeBuild build = new SubtreeBuild(store, rows, assignment, 0, n, center);
+			root = this.pool == null ? build.compute() : this.pool.invoke(build);
+		}
+		this.flatten(root, dim);
+		this.data = store.reorder(rows);
+	}
+
+	/**
+	 * Builds the subtree of a range of the permutation of the rows: the rows
+	 * are clustered by k-means, the permutation is sorted by cluster, and
+	 * each cluster becomes a child.
+	 * @param store Data the tree is built on.
+	 * @param rows Permutation of the rows.
+	 * @param assignment Buffer for the clusters of the positions.
+	 * @param start First position of the range.
+	 * @param end Position following the last position of the range.
+	 * @param center Center of the node.
+	 * @return The root of the subtree.
+	 */
+	private BuildNode buildNode(DescriptorStore store, int[] rows, int[] assignment, int start, int end, float[] center) {
+		int dim = store.getDimension();
+		float[] vectors = store.getVectors();
+		int n = end - start;
+
+		float radius = 0f;
+		for( int i = start ; i < end ; i++ ) {
+			radius = Math.max(radius, DistanceKernels.squaredL2(vectors, rows[i] * dim, center, 0, dim));
+		}
+		BuildNode node = new BuildNode(start, end, center, (float)Math.sqrt(radius));
+		if( n <= this.leafSize ) {
+			return node;
+		}
+
+		// cluster the rows
+		boolean parallel = this.pool != null && n >= PARALLEL_BUILD_THRESHOLD;
+		KMeans kmeans = new KMeans(this.branching, this.iterations, parallel ? this.pool : null);
+		float[] childCenters = kmeans.cluster(vectors, dim, rows, start, end, assignment, new Random(this.nodeSeed(start, end)));
+		int nbClusters = childCenters.length / dim;
+
+		// sort the range by cluster (counting sort)
+		int[] bounds = new int[nbClusters + 1];
+		for( int i = start ; i < end ; i++ ) {
+			bounds[assignment[i] + 1]++;
+		}
+		int nbChildren = 0;
+		for( int c = 0 ; c < nbClusters ; c++ ) {
+			if( bounds[c + 1] > 0 ) {
+				nbChildren++;
+			}
+			bounds[c + 1] += bounds[c];
+		}
+		if( nbChildren < 2 ) { // identical vectors cannot be split
+			return node;
+		}
+		int[] sorted = new int[n];
+		int[] next = new int[nbClusters];
+		System.arraycopy(bounds, 0, next, 0, nbClusters);
+		for( int i = start ; i < end ; i++ ) {
+			sorted[next[assignment[i]]++] = rows[i];
+		}
+		System.arraycopy(sorted, 0, rows, start, n);
+
+		// build children
+		node.children = new BuildNode[nbChildren];
+		SubtreeBuild[] tasks = new SubtreeBuild[nbChildren];
+		int child = 0;
+		for( int c = 0 ; c < nbClusters ; c++ ) {
+			if( bounds[c + 1] > bounds[c] ) {
+				float[] childCenter = new float[dim];
+				System.arraycopy(childCenters, c * dim, childCenter, 0, dim);
+				tasks[child++] = new SubtreeBuild(store, rows, assignment, start + bounds[c], start + bounds[c + 1], childCenter);
+			}
+		}
+		if( parallel ) {
+			for( int i = 1 ; i < nbChildren ; i++ ) {
+				tasks[i].fork();
+			}
+			node.children[0] = tasks[0].compute();
+			for( int i = 1 ; i < nbChildren ; i++ ) {
+				node.children[i] = tasks[i].join();
+			}
+		} else {
+			for( int i = 0 ; i < nbChildren ; i++ ) {
+				node.children[i] = tasks[i].compute();
+			}
+		}
+
+		return node;
+	}
+
+	/**
+	 * Computes the seed of the k-means of a node from the seed of the index
+	 * and the range of the node, so that the tree does not depend on the
+	 * order in which nodes are built.
+	 * @param start First position of the range of the node.
+	 * @param end Position following the last position of the range.
+	 * @return The seed.
+	 */
+	private long nodeSeed(int start, int end) {
+		return this.seed * 0x9e3779b97f4a7c15L + ((long)start << 32 | end);
+	}
+
+	/**
+	 * Task building the subtree of a range of the permutation of the rows.
+	 */
+	private class SubtreeBuild extends RecursiveTask<BuildNode> {
+
+		private static final long serialVersionUID = 1L;
+
+		private DescriptorStore store;
+		private int[] rows;
+		private int[] assignment;
+		private int start;
+		private int end;
+		private float[] center;
+
+		/**
+		 * Creates a subtree build task.
+		 * @param store Data the tree is built on.
+		 * @param rows Permutation of the rows.
+		 * @param assignment Buffer for the clusters of the positions.
+		 * @param start First position of the range.
+		 * @param end Position following the last position of the range.
+		 * @param center Center of the root of the subtree.
+		 */
+		private SubtreeBuild(DescriptorStore store, int[] rows, int[] assignment, int start, int end, float[] center) {
+			this.store = store;
+			this.rows = rows;
+			this.assignment = assignment;
+			this.start = start;
+			this.end = end;
+			this.center = center;
+		}
+
+		@Override
+		protected BuildNode compute() {
+			return buildNode(this.store, this.rows, this.assignment, this.start, this.end, this.center);
+		}
+	}
+
+	/**
+	 * Stores a tree as parallel arrays, numbering its nodes in breadth-first
+	 * order.
+	 * @param root Root of the linked representation of the tree, or null for
+	 * an empty tree.
+	 * @param dim Dimension of the data.
+	 */
+	private void flatten(BuildNode root, int dim) {
+		ArrayDeque<BuildNode> queue = new ArrayDeque<BuildNode>();
+		int nbNodes = 0;
+		if( root != null ) {
+			queue.add(root);
+		}
+		while( !queue.isEmpty() ) {
+			BuildNode n = queue.poll();
+			nbNodes++;
+			if( n.children != null ) {
+				for( BuildNode child : n.children ) {
+					queue.add(child);
+				}
+			}
+		}
+
+		this.centers = new float[nbNodes * dim];
+		this.radii = new float[nbNodes];
+		this.firstChildren = new int[nbNodes];
+		this.childCounts = new int[nbNodes];
+		this.starts = new int[nbNodes];
+		this.ends = new int[nbNodes];
+
+		// a child is numbered when its parent is dequeued
+		int node = 0;
+		int nextNode = 1;
+		if( root != null ) {
+			queue.add(root);
+		}
+		while( !queue.isEmpty() ) {
+			BuildNode n = queue.poll();
+			System.arraycopy(n.center, 0, this.centers, node * dim, dim);
+			this.radii[node] = n.radius;
+			this.starts[node] = n.start;
+			this.ends[node] = n.end;
+			this.firstChildren[node] = nextNode;
+			if( n.children != null ) {
+				this.childCounts[node] = n.children.length;
+				nextNode += n.children.length;
+				for( BuildNode child : n.children ) {
+					queue.add(child);
+				}
+			}
+			node++;
+		}
+	}
+
+	/**
+	 * Computes a lower bound of the squared distance of the query to the
+	 * vectors of a node.
+	 * @param node Number of the node.
+	 * @param squaredDistance Squared distance of the query to the center of
+	 * the node.
+	 * @return The squared distance of the query to the ball of the node.
+	 */
+	private float lowerBound(int node, float squaredDistance) {
+		float gap = (float)Math.sqrt(squaredDistance) - this.radii[node];
+		return gap <= 0f ? 0f : gap * gap;
+	}
+
+	/**
+	 * Computes the distances of the query to the vectors of a leaf and adds
+	 * them to the matches. Distance computations are abandoned as soon as they
+	 * exceed the distance bound of the matches.
+	 * @param q Query vector.
+	 * @param qid ID of the query.
+	 * @param matches Matches found so far.
+	 * @param leaf Number of the leaf.
+	 * @return The number of abandoned distance computations.
+	 */
+	private int scanLeaf(float[] q, int qid, SearchResults matches, int leaf) {
+		float squaredBound = matches.getSquaredDistanceBound();
+		float squared;
+		int abandoned = 0;
+
+		for( int row = this.starts[leaf] ; row < this.ends[leaf] ; row++ ) {
+			squared = this.data.boundedSquaredDistance(q, 0, row, squaredBound);
+			if( squared <= squaredBound ) {
+				matches.add(qid, this.data.getDescIdx(row), this.data.getImageIdx(row), squared);
+				squaredBound = matches.getSquaredDistanceBound();
+			} else {
+				abandoned++;
+			}
+		}
+		return abandoned;
+	}
+
+	/**
+	 * Performs a search of matches for query vector q in the collection.
+	 * @param q Query row vector.
+	 * @param qid ID of the query.
+	 * @param matches Empty match container depending on the type of
+	 * search performed (k-NN or radius search).
+	 * @return The matches of the query vector in the database.
+	 */
+	private DMatchVector search(float[] q, int qid, SearchResults matches) {
+		MinHeap nodeQueue = this.nodeQueues.get();
+		int dim = this.data.getDimension();
+		int visitedLeaves = 0;
+		int abandoned = 0;
+
+		nodeQueue.clear();
+		nodeQueue.add(0, 0f);
+		while( !nodeQueue.isEmpty() && visitedLeaves < this.checks ) {
+			float squaredDistance = nodeQueue.peekKey();
+			int node = nodeQueue.poll();
+			if( node != 0 && this.lowerBound(node, squaredDistance) >= matches.getSquaredDistanceBound() ) {
+				continue;
+			}
+
+			// descend towards the closest centers
+			while( this.childCounts[node] > 0 ) {
+				int first = this.firstChildren[node];
+				int closest = first;
+				float closestDistance = Float.MAX_VALUE;
+				for( int c = first ; c < first + this.childCounts[node] ; c++ ) {
+					float d = DistanceKernels.squaredL2(q, 0, this.centers, c * dim, dim);
+					if( d < closestDistance ) {
+						if( closest != c ) {
+							this.defer(nodeQueue, closest, closestDistance, matches);
+						}
+						closest = c;
+						closestDistance = d;
+					} else {
+						this.defer(nodeQueue, c, d, matches);
+					}
+				}
+				node = closest;
+				if( this.lowerBound(node, closestDistance) >= matches.getSquaredDistanceBound() ) {
+					node = -1;
+					break;
+				}
+			}
+
+			if( node >= 0 ) {
+				abandoned += this.scanLeaf(q, qid, matches, node);
+				visitedLeaves++;
+			}
+		}
+		this.visitedLeafCount.add(visitedLeaves);
+		this.abandonedCount.add(abandoned);
+
+		return matches.toDMatchVector();
+	}
+
+	/**
+	 * Adds a node to the priority queue if it may contain a closer match than
+	 * the current ones.
+	 * @param nodeQueue The priority queue.
+	 * @param node Number of the node.
+	 * @param squaredDistance Squared distance of the query to the center of
+	 * the node.
+	 * @param matches Matches found so far.
+	 */
+	private void defer(MinHeap nodeQueue, int node, float squaredDistance, SearchResults matches) {
+		if( this.lowerBound(node, squaredDistance) < matches.getSquaredDistanceBound() ) {
+			nodeQueue.add(node, squaredDistance);
+		}
+	}
+
+	/**
+	 * Gets the number of leaves visited by searches since the creation of the
+	 * index.
+	 * @return The number of visited leaves.
+	 */
+	public long getVisitedLeafCount() {
+		return this.visitedLeafCount.sum();
+	}
+
+	/**
+	 * Gets the number of distance computations that were abandoned because
+	 * the candidate could not enter the matches.
+	 * @return The number of abandoned distance computations.
+	 */
+	public long getAbandonedCount() {
+		return this.abandonedCount.sum();
+	}
+
+	@Override
+	public DMatchVectorVector knnQuery(Mat query, int k) {
+		if( this.data == null || this.data.size() == 0 ) {
+			System.err.println("Error: no data indexed. Cannot perform search.");
+			return null;
+		}
+		if( query == null ) {
+			System.err.println("Error: null query. Cannot perform search.");
+			return null;
+		}
+
+		DMatchVectorVector results = new DMatchVectorVector(query.rows());
+		for( int i = 0 ; i < query.rows() ; i++ ) {
+			results.put(i, this.search(DescriptorStore.rowToArray(query, i), i, new KnnSearchResults(k)));
+		}
+
+		return results;
+	}
+
+	@Override
+	public DMatchVectorVector epsQuery(Mat query, float eps) {
+		if( this.data == null || this.data.size() == 0 ) {
+			System.err.println("Error: no data indexed. Cannot perform search.");
+			return null;
+		}
+		if( query == null ) {
+			System.err.println("Error: null query. Cannot perform search.");
+			return null;
+		}
+
+		DMatchVectorVector results = new DMatchVectorVector(query.rows());
+		for( int i = 0 ; i < query.rows() ; i++ ) {
+			results.put(i, this.search(DescriptorStore.rowToArray(query, i), i, new EpsSearchResults(eps)));
+		}
+
+		return results;
+	}
+
+}
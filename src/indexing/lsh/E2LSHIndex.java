@@ -2,19 +2,24 @@ package indexing.lsh;
 
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.bytedeco.javacpp.opencv_core;
-import org.bytedeco.javacpp.opencv_core.DMatch;
 import org.bytedeco.javacpp.opencv_core.DMatchVector;
 import org.bytedeco.javacpp.opencv_core.DMatchVectorVector;
 import org.bytedeco.javacpp.opencv_core.Mat;
 import org.bytedeco.javacpp.opencv_core.MatVector;
 import org.bytedeco.javacpp.opencv_core.RNG;
 import org.bytedeco.javacpp.indexer.FloatIndexer;
-import org.bytedeco.javacpp.indexer.ShortIndexer;
 
 import indexing.Index;
+import indexing.utils.DescriptorStore;
+import indexing.utils.DistanceKernels;
 import indexing.utils.EpsSearchResults;
+import indexing.utils.KnnSearchResults;
+import indexing.utils.SearchResults;
+import indexing.utils.VisitedRows;
 
 /**
  * Implementation of a E2LSH index.
@@ -27,10 +32,28 @@ import indexing.utils.EpsSearchResults;
  * Querying is performed by hashing the query vector and returning the matches in the corresponding
  * buckets of each table.
  * 
+ * In multi-probe mode (see setNbProbes()), several buckets are searched in each table: the bucket of
+ * the query, then the buckets obtained by moving some q(.) components by one step, in increasing order
+ * of the squared distance of the query projections to the crossed bucket boundaries (see
+ * ProbeSequence). Fewer tables are then needed for the same recall.
+ * 
+ * k-NN queries compute the exact distances of the candidates found in the buckets and keep the k
+ * closest ones. If fewer than k candidates are found, the number of buckets searched per table is
+ * doubled until k candidates are found or MAX_NB_PROBES buckets are searched per table.
+ * 
+ * The index is built by projecting the rows of the collection once, by blocks (a matrix product between
+ * the axes and a block of rows), and keeping their h(.) values (2 bytes per row and projection). The
+ * hashtables are then filled at once, by batches of tables whose keys are derived from these values.
+ * If a ForkJoinPool is given, blocks of rows are projected and hashed in parallel and the tables of a
+ * batch are filled in parallel.
+ * 
  * For the sake of efficiency, qj(.) elements are picked at random from a set of precomputed h(.) values,
  * so the same hi(.) may be used in several qi(.) (but no more than once in each qj(.)).
  * 
- * Data is stored in hashtables using q(.) as key. The hashing method for q(.) is borrowed from P. Indyk's
+ * Data is stored in hashtables using q(.) as key. The k components of q(.) are packed into a 128-bit key
+ * (two longs), with 16 bits per component if k <= 8. For longer codes, only the 128 / k low bits of each
+ * component are kept, so that distinct q(.) values may share a key: this only adds candidates, which are
+ * checked against their exact distance. The hashing method for keys is borrowed from P. Indyk's
  * implementation. The size of the actual hashtables has a impact on the efficiency of the index.
  * 
  * @author Pierre Tirilly - pierre.tirilly@imt-lille-douai.fr
@@ -38,26 +61,74 @@ import indexing.utils.EpsSearchResults;
  */
 public class E2LSHIndex implements Index {
 
+	/**
+	 * Default seed of the random projections and hash functions (default
+	 * state of the OpenCV random number generator).
+	 */
+	public static final long DEFAULT_SEED = 0xFFFFFFFFl;
+	
+	/**
+	 * Maximum number of buckets searched per table when k-NN queries widen
+	 * their search.
+	 */
+	public static final int MAX_NB_PROBES = 1024;
+	
+	/**
+	 * Number of rows projected at once.
+	 */
+	private static final int PROJECTION_BLOCK = 256;
+	
+	/**
+	 * Number of rows below which a parallel hashing task is not split
+	 * further.
+	 */
+	private static final int HASHING_BLOCK = 1 << 13;
+	
+	/**
+	 * Pool running the parallel build, or null for sequential build.
+	 */
+	private ForkJoinPool pool;
+	
+	/**
+	 * Number of buckets searched in each table.
+	 */
+	private int nbProbes;
+
 	/**
 	 * Hashtables.
 	 */
 	private LSHashtable[] tables;
 	
 	/**
-	 * Projection axes (a_i). Each row is an axis.
+	 * Projection axes (a_i), stored row after row.
 	 */
-	private Mat q1Axes;
+	private float[] q1Axes;
 	
 	/**
 	 * Projection shift (b_i).
 	 */
-	private Mat q1Bias;
+	private float[] q1Bias;
 	
 	/**
-	 * q(.) functions of the index. Each row is a qj(.) and contains
+	 * Number of random projections h(.).
+	 */
+	private int nbProjections;
+	
+	/**
+	 * Dimension of the data vectors.
+	 */
+	private int dim;
+	
+	/**
+	 * q(.) functions of the index. Each entry is a qj(.) and contains
 	 * the indices (in q1Axes and q1Bias) of the h(.) functions used.
 	 */
-	private Mat q2subspaces;
+	private int[][] q2subspaces;
+	
+	/**
+	 * Number of bits of each q(.) component in the packed keys.
+	 */
+	private int componentBits;
 	
 	/**
 	 * Quantification step W.
@@ -68,15 +139,47 @@ public class E2LSHIndex implements Index {
 	 * Indexed vectors. Each entry corresponds to one collection image
 	 * and contains the image descriptors (one per row).
 	 */
-	private MatVector data;
+	private DescriptorStore data;
+	
+	/**
+	 * Search state of each querying thread.
+	 */
+	private ThreadLocal<SearchState> searchStates;
+	
+	/**
+	 * Hash function of the keys of the hashtables.
+	 */
+	private Hasher hasher;
 	
 	/**
 	 * Random number generator.
 	 */
-	private RNG rng = new RNG();
+	private RNG rng;
 	
 	/**
-	 * Creates a new E2LSH index.
+	 * State of the search of a thread: rows of the indexed data already
+	 * gathered as candidates for the current query, keys and probe sequence.
+	 */
+	private class SearchState {
+		
+		private VisitedRows visited;
+		private long[] key;
+		private long[] probeKey;
+		private ProbeSequence sequence;
+		
+		/**
+		 * Creates the search state for the indexed data.
+		 */
+		private SearchState() {
+			this.visited = new VisitedRows(data.size());
+			this.key = new long[2];
+			this.probeKey = new long[2];
+			this.sequence = new ProbeSequence(q2subspaces.length == 0 ? 0 : q2subspaces[0].length);
+		}
+	}
+	
+	/**
+	 * Creates a new E2LSH index with the default seed.
 	 * @param d Dimension of the data vectors to be indexed.
 	 * @param m Number of random projections h(.) used.
 	 * @param k Length of q(.) codes.
@@ -85,13 +188,67 @@ public class E2LSHIndex implements Index {
 	 * @param w Quantization step.
 	 */
 	public E2LSHIndex( int d, int m, int k, int l, int table_size, float w ) {
-		this.q1Axes = this.initQ1Axes( m, d );
-		this.q1Bias = this.initQ1Bias( m, w );
+		this( d, m, k, l, table_size, w, DEFAULT_SEED );
+	}
+	
+	/**
+	 * Creates a new E2LSH index. Indices created with the same parameters
+	 * and seed hash the data identically.
+	 * @param d Dimension of the data vectors to be indexed.
+	 * @param m Number of random projections h(.) used.
+	 * @param k Length of q(.) codes.
+	 * @param l Number of hashtables.
+	 * @param table_size Size of the actual hashtables storing the data.
+	 * @param w Quantization step.
+	 * @param seed Seed of the random projections and hash functions.
+	 */
+	public E2LSHIndex( int d, int m, int k, int l, int table_size, float w, long seed ) {
+		this( d, m, k, l, table_size, w, seed, null );
+	}
+	
+	/**
+	 * Creates a new E2LSH index built in parallel.
+	 * @param d Dimension of the data vectors to be indexed.
+	 * @param m Number of random projections h(.) used.
+	 * @param k Length of q(.) codes.
+	 * @param l Number of hashtables.
+	 * @param table_size Size of the actual hashtables storing the data.
+	 * @param w Quantization step.
+	 * @param seed Seed of the random projections and hash functions.
+	 * @param pool Pool running the build. If null, the build is sequential.
+	 */
+	public E2LSHIndex( int d, int m, int k, int l, int table_size, float w, long seed, ForkJoinPool pool ) {
+		this.rng = new RNG( seed );
+		this.hasher = new Hasher( seed );
+		this.q1Axes = DescriptorStore.toArray( this.initQ1Axes( m, d ) );
+		this.q1Bias = DescriptorStore.toArray( this.initQ1Bias( m, w ) );
+		this.nbProjections = m;
+		this.dim = d;
+		this.pool = pool;
 		this.q2subspaces = this.initQ2Subspaces( l, k, m );
+		this.componentBits = k <= 8 ? 16 : Math.max(1, 128 / k);
 		this.initTables(l, table_size);
 		this.w = w;
-		Hasher.setInstance(k, table_size);
+		this.nbProbes = 1;
 		this.data = null;
+		this.searchStates = null;
+	}
+	
+	/**
+	 * Sets the number of buckets searched in each table by queries. If
+	 * greater than 1, queries are performed in multi-probe mode.
+	 * @param nbProbes The number of buckets per table.
+	 */
+	public void setNbProbes(int nbProbes) {
+		this.nbProbes = Math.max(1, nbProbes);
+	}
+	
+	/**
+	 * Gets the number of buckets searched in each table by queries.
+	 * @return The number of buckets per table.
+	 */
+	public int getNbProbes() {
+		return this.nbProbes;
 	}
 	
 	/**
@@ -102,7 +259,7 @@ public class E2LSHIndex implements Index {
 	private void initTables(int nb_tables, int table_size) {
 		this.tables = new LSHashtable[nb_tables];
 		for( int i = 0 ; i < this.tables.length ; i++ ) {
-			this.tables[i] = new LSHashtable(table_size);
+			this.tables[i] = new LSHashtable(table_size, this.hasher);
 		}
 	}
 	
@@ -155,22 +312,21 @@ public class E2LSHIndex implements Index {
 	 * @param nb_subspaces Number of q(.) hash functions.
 	 * @param subspace_size Size (number of projections) of the q(.) hash functions.
 	 * @param space_size Total number of projections available.
-	 * @return A matrix representing the q(.) functions. Each row is a functions and
-	 * contains the indices of its h(.) in the q1Axes/q1Bias matrix/vector.
+	 * @return The q(.) functions. Each entry is a function and contains the
+	 * indices of its h(.) in the q1Axes/q1Bias matrix/vector.
 	 */
-	private Mat initQ2Subspaces( int nb_subspaces, int subspace_size, int space_size ) {
-		Mat subspaces = new Mat( nb_subspaces, subspace_size, opencv_core.CV_16S );
-		ShortIndexer idx = (ShortIndexer)subspaces.createIndexer();
+	private int[][] initQ2Subspaces( int nb_subspaces, int subspace_size, int space_size ) {
+		int[][] subspaces = new int[nb_subspaces][subspace_size];
 		Set<Short> currentIndices = new HashSet<Short>();
 		short currentIndex;
 		
-		for ( int i = 0 ; i < idx.rows() ; i++ ) {
-			for ( int j = 0 ; j < idx.cols() ; j++ ) {
+		for ( int i = 0 ; i < subspaces.length ; i++ ) {
+			for ( int j = 0 ; j < subspace_size ; j++ ) {
 				currentIndex = (short)this.rng.uniform(0, space_size);
 				while ( currentIndices.contains(currentIndex) ) {
 					currentIndex = (short)this.rng.uniform(0, space_size);
 				}
-				idx.put(i, j, currentIndex);
+				subspaces[i][j] = currentIndex;
 				currentIndices.add(currentIndex);
 			}
 			currentIndices.clear();
@@ -180,106 +336,331 @@ public class E2LSHIndex implements Index {
 	}
 	
 	/**
-	 * Fill given float matrix with given value.
-	 * @param m Float matrix to fill.
-	 * @param value Value to fill the matrix with.
+	 * Projects rows of vectors on the random axes and quantifies the
+	 * projections. Dot products are computed by blocks of PROJECTION_BLOCK
+	 * rows, as a matrix product between the axes and the rows.
+	 * @param vectors The vectors to be quantized, stored row after row.
+	 * @param start First row to quantize.
+	 * @param end Row following the last row to quantize.
+	 * @param codes Array receiving the quantification values h(.), row after
+	 * row, from row start.
+	 * @param fractions Array receiving the position of each projection within
+	 * its quantization step, between 0 and 1, or null.
 	 */
-	private void fillCV32FMat(Mat m, float value) {
-		FloatIndexer idx = (FloatIndexer)m.createIndexer();
-		for( int i = 0 ; i < idx.rows() ; i++ ) {
-			for( int j = 0 ; j < idx.cols() ; j++ ) {
-				idx.put(i,  j, value);
+	private void q1(float[] vectors, int start, int end, short[] codes, float[] fractions) {
+		int m = this.nbProjections;
+		float[] dots = new float[m * Math.min(PROJECTION_BLOCK, Math.max(end - start, 0))];
+		
+		for ( int bs = start ; bs < end ; bs += PROJECTION_BLOCK ) {
+			int nbRows = Math.min(PROJECTION_BLOCK, end - bs);
+			DistanceKernels.dotBlock(this.q1Axes, 0, m, vectors, bs, nbRows, this.dim, dots);
+			for ( int i = 0 ; i < nbRows ; i++ ) {
+				for ( int j = 0 ; j < m ; j++ ) {
+					float h = (dots[j * nbRows + i] + this.q1Bias[j]) / this.w;
+					float step = (float)Math.floor(h);
+					int pos = (bs - start + i) * m + j;
+					codes[pos] = (short)step;
+					if ( fractions != null ) {
+						fractions[pos] = h - step;
+					}
+				}
 			}
 		}
 	}
 	
 	/**
-	 * Projects the given data matrix on the random axes and quantifies the projections.
-	 * @param data The data to be quantized.
-	 * @return A matrix containing the quantification values h(.). Each row of the matrix
-	 * corresponds to the same row in the data matrix.
+	 * Computes the packed q(.) key of a vector of h(.) values in a table.
+	 * Components are stored on componentBits bits each, the first
+	 * component in the lowest bits.
+	 * @param codes h(.) values, stored row after row.
+	 * @param offset Position of the first h(.) value of the vector in codes.
+	 * @param table Index of the table, i.e. of the qj(.) function.
+	 * @param key Array receiving the high (key[0]) and low (key[1]) parts
+	 * of the key.
 	 */
-	private Mat q1(Mat data) {
-		Mat p = new Mat(data.rows(), this.q1Axes.rows(), opencv_core.CV_32F);
-		Mat codes = new Mat(data.rows(), this.q1Axes.rows(), opencv_core.CV_16S); 
-		FloatIndexer pidx = (FloatIndexer)p.createIndexer();
-		ShortIndexer cidx = (ShortIndexer)codes.createIndexer(); 
-		
-		Mat ones = new Mat(data.rows(), 1, opencv_core.CV_32F);
-		this.fillCV32FMat(ones, 1f);
-		opencv_core.gemm(ones, this.q1Bias.t().asMat(), 1., p, 0., p);
-		opencv_core.gemm(data, this.q1Axes.t().asMat(), 1., p, 1., p);
+	private void q2(short[] codes, int offset, int table, long[] key) {
+		int[] subspace = this.q2subspaces[table];
 		
-		for ( int i = 0 ; i < pidx.rows() ; i++ ) {
-			for ( int j = 0 ; j < pidx.cols() ; j++ ) {
-				cidx.put(i,  j, (short)(pidx.get(i, j) / this.w));
-			}
+		key[0] = 0l;
+		key[1] = 0l;
+		for( int j = 0 ; j < subspace.length ; j++ ) {
+			this.setComponent(key, j, codes[offset + subspace[j]]);
 		}
-		return codes;
 	}
 	
 	/**
-	 * Compute the q(.) signatures of one input data vector of h(.) values.
-	 * @param code A row vector of h(.) values.
-	 * @return A matrix containing the qj(.) values computed from the input vector.
-	 * Each row contains one qj(.) signature.
+	 * Sets a component of a packed q(.) key.
+	 * @param key The high (key[0]) and low (key[1]) parts of the key.
+	 * @param j Position of the component in the q(.) code.
+	 * @param value New value of the component.
 	 */
-	private Mat q2(Mat code) {
-		Mat qcodes = new Mat(this.q2subspaces.rows(), this.q2subspaces.cols(), opencv_core.CV_16S);
-		ShortIndexer qidx = (ShortIndexer)qcodes.createIndexer();
-		ShortIndexer cidx = (ShortIndexer)code.createIndexer();
-		ShortIndexer sidx = (ShortIndexer)this.q2subspaces.createIndexer();
+	private void setComponent(long[] key, int j, int value) {
+		long mask = (1l << this.componentBits) - 1l;
+		long bits = value & mask;
+		int position = j * this.componentBits;
 		
-		for( int i = 0 ; i < qidx.rows() ; i++ ) {
-			for ( int j = 0 ; j < qidx.cols() ; j++ ) {
-				qidx.put(i, j, cidx.get(0, sidx.get(i, j)));
+		if( position < 64 ) {
+			key[1] = (key[1] & ~(mask << position)) | (bits << position);
+			if( position + this.componentBits > 64 ) {
+				key[0] = (key[0] & ~(mask >>> (64 - position))) | (bits >>> (64 - position));
 			}
+		} else {
+			key[0] = (key[0] & ~(mask << (position - 64))) | (bits << (position - 64));
 		}
-		
-		return qcodes;
 	}
 	
 	@Override
 	public void index(MatVector collection) {
-		this.data = collection;
-		for( int i = 0 ; i < collection.size() ; i++ ) {
-			this.indexImage(collection.get(i), i);
+		this.build(new DescriptorStore(collection));
+	}
+	
+	/**
+	 * Hashes the indexed data into the hashtables. The rows are projected
+	 * once, by blocks, and their h(.) values are kept (2 bytes per row and
+	 * projection). The tables are then filled by batches of as many tables
+	 * as the parallelism of the pool (one table without pool), so that only
+	 * the keys of a batch are held at a time: the keys of the batch are
+	 * derived from the h(.) values, then the tables are filled, one task per
+	 * table. Projection and hashing run in parallel if a pool is given.
+	 * @param store Indexed data.
+	 * @throws IllegalArgumentException If the h(.) values of the rows do
+	 * not fit in a Java array.
+	 */
+	private void build(DescriptorStore store) {
+		this.data = null;
+		if( store.size() > 0 && store.getDimension() != this.dim ) {
+			System.err.println("Error: data dimension " + store.getDimension() + " does not match index dimension " + this.dim + ".");
+			return;
+		}
+		long nbCodes = (long)store.size() * this.nbProjections;
+		if( nbCodes > Integer.MAX_VALUE - 8 ) {
+			throw new IllegalArgumentException("Cannot hash " + store.size() + " descriptors with " + this.nbProjections
+					+ " projections: " + nbCodes + " h(.) values exceed the maximum array size.");
 		}
+		this.data = store;
+		int size = this.data.size();
+		this.searchStates = new ThreadLocal<SearchState>() {
+			@Override
+			protected SearchState initialValue() {
+				return new SearchState();
+			}
+		};
 		
+		short[] codes = new short[(int)nbCodes];
+		Projection projection = new Projection(codes, 0, size);
+		if( this.pool == null ) {
+			projection.compute();
+		} else {
+			this.pool.invoke(projection);
+		}
+		
+		// keys fit in the low part if all components fit in 64 bits
+		boolean hasHigh = this.q2subspaces.length > 0 && this.componentBits * this.q2subspaces[0].length > 64;
+		int batchSize = this.pool == null ? 1 : Math.max(1, this.pool.getParallelism());
+		for( int first = 0 ; first < this.tables.length ; first += batchSize ) {
+			int nbTables = Math.min(batchSize, this.tables.length - first);
+			long[][] keysHigh = new long[nbTables][];
+			long[][] keysLow = new long[nbTables][];
+			for( int j = 0 ; j < nbTables ; j++ ) {
+				keysHigh[j] = hasHigh ? new long[size] : null;
+				keysLow[j] = new long[size];
+			}
+			Hashing hashing = new Hashing(codes, first, keysHigh, keysLow, 0, size);
+			TableFill[] fills = new TableFill[nbTables];
+			for( int j = 0 ; j < nbTables ; j++ ) {
+				fills[j] = new TableFill(first, j, keysHigh, keysLow);
+			}
+			if( this.pool == null ) {
+				hashing.compute();
+				for( int j = 0 ; j < nbTables ; j++ ) {
+					fills[j].compute();
+				}
+			} else {
+				this.pool.invoke(hashing);
+				for( int j = 0 ; j < nbTables ; j++ ) {
+					this.pool.execute(fills[j]);
+				}
+				for( int j = 0 ; j < nbTables ; j++ ) {
+					fills[j].join();
+				}
+			}
+		}
 	}
 	
 	/**
-	 * Displays the number of elements stored in the buckets of the hashtables.
+	 * Task computing the h(.) values of a range of rows of the indexed data,
+	 * split in halves down to HASHING_BLOCK rows.
 	 */
-	public void displayHashtableLoads() {
-		for( int i = 0 ; i < this.tables.length ; i++ ) {
-			System.out.print("[");
-			for( int j = 0 ; j < 500 ; j++ ) {
-				System.out.print(this.tables[i].table.get(j).size() + " ");
+	private class Projection extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private short[] codes;
+		private int start;
+		private int end;
+		
+		/**
+		 * Creates a projection task.
+		 * @param codes Array receiving the h(.) values of all rows, row
+		 * after row.
+		 * @param start First row of the range.
+		 * @param end Row following the last row of the range.
+		 */
+		private Projection(short[] codes, int start, int end) {
+			this.codes = codes;
+			this.start = start;
+			this.end = end;
+		}
+		
+		@Override
+		protected void compute() {
+			if( this.end - this.start > HASHING_BLOCK && inForkJoinPool() ) {
+				int middle = (this.start + this.end) >>> 1;
+				invokeAll(new Projection(this.codes, this.start, middle),
+						new Projection(this.codes, middle, this.end));
+				return;
+			}
+			int m = nbProjections;
+			short[] block = new short[PROJECTION_BLOCK * m];
+			for( int bs = this.start ; bs < this.end ; bs += PROJECTION_BLOCK ) {
+				int be = Math.min(bs + PROJECTION_BLOCK, this.end);
+				q1(data.getVectors(), bs, be, block, null);
+				System.arraycopy(block, 0, this.codes, bs * m, (be - bs) * m);
 			}
-			System.out.println("]");
 		}
 	}
 	
 	/**
-	 * Indexes on image represented by a matrix of descriptors.
-	 * @param data Matrix of descriptors (one descriptor per row).
-	 * @param imageIdx The index of the image in the database.
+	 * Task computing the keys of a range of rows of the indexed data in a
+	 * batch of tables from their h(.) values, split in halves down to
+	 * HASHING_BLOCK rows.
 	 */
-	private void indexImage(Mat data, int imageIdx) {
-		Mat q1Codes = this.q1(data);
-		for( int i = 0 ; i < q1Codes.rows() ; i++ ) {
-			Mat q2Codes = this.q2(q1Codes.row(i));
-			for( int j = 0 ; j < q2Codes.rows() ; j++ ) {
-				this.tables[j].put(new LSHEntry(q2Codes.row(j), imageIdx, i));
+	private class Hashing extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private short[] codes;
+		private int firstTable;
+		private long[][] keysHigh;
+		private long[][] keysLow;
+		private int start;
+		private int end;
+		
+		/**
+		 * Creates a hashing task.
+		 * @param codes h(.) values of all rows, row after row.
+		 * @param firstTable Index of the first table of the batch.
+		 * @param keysHigh Arrays receiving the high part of the key of each
+		 * row, one per table of the batch, or null arrays if the keys have
+		 * no high part.
+		 * @param keysLow Arrays receiving the low part of the key of each
+		 * row, one per table of the batch.
+		 * @param start First row of the range.
+		 * @param end Row following the last row of the range.
+		 */
+		private Hashing(short[] codes, int firstTable, long[][] keysHigh, long[][] keysLow, int start, int end) {
+			this.codes = codes;
+			this.firstTable = firstTable;
+			this.keysHigh = keysHigh;
+			this.keysLow = keysLow;
+			this.start = start;
+			this.end = end;
+		}
+		
+		@Override
+		protected void compute() {
+			if( this.end - this.start > HASHING_BLOCK && inForkJoinPool() ) {
+				int middle = (this.start + this.end) >>> 1;
+				invokeAll(new Hashing(this.codes, this.firstTable, this.keysHigh, this.keysLow, this.start, middle),
+						new Hashing(this.codes, this.firstTable, this.keysHigh, this.keysLow, middle, this.end));
+				return;
+			}
+			int m = nbProjections;
+			long[] key = new long[2];
+			for( int r = this.start ; r < this.end ; r++ ) {
+				for( int j = 0 ; j < this.keysLow.length ; j++ ) {
+					q2(this.codes, r * m, this.firstTable + j, key);
+					if( this.keysHigh[j] != null ) {
+						this.keysHigh[j][r] = key[0];
+					}
+					this.keysLow[j][r] = key[1];
+				}
 			}
 		}
 	}
 	
+	/**
+	 * Task filling one hashtable with the keys of all rows, and releasing
+	 * the keys.
+	 */
+	private class TableFill extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private int firstTable;
+		private int table;
+		private long[][] keysHigh;
+		private long[][] keysLow;
+		
+		/**
+		 * Creates a table filling task.
+		 * @param firstTable Index of the first table of the batch.
+		 * @param table Index of the table in the batch.
+		 * @param keysHigh High part of the key of each row, one array per
+		 * table of the batch, or null arrays if the keys have no high part.
+		 * @param keysLow Low part of the key of each row, one array per table
+		 * of the batch.
+		 */
+		private TableFill(int firstTable, int table, long[][] keysHigh, long[][] keysLow) {
+			this.firstTable = firstTable;
+			this.table = table;
+			this.keysHigh = keysHigh;
+			this.keysLow = keysLow;
+		}
+		
+		@Override
+		protected void compute() {
+			tables[this.firstTable + this.table].build(this.keysHigh[this.table], this.keysLow[this.table]);
+			this.keysHigh[this.table] = null;
+			this.keysLow[this.table] = null;
+		}
+	}
+	
+	/**
+	 * Displays the number of elements stored in the buckets of the hashtables.
+	 */
+	public void displayHashtableLoads() {
+		for( int i = 0 ; i < this.tables.length ; i++ ) {
+			System.out.print("[");
+			for( int j = 0 ; j < Math.min(500, this.tables[i].getNbSlots()) ; j++ ) {
+				System.out.print(this.tables[i].getEnd(j) - this.tables[i].getStart(j) + " ");
+			}
+			System.out.println("]");
+		}
+	}
+	
 	@Override
 	public DMatchVectorVector knnQuery(Mat query, int k) {
-		System.err.println("Knn query not available for E2LSH index.");
-		return null;
+		if( this.data == null ) {
+			System.err.println("Error: no data indexed. Cannot perform search.");
+			return null;
+		}
+		if( query == null ) {
+			System.err.println("Error: null query. Cannot perform search.");
+			return null;
+		}
+		
+		float[] queries = DescriptorStore.toArray(query);
+		short[] imageQ1 = new short[query.rows() * this.nbProjections];
+		float[] fractions = new float[query.rows() * this.nbProjections];
+		this.q1(queries, 0, query.rows(), imageQ1, fractions);
+		DMatchVectorVector results = new DMatchVectorVector(query.rows());
+		
+		for( int i = 0 ; i < query.rows() ; i++ ) {
+			results.put(i, this.knnSearch(queries, i * this.dim, imageQ1, fractions, i * this.nbProjections, i, k));
+		}
+		
+		return results;
 	}
 
 	@Override
@@ -293,40 +674,156 @@ public class E2LSHIndex implements Index {
 			return null;
 		}
 		
-		Mat imageQ1 = this.q1(query);
+		float[] queries = DescriptorStore.toArray(query);
+		short[] imageQ1 = new short[query.rows() * this.nbProjections];
+		float[] fractions = new float[query.rows() * this.nbProjections];
+		this.q1(queries, 0, query.rows(), imageQ1, fractions);
 		DMatchVectorVector results = new DMatchVectorVector(query.rows());
 		
 		for( int i = 0 ; i < query.rows() ; i++ ) {
-			results.put(i, this.epsSearch(query.row(i), imageQ1.row(i), i, eps));
+			results.put(i, this.epsSearch(queries, i * this.dim, imageQ1, fractions, i * this.nbProjections, i, eps));
 		}
 		
 		return results;
 	}
 		
+	/**
+	 * Performs a k-NN search for given query descriptor q with precomputed
+	 * h(.) values (q1Code). The search is widened by doubling the number of
+	 * buckets searched per table while fewer than k candidates are found.
+	 * @param queries The query descriptors, stored row after row.
+	 * @param queryOffset Position of the query descriptor in queries.
+	 * @param q1Codes The h(.) values of the query descriptors, row after row.
+	 * @param fractions The positions of the projections of the query
+	 * descriptors within their quantization step, row after row.
+	 * @param offset Position of the h(.) values of this descriptor in q1Codes.
+	 * @param qid The id of the query.
+	 * @param k Number of nearest neighbors to search.
+	 * @return The matches found in the database for this input vector.
+	 */
+	private DMatchVector knnSearch(float[] queries, int queryOffset, short[] q1Codes, float[] fractions, int offset, int qid, int k) {
+		KnnSearchResults matches = new KnnSearchResults(k);
+		SearchState state = this.searchStates.get();
+		int probes = this.nbProbes;
+		
+		state.visited.clear();
+		int candidates = this.search(queries, queryOffset, q1Codes, fractions, offset, qid, 0, probes, matches, state);
+		while( candidates < k && probes < MAX_NB_PROBES ) {
+			int first = probes;
+			probes = Math.min(2 * probes, MAX_NB_PROBES);
+			candidates += this.search(queries, queryOffset, q1Codes, fractions, offset, qid, first, probes, matches, state);
+		}
+		
+		return matches.toDMatchVector();
+	}
+	
 	/**
 	 * Performs a radius search for given query descriptor q with precomputed
 	 * h(.) values (q1Code).
-	 * @param query The query descriptor as a row vector.
-	 * @param q1Code The h(.) values of the descriptors (one per row).
+	 * @param queries The query descriptors, stored row after row.
+	 * @param queryOffset Position of the query descriptor in queries.
+	 * @param q1Codes The h(.) values of the query descriptors, row after row.
+	 * @param fractions The positions of the projections of the query
+	 * descriptors within their quantization step, row after row.
+	 * @param offset Position of the h(.) values of this descriptor in q1Codes.
 	 * @param qid The id of the query.
 	 * @param eps Value of radius for the search.
 	 * @return The matches found in the database for this input vector.
 	 */
-	private DMatchVector epsSearch(Mat query, Mat q1Code, int qid, float eps) {
+	private DMatchVector epsSearch(float[] queries, int queryOffset, short[] q1Codes, float[] fractions, int offset, int qid, float eps) {
 		EpsSearchResults matches = new EpsSearchResults(eps);
-		Mat q2Code = this.q2(q1Code);
-		float distance;
-		
-		for( int i = 0 ; i < q2Code.rows() ; i++ ) {
-			for( LSHEntry e : this.tables[i].get(q2Code.row(i)) ) {
-				if( !matches.contains(e.getImageIdx(), e.getDescIdx()) ) {
-					distance = (float)opencv_core.norm(query, this.data.get(e.getImageIdx()).row(e.getDescIdx()));
-					matches.add(new DMatch(qid, e.getDescIdx(), e.getImageIdx(), distance));
+		SearchState state = this.searchStates.get();
+		
+		state.visited.clear();
+		this.search(queries, queryOffset, q1Codes, fractions, offset, qid, 0, this.nbProbes, matches, state);
+		
+		return matches.toDMatchVector();
+	}
+	
+	/**
+	 * Searches a range of the probe sequence of the query in each table: the
+	 * bucket of the query is probe 0, and probe t is the bucket of the t-th
+	 * perturbation set of the ProbeSequence.
+	 * A descriptor found in several tables or buckets is only evaluated once
+	 * until the visited rows of the state are cleared.
+	 * @param queries The query descriptors, stored row after row.
+	 * @param queryOffset Position of the query descriptor in queries.
+	 * @param q1Codes The h(.) values of the query descriptors, row after row.
+	 * @param fractions The positions of the projections of the query
+	 * descriptors within their quantization step, row after row.
+	 * @param offset Position of the h(.) values of this descriptor in q1Codes.
+	 * @param qid The id of the query.
+	 * @param first First probe searched in each table.
+	 * @param end Probe following the last probe searched in each table.
+	 * @param matches Matches found so far.
+	 * @param state Search state of the thread.
+	 * @return The number of descriptors evaluated.
+	 */
+	private int search(float[] queries, int queryOffset, short[] q1Codes, float[] fractions, int offset, int qid, int first, int end,
+			SearchResults matches, SearchState state) {
+		ProbeSequence sequence = state.sequence;
+		int candidates = 0;
+		
+		for( int i = 0 ; i < this.tables.length ; i++ ) {
+			this.q2(q1Codes, offset, i, state.key);
+			if( first == 0 ) {
+				candidates += this.searchBucket(queries, queryOffset, qid, i, state.key, matches, state);
+			}
+			if( end > 1 ) {
+				int[] subspace = this.q2subspaces[i];
+				sequence.start(fractions, offset, subspace);
+				for( int t = 1 ; t < end && sequence.next() ; t++ ) {
+					if( t < first ) {
+						continue;
+					}
+					state.probeKey[0] = state.key[0];
+					state.probeKey[1] = state.key[1];
+					for( int j = 0 ; j < sequence.size() ; j++ ) {
+						int c = sequence.getComponent(j);
+						this.setComponent(state.probeKey, c, q1Codes[offset + subspace[c]] + sequence.getDelta(j));
+					}
+					candidates += this.searchBucket(queries, queryOffset, qid, i, state.probeKey, matches, state);
 				}
 			}
 		}
 		
-		return matches.toDMatchVector();
+		return candidates;
+	}
+	
+	/**
+	 * Evaluates the rows of a bucket that were not evaluated yet for the
+	 * query, and adds those within the distance bound of the matches. The
+	 * distance computation of a row is abandoned as soon as it exceeds the
+	 * bound.
+	 * @param queries The query descriptors, stored row after row.
+	 * @param queryOffset Position of the query descriptor in queries.
+	 * @param qid The id of the query.
+	 * @param table Index of the table.
+	 * @param key Packed q(.) key of the bucket.
+	 * @param matches Matches found so far.
+	 * @param state Search state of the thread.
+	 * @return The number of rows evaluated.
+	 */
+	private int searchBucket(float[] queries, int queryOffset, int qid, int table, long[] key, SearchResults matches, SearchState state) {
+		LSHashtable t = this.tables[table];
+		int slot = t.find(key[0], key[1]);
+		int evaluated = 0;
+		if( slot < 0 ) {
+			return 0;
+		}
+		float squaredBound = matches.getSquaredDistanceBound();
+		for( int p = t.getStart(slot) ; p < t.getEnd(slot) ; p++ ) {
+			int row = t.getRow(p);
+			if( state.visited.visit(row) ) {
+				evaluated++;
+				float squared = this.data.boundedSquaredDistance(queries, queryOffset, row, squaredBound);
+				if( squared <= squaredBound ) {
+					matches.add(qid, this.data.getDescIdx(row), this.data.getImageIdx(row), squared);
+					squaredBound = matches.getSquaredDistanceBound();
+				}
+			}
+		}
+		return evaluated;
 	}
 	
 }
@@ -1,19 +1,18 @@
 package indexing.lsh;
 
-import org.bytedeco.javacpp.opencv_core;
-import org.bytedeco.javacpp.opencv_core.Mat;
-import org.bytedeco.javacpp.indexer.ShortIndexer;
-import org.bytedeco.javacpp.opencv_core.RNG;
+import java.util.Random;
 
 /**
  * Hash function for LSH hashtables. This hash function computes actual
- * indices in hashtables from the LSH q(.) vector signatures.
+ * indices in hashtables from the LSH q(.) vector signatures, packed into
+ * 128-bit keys (see E2LSHIndex).
  * 
- * Due to the use of random data in the hash function, and for efficiency,
- * this class behaves has a singleton. The class instance must be initialized
- * first by calling setInstance(), then be accessed by calling getInstance().
+ * Each index owns its hasher, and the hash of a key only depends on the key
+ * and on the seed the random weights are drawn from, so that several indices
+ * can be used at the same time and builds are reproducible.
  * 
- * Hash function borrowed from P. Indyk's implementation of LSH.
+ * Hash function borrowed from P. Indyk's implementation of LSH: a random
+ * linear combination of the 16-bit chunks of the key, modulo a prime.
  * 
  * @author Pierre Tirilly - pierre.tirilly@imt-lille-douai.fr
  *
@@ -26,87 +25,51 @@ class Hasher {
 	private static final long HASH_PRIME = (2l << 31) - 5l;
 	
 	/**
-	 * Instance of the Hasher singleton.
+	 * Number of 16-bit chunks of a key.
 	 */
-	private static Hasher instance = null;
+	private static final int NB_CHUNKS = 8;
 	
 	/**
-	 * Random weights applied to q(.) components.
+	 * Random weights applied to the chunks of the keys.
 	 */
-	private Mat a;
+	private long[] a;
 	
 	/**
-	 * Size (number of buckets) of the tables the hasher is used on.
+	 * Creates a new hasher.
+	 * @param seed Seed of the random weights.
 	 */
-	private int tableSize;
-	
-	/**
-	 * Creates a new buffer for specified q(.) length and table size.
-	 * @param codeLength The length of the q(.) codes used in the tables.
-	 * @param tableSize The size (number of buckets) of the tables.
-	 */
-	private Hasher(int codeLength, int tableSize) {
-		this.tableSize = tableSize;
-		this.a = new Mat(1, codeLength, opencv_core.CV_16S);
-		this.init();
+	public Hasher(long seed) {
+		this.a = new long[NB_CHUNKS];
+		this.init(seed);
 	}
 	
 	/**
 	 * Initializes the random weights in a.
+	 * @param seed Seed of the random weights.
 	 */
-	private void init() {
-		RNG rng = new RNG();
-		ShortIndexer aidx = (ShortIndexer)a.createIndexer();
-		for( int i = 0 ; i < aidx.cols() ; i++ ) {
-			aidx.put(0, i, (short)rng.uniform(0, (short)rng.uniform(0, 2 << 16)));
+	private void init(long seed) {
+		Random random = new Random(seed);
+		for( int i = 0 ; i < this.a.length ; i++ ) {
+			this.a[i] = (short)random.nextInt(1 << 16);
 		}
-		rng.close();
 	}
 	
 	/**
-	 * Returns hash value for given LSHEntry.
-	 * @param e LSHEntry to be hashed.
-	 * @return The hash (index) of the LSHEntry.
+	 * Returns hash value for given key.
+	 * @param high High part of the key.
+	 * @param low Low part of the key.
+	 * @return The hash of the key, non-negative.
 	 */
-	public int computeHash(LSHEntry e) {
+	public int computeHash(long high, long low) {
 		long h = 0;
 		
-		h = (long)this.a.dot(e.getCode());
-		h = h % HASH_PRIME;
-		h = h % this.tableSize;
-		
-		return (int)Math.abs(h);
-	}
-	
-	/**
-	 * Sets a new instance of the singleton Hasher. Must be called at least
-	 * once before accessing the hasher instance.
-	 * @param codeLength Length of LSH q(.) codes to be hashed.
-	 * @param tableSize Size (number of buckets) of the hash tables.
-	 */
-	public static void setInstance(int codeLength, int tableSize) {
-		if(Hasher.instance == null) {
-			Hasher.instance = new Hasher(codeLength, tableSize);
-		} else if(Hasher.instance.tableSize != tableSize || Hasher.instance.a.rows() != codeLength) {
-			System.err.println("Warning: changing Hasher properties.");
-			Hasher.instance = new Hasher(codeLength, tableSize);
-		}
-	}
-	
-	/**
-	 * Returns current instance of the singleton hasher. Hasher must have been
-	 * initialized by calling setInstance() first.
-	 * @return The instance of the hasher.
-	 */
-	public static Hasher getInstance() {
-		if(Hasher.instance == null) {
-			System.err.println("Cannot return uninstanciated Hasher.");
-			return null;
-		} else {
-			return Hasher.instance;
+		for( int i = 0 ; i < NB_CHUNKS / 2 ; i++ ) {
+			h += this.a[i] * ((low >>> (16 * i)) & 0xFFFFl);
+			h += this.a[NB_CHUNKS / 2 + i] * ((high >>> (16 * i)) & 0xFFFFl);
 		}
+		h = Math.abs(h % HASH_PRIME);
+		
+		return (int)(h % Integer.MAX_VALUE);
 	}
-	
-	
-	
+
 }
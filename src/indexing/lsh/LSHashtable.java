@@ -1,71 +1,227 @@
 package indexing.lsh;
 
-import java.util.ArrayList;
-
-import org.bytedeco.javacpp.opencv_core.Mat;
-
 /**
  * Hashtable for LSH entries.
- * 
- * This hashtable contains LSH entries identified by their q(.) LSH hash value.
- * q(.) values are hashed again to find the bucket in the hashtable that will
- * store the entry. Entries of equal q(.) values will fall into the same bucket
- * (LSH expected collisions). Collisions of different q(.) values are handle by
- * linear search in array lists.
+ *
+ * This hashtable maps the q(.) LSH hash values of the indexed rows, packed
+ * into 128-bit keys (two longs), to the rows having these values. Keys are
+ * hashed again to find their slot in an open-addressing table (linear
+ * probing). Entries of equal q(.) values fall into the same slot (LSH
+ * expected collisions), and collisions of different q(.) values are
+ * resolved by probing the next slots.
+ *
+ * The table is built at once from the keys of all rows. The rows of each
+ * slot are then stored contiguously (compressed sparse row layout), so that
+ * an entry costs 4 bytes and a lookup does not allocate. The high parts of
+ * the keys are not stored if they are all zero (codes of at most 4
+ * components).
  * @author Pierre Tirilly - pierre.tirilly@imt-lille-douai.fr
  *
  */
 class LSHashtable {
 
 	/**
-	 * Hash table.
+	 * Hash function of the keys.
 	 */
-	ArrayList<ArrayList<LSHEntry>> table;
-	
+	private Hasher hasher;
+
 	/**
-	 * Create a hashtable.
-	 * @param size Size (numbver of buckets) of the hashtable.
+	 * Minimum number of slots of the table.
 	 */
-	public LSHashtable(int size) {
-		this.table = new ArrayList<ArrayList<LSHEntry>>(size);
-		for( int i = 0 ; i < size ; i++ ) {
-			this.table.add(new ArrayList<LSHEntry>());
-		}
+	private int minCapacity;
+
+	/**
+	 * High part of the key of each slot, or null if all keys have a zero
+	 * high part.
+	 */
+	private long[] keysHigh;
+
+	/**
+	 * Low part of the key of each slot.
+	 */
+	private long[] keysLow;
+
+	/**
+	 * Position of the first row of each slot, followed by the number of rows.
+	 * A slot is empty if it has no row.
+	 */
+	private int[] offsets;
+
+	/**
+	 * Rows of the slots, slot after slot.
+	 */
+	private int[] rows;
+
+	/**
+	 * Create an empty hashtable.
+	 * @param size Minimum size (number of slots) of the hashtable. The table
+	 * has at least twice as many slots as distinct keys.
+	 * @param hasher Hash function of the keys.
+	 */
+	public LSHashtable(int size, Hasher hasher) {
+		this.hasher = hasher;
+		this.minCapacity = Math.max(1, size);
+		this.keysHigh = new long[0];
+		this.keysLow = new long[0];
+		this.offsets = new int[1];
+		this.rows = new int[0];
 	}
-	
+
 	/**
-	 * Inserts given LSHEntry into the hashtable.
-	 * @param e The entry to insert.
+	 * Fills the hashtable with rows 0 to keysLow.length-1, replacing its
+	 * content.
+	 * @param keysHigh High part of the key of each row, or null if all keys
+	 * have a zero high part.
+	 * @param keysLow Low part of the key of each row.
 	 */
-	public void put(LSHEntry e) {
-		this.table.get(e.hashCode()).add(e);
+	public void build(long[] keysHigh, long[] keysLow) {
+		int n = keysLow.length;
+		int[] slotOfRow = new int[n];
+		int capacity = Math.max(this.minCapacity, 2 * n);
+
+		// find the slot of each row, with room for all rows having distinct keys
+		long[] high = keysHigh == null ? null : new long[capacity];
+		long[] low = new long[capacity];
+		boolean[] used = new boolean[capacity];
+		int[] counts = new int[capacity + 1];
+		int nbKeys = 0;
+		for( int i = 0 ; i < n ; i++ ) {
+			long keyHigh = keysHigh == null ? 0l : keysHigh[i];
+			int slot = this.slot(keyHigh, keysLow[i], capacity);
+			while( used[slot] && (low[slot] != keysLow[i] || (high != null && high[slot] != keyHigh)) ) {
+				slot = slot + 1 == capacity ? 0 : slot + 1;
+			}
+			if( !used[slot] ) {
+				used[slot] = true;
+				if( high != null ) {
+					high[slot] = keyHigh;
+				}
+				low[slot] = keysLow[i];
+				nbKeys++;
+			}
+			slotOfRow[i] = slot;
+			counts[slot + 1]++;
+		}
+
+		// shrink the table to twice the number of distinct keys
+		capacity = Math.max(this.minCapacity, 2 * nbKeys);
+		if( capacity < low.length ) {
+			this.keysHigh = high == null ? null : new long[capacity];
+			this.keysLow = new long[capacity];
+			boolean[] occupied = new boolean[capacity];
+			int[] newSlots = new int[low.length];
+			int[] newCounts = new int[capacity + 1];
+			for( int s = 0 ; s < low.length ; s++ ) {
+				if( used[s] ) {
+					long keyHigh = high == null ? 0l : high[s];
+					int slot = this.slot(keyHigh, low[s], capacity);
+					while( occupied[slot] ) {
+						slot = slot + 1 == capacity ? 0 : slot + 1;
+					}
+					occupied[slot] = true;
+					if( high != null ) {
+						this.keysHigh[slot] = keyHigh;
+					}
+					this.keysLow[slot] = low[s];
+					newSlots[s] = slot;
+					newCounts[slot + 1] = counts[s + 1];
+				}
+			}
+			for( int i = 0 ; i < n ; i++ ) {
+				slotOfRow[i] = newSlots[slotOfRow[i]];
+			}
+			counts = newCounts;
+		} else {
+			this.keysHigh = high;
+			this.keysLow = low;
+		}
+
+		boolean hasHigh = false;
+		for( int s = 0 ; s < capacity && !hasHigh && this.keysHigh != null ; s++ ) {
+			hasHigh = this.keysHigh[s] != 0l;
+		}
+		if( !hasHigh ) {
+			this.keysHigh = null;
+		}
+
+		// compressed sparse row layout, rows sorted by slot
+		for( int s = 0 ; s < capacity ; s++ ) {
+			counts[s + 1] += counts[s];
+		}
+		this.offsets = counts;
+		this.rows = new int[n];
+		int[] next = new int[capacity];
+		System.arraycopy(this.offsets, 0, next, 0, capacity);
+		for( int i = 0 ; i < n ; i++ ) {
+			this.rows[next[slotOfRow[i]]++] = i;
+		}
 	}
-	
+
 	/**
-	 * Returns the elements of the hashtable with given q(.) key.
-	 * @param key The q(.) to look for.
-	 * @return All entries with given q(.) values.
+	 * Computes the first slot probed for a key.
+	 * @param high High part of the key.
+	 * @param low Low part of the key.
+	 * @param capacity Number of slots of the table.
+	 * @return The slot.
 	 */
-	public ArrayList<LSHEntry> get(Mat key) {
-		return this.get(new LSHEntry(key, 0, 0));
+	private int slot(long high, long low, int capacity) {
+		return this.hasher.computeHash(high, low) % capacity;
 	}
-	
+
 	/**
-	 * Returns the elements of the hashtable with the same q(.)
-	 * values as the given entry.
-	 * @param e Entry with searched q(.) value.
-	 * @return All entries with the same q(.) values as e.
+	 * Finds the slot of a key.
+	 * @param high High part of the q(.) key to look for.
+	 * @param low Low part of the q(.) key to look for.
+	 * @return The slot containing the entries with this key, or -1 if there
+	 * is none.
 	 */
-	private ArrayList<LSHEntry> get(LSHEntry e) {
-		ArrayList<LSHEntry> bucket = this.table.get(e.hashCode());
-		ArrayList<LSHEntry> result = new ArrayList<>();
-		
-		for( LSHEntry ee : bucket ) {
-			if( e.equals(ee) ) {
-				result.add(ee);
+	public int find(long high, long low) {
+		int capacity = this.keysLow.length;
+		if( capacity == 0 || (this.keysHigh == null && high != 0l) ) {
+			return -1;
+		}
+		int slot = this.slot(high, low, capacity);
+		while( this.offsets[slot] != this.offsets[slot + 1] ) {
+			if( this.keysLow[slot] == low && (this.keysHigh == null || this.keysHigh[slot] == high) ) {
+				return slot;
 			}
+			slot = slot + 1 == capacity ? 0 : slot + 1;
 		}
-		
-		return result;
+		return -1;
+	}
+
+	/**
+	 * Gets the number of slots of the hashtable.
+	 * @return The number of slots.
+	 */
+	public int getNbSlots() {
+		return this.keysLow.length;
+	}
+
+	/**
+	 * Gets the position of the first row of a slot.
+	 * @param slot The slot.
+	 * @return The position of the first row.
+	 */
+	public int getStart(int slot) {
+		return this.offsets[slot];
+	}
+
+	/**
+	 * Gets the position following the last row of a slot.
+	 * @param slot The slot.
+	 * @return The position following the last row.
+	 */
+	public int getEnd(int slot) {
+		return this.offsets[slot + 1];
+	}
+
+	/**
+	 * Gets the row stored at a position.
+	 * @param position The position.
+	 * @return The row.
+	 */
+	public int getRow(int position) {
+		return this.rows[position];
 	}
 }
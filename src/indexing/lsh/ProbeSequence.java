@@ -0,0 +1,239 @@
+package indexing.lsh;
+
+import java.util.Arrays;
+
+import indexing.utils.MinHeap;
+
+/**
+ * Sequence of the buckets probed in a hashtable by multi-probe LSH
+ * (Lv et al., "Multi-probe LSH: efficient indexing for high-dimensional
+ * similarity search").
+ *
+ * A bucket close to the bucket of the query is obtained by moving some
+ * components of its q(.) code by -1 or +1 (a perturbation set). The score of
+ * a perturbation set is the sum of the squared distances of the query
+ * projections to the bucket boundaries they cross, and perturbation sets are
+ * generated by increasing score: the 2k single-component perturbations are
+ * sorted by distance, and each set of sorted perturbations generates its
+ * "shift" (its largest perturbation is replaced by the next one) and its
+ * "expand" (the next perturbation is added), which have higher scores.
+ *
+ * A set is stored as its parent set plus its largest perturbation, so that
+ * generating a set does not allocate. An instance must only be used by one
+ * thread at a time.
+ */
+class ProbeSequence {
+
+	/**
+	 * Component moved by each sorted perturbation.
+	 */
+	private int[] components;
+
+	/**
+	 * Move (-1 or +1) of each sorted perturbation.
+	 */
+	private int[] deltas;
+
+	/**
+	 * Squared distance to the crossed boundary of each sorted perturbation.
+	 */
+	private float[] scores;
+
+	/**
+	 * Parent of each generated set, or -1 for a set of one perturbation.
+	 */
+	private int[] parents;
+
+	/**
+	 * Largest perturbation of each generated set.
+	 */
+	private int[] lasts;
+
+	/**
+	 * Score of each generated set.
+	 */
+	private float[] setScores;
+
+	/**
+	 * Number of generated sets.
+	 */
+	private int nbSets;
+
+	/**
+	 * Generated sets not returned yet, by score.
+	 */
+	private MinHeap heap;
+
+	/**
+	 * Epoch at which each component was last moved by the set being checked.
+	 */
+	private int[] stamps;
+
+	/**
+	 * Epoch of the set being checked.
+	 */
+	private int epoch;
+
+	/**
+	 * Components moved by the current set.
+	 */
+	private int[] current;
+
+	/**
+	 * Moves of the components of the current set.
+	 */
+	private int[] currentDeltas;
+
+	/**
+	 * Number of perturbations of the current set.
+	 */
+	private int currentSize;
+
+	/**
+	 * Creates a sequence for codes of given length.
+	 * @param k Length of the q(.) codes.
+	 */
+	public ProbeSequence(int k) {
+		this.components = new int[2 * k];
+		this.deltas = new int[2 * k];
+		this.scores = new float[2 * k];
+		this.parents = new int[64];
+		this.lasts = new int[64];
+		this.setScores = new float[64];
+		this.heap = new MinHeap(64);
+		this.stamps = new int[k];
+		this.epoch = 0;
+		this.current = new int[k];
+		this.currentDeltas = new int[k];
+		this.currentSize = 0;
+	}
+
+	/**
+	 * Starts the sequence of a query in a table.
+	 * @param fractions Positions of the projections of the query within
+	 * their bucket, between 0 (lower boundary) and 1 (upper boundary).
+	 * @param offset Position of the first projection of the query in
+	 * fractions.
+	 * @param subspace Indices of the projections used by the q(.) function
+	 * of the table.
+	 */
+	public void start(float[] fractions, int offset, int[] subspace) {
+		int n = 2 * subspace.length;
+		// insertion sort of the perturbations by squared distance
+		for( int i = 0 ; i < n ; i++ ) {
+			int component = i >> 1;
+			int delta = (i & 1) == 0 ? -1 : 1;
+			float f = fractions[offset + subspace[component]];
+			float score = delta < 0 ? f * f : (1f - f) * (1f - f);
+			int j = i;
+			while( j > 0 && this.scores[j - 1] > score ) {
+				this.components[j] = this.components[j - 1];
+				this.deltas[j] = this.deltas[j - 1];
+				this.scores[j] = this.scores[j - 1];
+				j--;
+			}
+			this.components[j] = component;
+			this.deltas[j] = delta;
+			this.scores[j] = score;
+		}
+
+		this.heap.clear();
+		this.nbSets = 0;
+		this.currentSize = 0;
+		if( n > 0 ) {
+			this.addSet(-1, 0, this.scores[0]);
+		}
+	}
+
+	/**
+	 * Records a generated set.
+	 * @param parent Parent of the set, or -1.
+	 * @param last Largest perturbation of the set.
+	 * @param score Score of the set.
+	 */
+	private void addSet(int parent, int last, float score) {
+		if( this.nbSets == this.parents.length ) {
+			this.parents = Arrays.copyOf(this.parents, 2 * this.nbSets);
+			this.lasts = Arrays.copyOf(this.lasts, 2 * this.nbSets);
+			this.setScores = Arrays.copyOf(this.setScores, 2 * this.nbSets);
+		}
+		this.parents[this.nbSets] = parent;
+		this.lasts[this.nbSets] = last;
+		this.setScores[this.nbSets] = score;
+		this.heap.add(this.nbSets, score);
+		this.nbSets++;
+	}
+
+	/**
+	 * Moves to the perturbation set with the next lowest score. Sets moving
+	 * a component both ways are skipped.
+	 * @return True if a set was found, false if the sequence is exhausted.
+	 */
+	public boolean next() {
+		while( !this.heap.isEmpty() ) {
+			int set = this.heap.poll();
+			int last = this.lasts[set];
+			if( last + 1 < this.scores.length ) {
+				// shift, then expand
+				this.addSet(this.parents[set], last + 1, this.setScores[set] - this.scores[last] + this.scores[last + 1]);
+				this.addSet(set, last + 1, this.setScores[set] + this.scores[last + 1]);
+			}
+			if( this.load(set) ) {
+				return true;
+			}
+		}
+		this.currentSize = 0;
+		return false;
+	}
+
+	/**
+	 * Loads the perturbations of a set as the current set.
+	 * @param set The set.
+	 * @return False if the set moves a component twice.
+	 */
+	private boolean load(int set) {
+		this.epoch++;
+		if( this.epoch == 0 ) { // stamps wrapped around
+			Arrays.fill(this.stamps, 0);
+			this.epoch = 1;
+		}
+		this.currentSize = 0;
+		for( int s = set ; s >= 0 ; s = this.parents[s] ) {
+			int component = this.components[this.lasts[s]];
+			if( this.stamps[component] == this.epoch ) {
+				return false;
+			}
+			this.stamps[component] = this.epoch;
+			this.current[this.currentSize] = component;
+			this.currentDeltas[this.currentSize] = this.deltas[this.lasts[s]];
+			this.currentSize++;
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the number of components moved by the current set.
+	 * @return The number of components.
+	 */
+	public int size() {
+		return this.currentSize;
+	}
+
+	/**
+	 * Gets a component moved by the current set.
+	 * @param i Index of the perturbation in the set.
+	 * @return The position of the component in the q(.) code.
+	 */
+	public int getComponent(int i) {
+		return this.current[i];
+	}
+
+	/**
+	 * Gets the move of a component of the current set.
+	 * @param i Index of the perturbation in the set.
+	 * @return -1 or +1.
+	 */
+	public int getDelta(int i) {
+		return this.currentDeltas[i];
+	}
+}
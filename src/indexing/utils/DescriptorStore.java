@@ -0,0 +1,341 @@
+package indexing.utils;
+
+import org.bytedeco.javacpp.indexer.FloatIndexer;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.MatVector;
+
+/**
+ * Packed storage of the descriptors of an image collection.
+ *
+ * All descriptors are copied once into a single contiguous float array
+ * (one vector after the other). Primitive offset tables map the position of
+ * a vector in the array (its row) to its (image index, descriptor index)
+ * pair and back, so that indices can compute distances without creating
+ * any native Mat header.
+ *
+ * A store can be reordered (see reorder()) so that descriptors that are
+ * searched together, e.g. descriptors of a kd-tree leaf, are stored in
+ * consecutive rows. Descriptors of an image are then no longer contiguous.
+ */
+public class DescriptorStore {
+
+	/**
+	 * Largest number of values of a Java array.
+	 */
+	private static final long MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+	/**
+	 * Descriptor values, stored row after row.
+	 */
+	private float[] vectors;
+
+	/**
+	 * Dimension of the descriptors.
+	 */
+	private int dimension;
+
+	/**
+	 * Number of descriptors stored.
+	 */
+	private int size;
+
+	/**
+	 * Squared L2 norm of each row.
+	 */
+	private float[] squaredNorms;
+
+	/**
+	 * First row of each image. Descriptors of image i are stored in rows
+	 * imageOffsets[i] to imageOffsets[i+1]-1.
+	 */
+	private int[] imageOffsets;
+
+	/**
+	 * Row of each descriptor, by position in image order (i.e.
+	 * imageOffsets[i] + descIdx for descriptor descIdx of image i). Null if
+	 * the store is not reordered: the row is then the position.
+	 */
+	private int[] rowIndex;
+
+	/**
+	 * Image index of each row.
+	 */
+	private int[] imageIndices;
+
+	/**
+	 * Descriptor index (within its image) of each row.
+	 */
+	private int[] descIndices;
+
+	/**
+	 * Creates a store containing a copy of the given descriptors.
+	 * @param data The descriptors to store. Each entry is a matrix containing
+	 * image descriptors as rows.
+	 * @throws IllegalArgumentException If the descriptors do not fit in a
+	 * Java array.
+	 */
+	public DescriptorStore(MatVector data) {
+		int nbImages = (int)data.size();
+		this.imageOffsets = new int[nbImages + 1];
+		this.dimension = 0;
+		long nbRows = 0;
+
+		// count rows and find the dimension (some images may have no descriptors)
+		for( int i = 0 ; i < nbImages ; i++ ) {
+			Mat m = data.get(i);
+			this.imageOffsets[i] = (int)Math.min(nbRows, MAX_ARRAY_SIZE);
+			if( m.rows() > 0 && m.cols() > 0 ) {
+				nbRows += m.rows();
+				this.dimension = m.cols();
+			}
+		}
+		long nbValues = nbRows * this.dimension;
+		if( nbValues > MAX_ARRAY_SIZE ) {
+			throw new IllegalArgumentException("Cannot store " + nbRows + " descriptors of dimension " + this.dimension
+					+ ": " + nbValues + " values exceed the maximum array size (" + MAX_ARRAY_SIZE + ").");
+		}
+		this.size = (int)nbRows;
+		this.imageOffsets[nbImages] = this.size;
+		this.rowIndex = null;
+
+		this.vectors = new float[(int)nbValues];
+		this.imageIndices = new int[this.size];
+		this.descIndices = new int[this.size];
+
+		// copy data
+		for( int i = 0 ; i < nbImages ; i++ ) {
+			Mat m = data.get(i);
+			int row = this.imageOffsets[i];
+			if( row == this.imageOffsets[i+1] ) {
+				continue;
+			}
+			FloatIndexer idx = (FloatIndexer)m.createIndexer();
+			for( int j = 0 ; j < m.rows() ; j++, row++ ) {
+				idx.get(j, 0, this.vectors, row * this.dimension, this.dimension);
+				this.imageIndices[row] = i;
+				this.descIndices[row] = j;
+			}
+		}
+
+		this.squaredNorms = new float[this.size];
+		for( int i = 0 ; i < this.size ; i++ ) {
+			int offset = i * this.dimension;
+			this.squaredNorms[i] = DistanceKernels.dot(this.vectors, offset, this.vectors, offset, this.dimension);
+		}
+	}
+
+	/**
+	 * Creates an empty store with the same descriptors and images as another
+	 * store. Rows are filled by reorder().
+	 * @param other The store whose descriptors are reordered.
+	 */
+	private DescriptorStore(DescriptorStore other) {
+		this.dimension = other.dimension;
+		this.size = other.size;
+		this.imageOffsets = other.imageOffsets;
+		this.vectors = new float[other.vectors.length];
+		this.squaredNorms = new float[other.size];
+		this.imageIndices = new int[other.size];
+		this.descIndices = new int[other.size];
+		this.rowIndex = new int[other.size];
+	}
+
+	/**
+	 * Creates a copy of this store whose rows are reordered: row i of the
+	 * new store is row order[i] of this store.
+	 * @param order The new order of the rows, a permutation of 0..size()-1.
+	 * @return The reordered store.
+	 */
+	public DescriptorStore reorder(int[] order) {
+		DescriptorStore reordered = new DescriptorStore(this);
+
+		for( int i = 0 ; i < this.size ; i++ ) {
+			int row = order[i];
+			System.arraycopy(this.vectors, row * this.dimension, reordered.vectors, i * this.dimension, this.dimension);
+			reordered.squaredNorms[i] = this.squaredNorms[row];
+			reordered.imageIndices[i] = this.imageIndices[row];
+			reordered.descIndices[i] = this.descIndices[row];
+			reordered.rowIndex[this.imageOffsets[this.imageIndices[row]] + this.descIndices[row]] = i;
+		}
+
+		return reordered;
+	}
+
+	/**
+	 * Gets the number of descriptors in the store.
+	 * @return The number of descriptors.
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Gets the dimension of the stored descriptors.
+	 * @return The dimension of the descriptors.
+	 */
+	public int getDimension() {
+		return this.dimension;
+	}
+
+	/**
+	 * Gets the number of images the descriptors come from.
+	 * @return The number of images.
+	 */
+	public int getNbImages() {
+		return this.imageOffsets.length - 1;
+	}
+
+	/**
+	 * Gets the packed descriptor values. Row r starts at r*getDimension().
+	 * The returned array must not be modified.
+	 * @return The descriptor values.
+	 */
+	public float[] getVectors() {
+		return this.vectors;
+	}
+
+	/**
+	 * Gets the first row of the descriptors of an image. Only meaningful if
+	 * the store is not reordered.
+	 * @param imageIdx Index of the image.
+	 * @return The first row of the image.
+	 */
+	public int getImageStart(int imageIdx) {
+		return this.imageOffsets[imageIdx];
+	}
+
+	/**
+	 * Gets the row following the last row of the descriptors of an image.
+	 * Only meaningful if the store is not reordered.
+	 * @param imageIdx Index of the image.
+	 * @return The row following the last row of the image.
+	 */
+	public int getImageEnd(int imageIdx) {
+		return this.imageOffsets[imageIdx+1];
+	}
+
+	/**
+	 * Gets the row of a descriptor identified by its image and descriptor indices.
+	 * @param imageIdx Image index of the descriptor.
+	 * @param descIdx Descriptor index (within the image) of the descriptor.
+	 * @return The row of the descriptor.
+	 */
+	public int getRow(int imageIdx, int descIdx) {
+		int position = this.imageOffsets[imageIdx] + descIdx;
+		return this.rowIndex == null ? position : this.rowIndex[position];
+	}
+
+	/**
+	 * Gets the image index of the descriptor stored at given row.
+	 * @param row Row of the descriptor.
+	 * @return The image index of the descriptor.
+	 */
+	public int getImageIdx(int row) {
+		return this.imageIndices[row];
+	}
+
+	/**
+	 * Gets the descriptor index (within its image) of the descriptor stored
+	 * at given row.
+	 * @param row Row of the descriptor.
+	 * @return The descriptor index of the descriptor.
+	 */
+	public int getDescIdx(int row) {
+		return this.descIndices[row];
+	}
+
+	/**
+	 * Gets one component of a stored descriptor.
+	 * @param row Row of the descriptor.
+	 * @param dim Component to read.
+	 * @return The value of the component.
+	 */
+	public float get(int row, int dim) {
+		return this.vectors[row * this.dimension + dim];
+	}
+
+	/**
+	 * Gets the squared L2 norm of a stored descriptor.
+	 * @param row Row of the descriptor.
+	 * @return The squared norm of the descriptor.
+	 */
+	public float getSquaredNorm(int row) {
+		return this.squaredNorms[row];
+	}
+
+	/**
+	 * Computes the L2 distance between a query vector and a stored descriptor.
+	 * @param q The query vector.
+	 * @param row Row of the descriptor.
+	 * @return The L2 distance between q and the descriptor.
+	 */
+	public float distance(float[] q, int row) {
+		return this.distance(q, 0, row);
+	}
+
+	/**
+	 * Computes the L2 distance between a query vector stored in an array
+	 * and a stored descriptor.
+	 * @param q Array containing the query vector.
+	 * @param qOffset Position of the query vector in q.
+	 * @param row Row of the descriptor.
+	 * @return The L2 distance between the query and the descriptor.
+	 */
+	public float distance(float[] q, int qOffset, int row) {
+		return DistanceKernels.l2(q, qOffset, this.vectors, row * this.dimension, this.dimension);
+	}
+
+	/**
+	 * Computes the squared L2 distance between a query vector stored in an
+	 * array and a stored descriptor.
+	 * @param q Array containing the query vector.
+	 * @param qOffset Position of the query vector in q.
+	 * @param row Row of the descriptor.
+	 * @return The squared L2 distance between the query and the descriptor.
+	 */
+	public float squaredDistance(float[] q, int qOffset, int row) {
+		return DistanceKernels.squaredL2(q, qOffset, this.vectors, row * this.dimension, this.dimension);
+	}
+
+	/**
+	 * Computes the squared L2 distance between a query vector stored in an
+	 * array and a stored descriptor, abandoning the computation as soon as it
+	 * exceeds a bound (see DistanceKernels.squaredL2Bounded()).
+	 * @param q Array containing the query vector.
+	 * @param qOffset Position of the query vector in q.
+	 * @param row Row of the descriptor.
+	 * @param squaredBound Bound on the squared distance.
+	 * @return The squared distance if it is at most squaredBound, a value
+	 * greater than squaredBound otherwise.
+	 */
+	public float boundedSquaredDistance(float[] q, int qOffset, int row, float squaredBound) {
+		return DistanceKernels.squaredL2Bounded(q, qOffset, this.vectors, row * this.dimension, this.dimension, squaredBound);
+	}
+
+	/**
+	 * Copies a row of a float matrix to a new array.
+	 * @param m The matrix (CV_32F).
+	 * @param row The row to copy.
+	 * @return The values of the row.
+	 */
+	public static float[] rowToArray(Mat m, int row) {
+		float[] values = new float[m.cols()];
+		FloatIndexer idx = (FloatIndexer)m.createIndexer();
+		idx.get(row, 0, values, 0, values.length);
+		return values;
+	}
+
+	/**
+	 * Copies a float matrix to a new array, row after row.
+	 * @param m The matrix (CV_32F).
+	 * @return The values of the matrix.
+	 */
+	public static float[] toArray(Mat m) {
+		float[] values = new float[m.rows() * m.cols()];
+		FloatIndexer idx = (FloatIndexer)m.createIndexer();
+		for( int i = 0 ; i < m.rows() ; i++ ) {
+			idx.get(i, 0, values, i * m.cols(), m.cols());
+		}
+		return values;
+	}
+}
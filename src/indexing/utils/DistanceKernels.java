@@ -0,0 +1,316 @@
+package indexing.utils;
+
+/**
+ * Distance kernels used by the indices.
+ *
+ * Distances are computed in Java on packed float arrays (see DescriptorStore)
+ * rather than through opencv_core.norm(), which costs a JNI call per vector
+ * pair. When the incubator Vector API is available (the JVM is started with
+ * --add-modules jdk.incubator.vector), SIMD kernels are used; otherwise,
+ * unrolled scalar kernels are used. Specialized paths exist for 128-d SIFT
+ * descriptors and 4096-d color histograms (16 bins per channel).
+ *
+ * Setting the system property indexing.scalarKernels to true forces the
+ * scalar kernels.
+ */
+public final class DistanceKernels {
+
+	/**
+	 * Dimension of SIFT descriptors.
+	 */
+	public static final int SIFT_DIMENSION = 128;
+
+	/**
+	 * Dimension of color histograms with 16 bins per channel.
+	 */
+	public static final int HISTOGRAM_DIMENSION = 16 * 16 * 16;
+
+	/**
+	 * Number of dimensions accumulated between two checks of the bound in
+	 * squaredL2Bounded().
+	 */
+	static final int CHECK_INTERVAL = 32;
+
+	/**
+	 * True if the SIMD kernels are used.
+	 */
+	private static final boolean VECTORIZED = initVectorized();
+
+	/**
+	 * True if the specialized SIMD kernel is used for SIFT descriptors.
+	 */
+	private static final boolean VECTORIZED_SIFT = VECTORIZED && VectorDistanceKernels.fitsShort(SIFT_DIMENSION);
+
+	/**
+	 * True if the specialized SIMD kernel is used for color histograms.
+	 */
+	private static final boolean VECTORIZED_HISTOGRAM = VECTORIZED && VectorDistanceKernels.fitsLong(HISTOGRAM_DIMENSION);
+
+	private DistanceKernels() {}
+
+	/**
+	 * Checks whether the Vector API can be used.
+	 * @return True if the SIMD kernels can be used, false otherwise.
+	 */
+	private static boolean initVectorized() {
+		if( Boolean.getBoolean("indexing.scalarKernels") ) {
+			return false;
+		}
+		try {
+			return VectorDistanceKernels.isSupported();
+		} catch( LinkageError e ) {
+			// jdk.incubator.vector is not part of the module graph
+			return false;
+		}
+	}
+
+	/**
+	 * Tells whether distances are computed with SIMD kernels.
+	 * @return True if the SIMD kernels are used, false if the scalar ones are.
+	 */
+	public static boolean isVectorized() {
+		return VECTORIZED;
+	}
+
+	/**
+	 * Computes the squared L2 distance between two vectors stored in arrays.
+	 * @param a Array containing the first vector.
+	 * @param aOffset Position of the first vector in a.
+	 * @param b Array containing the second vector.
+	 * @param bOffset Position of the second vector in b.
+	 * @param dim Dimension of the vectors.
+	 * @return The squared L2 distance between the vectors.
+	 */
+	public static float squaredL2(float[] a, int aOffset, float[] b, int bOffset, int dim) {
+		if( dim == SIFT_DIMENSION ) {
+			return VECTORIZED_SIFT ? VectorDistanceKernels.squaredL2Short(a, aOffset, b, bOffset, SIFT_DIMENSION)
+					: scalarSquaredL2Sift(a, aOffset, b, bOffset);
+		}
+		if( dim == HISTOGRAM_DIMENSION ) {
+			return VECTORIZED_HISTOGRAM ? VectorDistanceKernels.squaredL2Long(a, aOffset, b, bOffset, HISTOGRAM_DIMENSION)
+					: scalarSquaredL2Histogram(a, aOffset, b, bOffset);
+		}
+		return VECTORIZED ? VectorDistanceKernels.squaredL2(a, aOffset, b, bOffset, dim)
+				: scalarSquaredL2(a, aOffset, b, bOffset, dim);
+	}
+
+	/**
+	 * Computes the L2 distance between two vectors stored in arrays.
+	 * @param a Array containing the first vector.
+	 * @param aOffset Position of the first vector in a.
+	 * @param b Array containing the second vector.
+	 * @param bOffset Position of the second vector in b.
+	 * @param dim Dimension of the vectors.
+	 * @return The L2 distance between the vectors.
+	 */
+	public static float l2(float[] a, int aOffset, float[] b, int bOffset, int dim) {
+		return (float)Math.sqrt(squaredL2(a, aOffset, b, bOffset, dim));
+	}
+
+	/**
+	 * Computes the squared L2 distance between two vectors, abandoning the
+	 * computation as soon as it is known to exceed a bound. Squared
+	 * differences are accumulated by chunks of CHECK_INTERVAL dimensions, and
+	 * the partial sum is compared to the bound after each chunk.
+	 * @param a Array containing the first vector.
+	 * @param aOffset Position of the first vector in a.
+	 * @param b Array containing the second vector.
+	 * @param bOffset Position of the second vector in b.
+	 * @param dim Dimension of the vectors.
+	 * @param squaredBound Bound on the squared distance.
+	 * @return The squared L2 distance between the vectors if it is at most
+	 * squaredBound, a partial sum greater than squaredBound otherwise.
+	 */
+	public static float squaredL2Bounded(float[] a, int aOffset, float[] b, int bOffset, int dim, float squaredBound) {
+		if( VECTORIZED ) {
+			return VectorDistanceKernels.squaredL2Bounded(a, aOffset, b, bOffset, dim, squaredBound);
+		}
+		float sum = 0f;
+		int i = 0;
+
+		while( i < dim ) {
+			int end = Math.min(i + CHECK_INTERVAL, dim);
+			float s0 = 0f, s1 = 0f, s2 = 0f, s3 = 0f;
+			for( ; i + 3 < end ; i += 4 ) {
+				float d0 = a[aOffset + i] - b[bOffset + i];
+				float d1 = a[aOffset + i + 1] - b[bOffset + i + 1];
+				float d2 = a[aOffset + i + 2] - b[bOffset + i + 2];
+				float d3 = a[aOffset + i + 3] - b[bOffset + i + 3];
+				s0 += d0 * d0;
+				s1 += d1 * d1;
+				s2 += d2 * d2;
+				s3 += d3 * d3;
+			}
+			for( ; i < end ; i++ ) {
+				float d = a[aOffset + i] - b[bOffset + i];
+				s0 += d * d;
+			}
+			sum += (s0 + s1) + (s2 + s3);
+			if( sum > squaredBound ) {
+				return sum;
+			}
+		}
+
+		return sum;
+	}
+
+	/**
+	 * Computes the dot product of two vectors stored in arrays.
+	 * @param a Array containing the first vector.
+	 * @param aOffset Position of the first vector in a.
+	 * @param b Array containing the second vector.
+	 * @param bOffset Position of the second vector in b.
+	 * @param dim Dimension of the vectors.
+	 * @return The dot product of the vectors.
+	 */
+	public static float dot(float[] a, int aOffset, float[] b, int bOffset, int dim) {
+		if( VECTORIZED ) {
+			return VectorDistanceKernels.dot(a, aOffset, b, bOffset, dim);
+		}
+		float s0 = 0f, s1 = 0f, s2 = 0f, s3 = 0f;
+		int i = 0;
+
+		for( ; i + 3 < dim ; i += 4 ) {
+			s0 += a[aOffset + i] * b[bOffset + i];
+			s1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+			s2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+			s3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+		}
+		for( ; i < dim ; i++ ) {
+			s0 += a[aOffset + i] * b[bOffset + i];
+		}
+
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	/**
+	 * Computes the dot products between a block of rows of a and a block of
+	 * rows of b, i.e. a tile of the matrix product a * b^T. Both matrices are
+	 * stored row after row.
+	 * @param a Array containing the rows of the first matrix.
+	 * @param aRow First row of the block of a.
+	 * @param aRows Number of rows in the block of a.
+	 * @param b Array containing the rows of the second matrix.
+	 * @param bRow First row of the block of b.
+	 * @param bRows Number of rows in the block of b.
+	 * @param dim Dimension of the rows.
+	 * @param out Output array, of size at least aRows*bRows. The dot product
+	 * of rows aRow+i and bRow+j is written at i*bRows+j.
+	 */
+	public static void dotBlock(float[] a, int aRow, int aRows, float[] b, int bRow, int bRows, int dim, float[] out) {
+		if( VECTORIZED ) {
+			VectorDistanceKernels.dotBlock(a, aRow, aRows, b, bRow, bRows, dim, out);
+			return;
+		}
+		int i = 0;
+
+		// 4 rows of a at once: each value of b is loaded once for 4 products
+		for( ; i + 3 < aRows ; i += 4 ) {
+			int a0 = (aRow + i) * dim;
+			int a1 = a0 + dim;
+			int a2 = a1 + dim;
+			int a3 = a2 + dim;
+			for( int j = 0 ; j < bRows ; j++ ) {
+				int b0 = (bRow + j) * dim;
+				float r0 = 0f, r1 = 0f, r2 = 0f, r3 = 0f;
+				for( int d = 0 ; d < dim ; d++ ) {
+					float bv = b[b0 + d];
+					r0 += a[a0 + d] * bv;
+					r1 += a[a1 + d] * bv;
+					r2 += a[a2 + d] * bv;
+					r3 += a[a3 + d] * bv;
+				}
+				out[i * bRows + j] = r0;
+				out[(i + 1) * bRows + j] = r1;
+				out[(i + 2) * bRows + j] = r2;
+				out[(i + 3) * bRows + j] = r3;
+			}
+		}
+		for( ; i < aRows ; i++ ) {
+			for( int j = 0 ; j < bRows ; j++ ) {
+				out[i * bRows + j] = dot(a, (aRow + i) * dim, b, (bRow + j) * dim, dim);
+			}
+		}
+	}
+
+	/**
+	 * Scalar squared L2 distance for vectors of any dimension.
+	 * @param a Array containing the first vector.
+	 * @param aOffset Position of the first vector in a.
+	 * @param b Array containing the second vector.
+	 * @param bOffset Position of the second vector in b.
+	 * @param dim Dimension of the vectors.
+	 * @return The squared L2 distance between the vectors.
+	 */
+	public static float scalarSquaredL2(float[] a, int aOffset, float[] b, int bOffset, int dim) {
+		float s0 = 0f, s1 = 0f, s2 = 0f, s3 = 0f;
+		int i = 0;
+
+		for( ; i + 3 < dim ; i += 4 ) {
+			float d0 = a[aOffset + i] - b[bOffset + i];
+			float d1 = a[aOffset + i + 1] - b[bOffset + i + 1];
+			float d2 = a[aOffset + i + 2] - b[bOffset + i + 2];
+			float d3 = a[aOffset + i + 3] - b[bOffset + i + 3];
+			s0 += d0 * d0;
+			s1 += d1 * d1;
+			s2 += d2 * d2;
+			s3 += d3 * d3;
+		}
+		for( ; i < dim ; i++ ) {
+			float d = a[aOffset + i] - b[bOffset + i];
+			s0 += d * d;
+		}
+
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	/**
+	 * Scalar squared L2 distance for 128-d SIFT descriptors. The constant
+	 * loop bound lets the JIT compiler fully unroll the loop.
+	 */
+	private static float scalarSquaredL2Sift(float[] a, int aOffset, float[] b, int bOffset) {
+		float s0 = 0f, s1 = 0f, s2 = 0f, s3 = 0f;
+
+		for( int i = 0 ; i < SIFT_DIMENSION ; i += 4 ) {
+			float d0 = a[aOffset + i] - b[bOffset + i];
+			float d1 = a[aOffset + i + 1] - b[bOffset + i + 1];
+			float d2 = a[aOffset + i + 2] - b[bOffset + i + 2];
+			float d3 = a[aOffset + i + 3] - b[bOffset + i + 3];
+			s0 += d0 * d0;
+			s1 += d1 * d1;
+			s2 += d2 * d2;
+			s3 += d3 * d3;
+		}
+
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	/**
+	 * Scalar squared L2 distance for 4096-d color histograms, with eight
+	 * independent accumulators.
+	 */
+	private static float scalarSquaredL2Histogram(float[] a, int aOffset, float[] b, int bOffset) {
+		float s0 = 0f, s1 = 0f, s2 = 0f, s3 = 0f, s4 = 0f, s5 = 0f, s6 = 0f, s7 = 0f;
+
+		for( int i = 0 ; i < HISTOGRAM_DIMENSION ; i += 8 ) {
+			float d0 = a[aOffset + i] - b[bOffset + i];
+			float d1 = a[aOffset + i + 1] - b[bOffset + i + 1];
+			float d2 = a[aOffset + i + 2] - b[bOffset + i + 2];
+			float d3 = a[aOffset + i + 3] - b[bOffset + i + 3];
+			float d4 = a[aOffset + i + 4] - b[bOffset + i + 4];
+			float d5 = a[aOffset + i + 5] - b[bOffset + i + 5];
+			float d6 = a[aOffset + i + 6] - b[bOffset + i + 6];
+			float d7 = a[aOffset + i + 7] - b[bOffset + i + 7];
+			s0 += d0 * d0;
+			s1 += d1 * d1;
+			s2 += d2 * d2;
+			s3 += d3 * d3;
+			s4 += d4 * d4;
+			s5 += d5 * d5;
+			s6 += d6 * d6;
+			s7 += d7 * d7;
+		}
+
+		return ((s0 + s1) + (s2 + s3)) + ((s4 + s5) + (s6 + s7));
+	}
+}
@@ -1,6 +1,6 @@
 package indexing.utils;
 
-import java.util.HashSet;
+import java.util.Arrays;
 
 import org.bytedeco.javacpp.opencv_core.DMatch;
 import org.bytedeco.javacpp.opencv_core.DMatchVector;
@@ -8,39 +8,76 @@ import org.bytedeco.javacpp.opencv_core.DMatchVector;
 /**
  * Data structure to store the matches found using a radius search.
  * New matches are added only if they are under the specified radius.
- * 
+ *
+ * Matches are stored in growable parallel primitive arrays, in the order
+ * they are added, with squared distances. DMatch objects are only created by toDMatchVector().
+ * The (image index, descriptor index) pairs of the matches are also kept in
+ * a primitive hash set, so that contains() is O(1).
+ *
  * @author Pierre Tirilly - pierre.tirilly@imt-lille-douai.fr
  *
  */
 public class EpsSearchResults implements SearchResults {
 
-	private HashSet<DMatch> matches;
+	/**
+	 * Initial capacity of the match arrays.
+	 */
+	private static final int INITIAL_CAPACITY = 16;
+
+	private float[] distances;
+	private int[] imageIndices;
+	private int[] descIndices;
+	private LongHashSet keys;
+	private int size;
+	private int queryIdx;
 	private float eps;
-	
+	private float squaredEps;
+
 	/**
 	 * Create a new data structure to store matches.
 	 * @param eps The radius used in the radius search.
 	 */
 	public EpsSearchResults(float eps) {
 		this.eps = eps;
-		this.matches = new HashSet<DMatch>();
+		// a negative radius matches nothing
+		this.squaredEps = eps < 0 ? -1f : eps * eps;
+		this.distances = new float[INITIAL_CAPACITY];
+		this.imageIndices = new int[INITIAL_CAPACITY];
+		this.descIndices = new int[INITIAL_CAPACITY];
+		this.keys = new LongHashSet(INITIAL_CAPACITY);
+		this.size = 0;
+		this.queryIdx = 0;
 	}
-	
+
 	@Override
 	public void add(DMatch m) {
-		if( m.distance() <= this.eps ) {
-			this.matches.add(m);
+		this.add(m.queryIdx(), m.trainIdx(), m.imgIdx(), m.distance() * m.distance());
+	}
+
+	@Override
+	public void add(int queryIdx, int trainIdx, int imgIdx, float squaredDistance) {
+		if( squaredDistance <= this.squaredEps ) {
+			if( this.size == this.distances.length ) {
+				int capacity = 2 * this.size;
+				this.distances = Arrays.copyOf(this.distances, capacity);
+				this.imageIndices = Arrays.copyOf(this.imageIndices, capacity);
+				this.descIndices = Arrays.copyOf(this.descIndices, capacity);
+			}
+			this.queryIdx = queryIdx;
+			this.distances[this.size] = squaredDistance;
+			this.imageIndices[this.size] = imgIdx;
+			this.descIndices[this.size] = trainIdx;
+			this.keys.add(LongHashSet.key(imgIdx, trainIdx));
+			this.size++;
 		}
 	}
 
 	@Override
 	public DMatchVector toDMatchVector() {
-		DMatchVector v = new DMatchVector(this.matches.size());
-		int i = 0;
-		
-		for( DMatch m : this.matches ) {
-			v.put(i, m);
-			i++;
+		DMatchVector v = new DMatchVector(this.size);
+
+		for( int i = 0 ; i < this.size ; i++ ) {
+			v.put(i, new DMatch(this.queryIdx, this.descIndices[i], this.imageIndices[i], (float)Math.sqrt(this.distances[i])));
 		}
 		return v;
 	}
@@ -50,14 +87,34 @@ public class EpsSearchResults implements SearchResults {
 		return this.eps;
 	}
 
+	@Override
+	public float getSquaredDistanceBound() {
+		return this.squaredEps;
+	}
+
 	@Override
 	public boolean contains(int imageIdx, int descIdx) {
-		for( DMatch m : this.matches ) {
-			if( m.imgIdx() == imageIdx && m.trainIdx() == descIdx ) {
-				return true;
+		return this.keys.contains(LongHashSet.key(imageIdx, descIdx));
+	}
+
+	@Override
+	public void addAll(SearchResults other) {
+		if( other instanceof EpsSearchResults ) {
+			EpsSearchResults o = (EpsSearchResults)other;
+			for( int i = 0 ; i < o.size ; i++ ) {
+				this.add(o.queryIdx, o.descIndices[i], o.imageIndices[i], o.distances[i]);
+			}
+		} else {
+			DMatchVector v = other.toDMatchVector();
+			for( int i = 0 ; i < v.size() ; i++ ) {
+				this.add(v.get(i));
 			}
 		}
-		return false;
+	}
+
+	@Override
+	public SearchResults emptyCopy() {
+		return new EpsSearchResults(this.eps);
 	}
 
 }
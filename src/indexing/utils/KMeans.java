@@ -0,0 +1,301 @@
+package indexing.utils;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * K-means clustering (Lloyd's algorithm with k-means++ seeding) of a range
+ * of rows of a row-major float array.
+ *
+ * The rows to cluster are given by a range of a permutation of the rows, so
+ * that nested clusterings (e.g. hierarchical k-means) can work in place on
+ * a shared permutation. Centers are returned in a contiguous row-major
+ * float array. If a ForkJoinPool is given, the passes over the rows (seeding
+ * and assignment steps) of large ranges are split into parallel tasks.
+ */
+public class KMeans {
+
+	/**
+	 * Minimum number of rows for a pass over them to be run in parallel.
+	 */
+	private static final int PARALLEL_THRESHOLD = 1 << 14;
+
+	/**
+	 * Number of rows below which a parallel pass is not split further.
+	 */
+	private static final int PASS_BLOCK = 1 << 12;
+
+	/**
+	 * Number of clusters.
+	 */
+	private int k;
+
+	/**
+	 * Maximum number of iterations of Lloyd's algorithm.
+	 */
+	private int iterations;
+
+	/**
+	 * Pool running the parallel passes, or null.
+	 */
+	private ForkJoinPool pool;
+
+	/**
+	 * Creates a k-means clustering.
+	 * @param k Number of clusters.
+	 * @param iterations Maximum number of iterations of Lloyd's algorithm.
+	 * @param pool Pool running the passes over large ranges of rows. If
+	 * null, clustering is sequential.
+	 */
+	public KMeans(int k, int iterations, ForkJoinPool pool) {
+		this.k = Math.max(1, k);
+		this.iterations = Math.max(0, iterations);
+		this.pool = pool;
+	}
+
+	/**
+	 * Clusters a range of rows.
+	 * @param vectors Row-major vectors.
+	 * @param dim Dimension of the vectors.
+	 * @param rows Permutation of the rows.
+	 * @param start First position of the range to cluster.
+	 * @param end Position following the last position of the range.
+	 * @param assignment Array receiving, at each position of the range, the
+	 * cluster of the row at this position of the permutation.
+	 * @param random Random generator used for seeding.
+	 * @return The centers of the clusters, one per row. There are
+	 * min(k, end - start) centers.
+	 */
+	public float[] cluster(float[] vectors, int dim, int[] rows, int start, int end, int[] assignment, Random random) {
+		int n = end - start;
+		int nbClusters = Math.min(this.k, n);
+		float[] centers = new float[nbClusters * dim];
+		float[] distances = new float[n];
+		if( nbClusters == 0 ) {
+			return centers;
+		}
+
+		this.seed(vectors, dim, rows, start, end, centers, nbClusters, distances, random);
+		this.runPass(new Pass(vectors, dim, rows, start, end, centers, nbClusters, -1, assignment, distances));
+		double[] sums = new double[nbClusters * dim];
+		int[] counts = new int[nbClusters];
+		for( int it = 0 ; it < this.iterations ; it++ ) {
+			// update step: centers become the means of their clusters
+			Arrays.fill(sums, 0.);
+			Arrays.fill(counts, 0);
+			for( int i = start ; i < end ; i++ ) {
+				int c = assignment[i];
+				int offset = rows[i] * dim;
+				for( int j = 0 ; j < dim ; j++ ) {
+					sums[c * dim + j] += vectors[offset + j];
+				}
+				counts[c]++;
+			}
+			for( int c = 0 ; c < nbClusters ; c++ ) {
+				if( counts[c] == 0 ) {
+					// empty cluster: moved to the row furthest from its center
+					int furthest = start;
+					for( int i = start + 1 ; i < end ; i++ ) {
+						if( distances[i - start] > distances[furthest - start] ) {
+							furthest = i;
+						}
+					}
+					System.arraycopy(vectors, rows[furthest] * dim, centers, c * dim, dim);
+					distances[furthest - start] = 0f;
+					continue;
+				}
+				for( int j = 0 ; j < dim ; j++ ) {
+					centers[c * dim + j] = (float)(sums[c * dim + j] / counts[c]);
+				}
+			}
+
+			// assignment step
+			Pass pass = new Pass(vectors, dim, rows, start, end, centers, nbClusters, -1, assignment, distances);
+			this.runPass(pass);
+			if( !pass.changed ) {
+				break;
+			}
+		}
+
+		return centers;
+	}
+
+	/**
+	 * Finds the closest center to a vector.
+	 * @param v Array containing the vector.
+	 * @param offset Offset of the vector in v.
+	 * @param centers Row-major centers.
+	 * @param nbCenters Number of centers (at least 1).
+	 * @param dim Dimension of the vectors.
+	 * @return The index of the closest center.
+	 */
+	public static int nearestCenter(float[] v, int offset, float[] centers, int nbCenters, int dim) {
+		int best = 0;
+		float bestDistance = Float.MAX_VALUE;
+		for( int c = 0 ; c < nbCenters ; c++ ) {
+			float d = DistanceKernels.squaredL2Bounded(v, offset, centers, c * dim, dim, bestDistance);
+			if( d < bestDistance ) {
+				bestDistance = d;
+				best = c;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Chooses initial centers by k-means++ seeding: each new center is a row
+	 * drawn with a probability proportional to its squared distance to the
+	 * closest center already chosen.
+	 * @param vectors Row-major vectors.
+	 * @param dim Dimension of the vectors.
+	 * @param rows Permutation of the rows.
+	 * @param start First position of the range.
+	 * @param end Position following the last position of the range.
+	 * @param centers Array receiving the centers.
+	 * @param nbClusters Number of centers to choose.
+	 * @param distances Buffer for the squared distances of the rows to their
+	 * closest center.
+	 * @param random Random generator.
+	 */
+	private void seed(float[] vectors, int dim, int[] rows, int start, int end, float[] centers, int nbClusters,
+			float[] distances, Random random) {
+		int n = end - start;
+		System.arraycopy(vectors, rows[start + random.nextInt(n)] * dim, centers, 0, dim);
+		Arrays.fill(distances, Float.MAX_VALUE);
+		for( int c = 1 ; c < nbClusters ; c++ ) {
+			this.runPass(new Pass(vectors, dim, rows, start, end, centers, c, c - 1, null, distances));
+			double total = 0.;
+			for( int i = 0 ; i < n ; i++ ) {
+				total += distances[i];
+			}
+			int chosen = start + random.nextInt(n);
+			if( total > 0. ) {
+				double target = random.nextDouble() * total;
+				for( int i = 0 ; i < n ; i++ ) {
+					target -= distances[i];
+					if( target < 0. ) {
+						chosen = start + i;
+						break;
+					}
+				}
+			}
+			System.arraycopy(vectors, rows[chosen] * dim, centers, c * dim, dim);
+		}
+	}
+
+	/**
+	 * Runs a pass, in parallel if the pool is set and the range is large.
+	 * @param pass The pass.
+	 */
+	private void runPass(Pass pass) {
+		if( this.pool != null && pass.end - pass.start >= PARALLEL_THRESHOLD ) {
+			pass.parallel = true;
+			this.pool.invoke(pass);
+		} else {
+			pass.compute();
+		}
+	}
+
+	/**
+	 * Pass over a range of rows. An assignment pass assigns each row to its
+	 * closest center and stores its squared distance to it. A seeding pass
+	 * lowers the squared distance of each row to its closest center given a
+	 * new center. Large ranges are split in halves down to PASS_BLOCK rows.
+	 */
+	private static class Pass extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private float[] vectors;
+		private int dim;
+		private int[] rows;
+		private int start;
+		private int end;
+		private float[] centers;
+		private int nbCenters;
+		private int newCenter;
+		private int[] assignment;
+		private float[] distances;
+		private int rangeStart;
+		private boolean parallel;
+		private boolean changed;
+
+		/**
+		 * Creates a pass.
+		 * @param vectors Row-major vectors.
+		 * @param dim Dimension of the vectors.
+		 * @param rows Permutation of the rows.
+		 * @param start First position of the range.
+		 * @param end Position following the last position of the range.
+		 * @param centers Centers.
+		 * @param nbCenters Number of centers.
+		 * @param newCenter New center of a seeding pass, or -1 for an
+		 * assignment pass.
+		 * @param assignment Assignment of the positions (assignment pass).
+		 * @param distances Squared distances of the rows to their center,
+		 * indexed from the first position of the clustered range.
+		 */
+		private Pass(float[] vectors, int dim, int[] rows, int start, int end, float[] centers, int nbCenters,
+				int newCenter, int[] assignment, float[] distances) {
+			this(vectors, dim, rows, start, end, centers, nbCenters, newCenter, assignment, distances, start);
+		}
+
+		/**
+		 * Creates a pass over a part of a clustered range.
+		 * @param rangeStart First position of the clustered range, to
+		 * which distances are indexed.
+		 * The other parameters are those of the first constructor.
+		 */
+		private Pass(float[] vectors, int dim, int[] rows, int start, int end, float[] centers, int nbCenters,
+				int newCenter, int[] assignment, float[] distances, int rangeStart) {
+			this.vectors = vectors;
+			this.dim = dim;
+			this.rows = rows;
+			this.start = start;
+			this.end = end;
+			this.centers = centers;
+			this.nbCenters = nbCenters;
+			this.newCenter = newCenter;
+			this.assignment = assignment;
+			this.distances = distances;
+			this.rangeStart = rangeStart;
+			this.parallel = false;
+			this.changed = false;
+		}
+
+		@Override
+		protected void compute() {
+			if( this.parallel && this.end - this.start > PASS_BLOCK ) {
+				int middle = (this.start + this.end) >>> 1;
+				Pass left = new Pass(this.vectors, this.dim, this.rows, this.start, middle, this.centers, this.nbCenters,
+						this.newCenter, this.assignment, this.distances, this.rangeStart);
+				Pass right = new Pass(this.vectors, this.dim, this.rows, middle, this.end, this.centers, this.nbCenters,
+						this.newCenter, this.assignment, this.distances, this.rangeStart);
+				left.parallel = true;
+				right.parallel = true;
+				invokeAll(left, right);
+				this.changed = left.changed || right.changed;
+				return;
+			}
+			for( int i = this.start ; i < this.end ; i++ ) {
+				int offset = this.rows[i] * this.dim;
+				if( this.newCenter >= 0 ) {
+					float d = DistanceKernels.squaredL2(this.vectors, offset, this.centers, this.newCenter * this.dim, this.dim);
+					if( d < this.distances[i - this.rangeStart] ) {
+						this.distances[i - this.rangeStart] = d;
+					}
+					continue;
+				}
+				int best = nearestCenter(this.vectors, offset, this.centers, this.nbCenters, this.dim);
+				if( this.assignment[i] != best ) {
+					this.assignment[i] = best;
+					this.changed = true;
+				}
+				this.distances[i - this.rangeStart] = DistanceKernels.squaredL2(this.vectors, offset, this.centers,
+						best * this.dim, this.dim);
+			}
+		}
+	}
+}
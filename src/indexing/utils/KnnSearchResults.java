@@ -1,8 +1,5 @@
 package indexing.utils;
 
-import java.util.Comparator;
-import java.util.PriorityQueue;
-
 import org.bytedeco.javacpp.opencv_core.DMatch;
 import org.bytedeco.javacpp.opencv_core.DMatchVector;
 
@@ -11,71 +8,237 @@ import org.bytedeco.javacpp.opencv_core.DMatchVector;
  * they are closer to the query than existing matches (the furtherst match is
  * therefore removed) or if there are less than k matches in the structure.
  *
+ * Matches are stored in parallel primitive arrays organized as a bounded
+ * max-heap on the distance, so that adding a candidate allocates nothing and
+ * costs O(log k). Matches at equal distance are ordered by image index, then
+ * descriptor index, so that the kept matches do not depend on the order in
+ * which candidates are added. DMatch objects are only created by
+ * toDMatchVector(), which returns the matches by increasing distance.
+ * Distances are stored squared.
+ *
  * @author Pierre Tirilly - pierre.tirilly@imt-lille-douai.fr
  *
  */
 public class KnnSearchResults implements SearchResults {
 
-	private PriorityQueue<DMatch> matches;
+	/**
+	 * Squared distances of the matches (heap order, furthest first).
+	 */
+	private float[] distances;
+
+	/**
+	 * Image indices of the matches.
+	 */
+	private int[] imageIndices;
+
+	/**
+	 * Descriptor indices of the matches.
+	 */
+	private int[] descIndices;
+
+	/**
+	 * Number of matches stored.
+	 */
+	private int size;
+
+	/**
+	 * Index of the query descriptor of the matches.
+	 */
+	private int queryIdx;
+
 	private int k;
-	
+
 	/**
 	 * Create a new structure to store k matches.
 	 * @param k The maximum number of matches.
 	 */
 	public KnnSearchResults(int k) {
 		this.k = k;
-		this.matches = new PriorityQueue<>(k + 1, new Comparator<DMatch>() {
-			@Override
-			public int compare(DMatch o1, DMatch o2) {
-				if( o1.distance() < o2.distance() ) {
-					return 1;
-				} else if( o1.distance() > o2.distance() ) {
-					return -1;
-				} else {
-					return 0;
-				}
-			}
-		});
+		this.distances = new float[Math.max(k, 0)];
+		this.imageIndices = new int[Math.max(k, 0)];
+		this.descIndices = new int[Math.max(k, 0)];
+		this.size = 0;
+		this.queryIdx = 0;
 	}
-	
+
 	@Override
 	public void add(DMatch m) {
-		if( this.matches.size() < k ) {
-			this.matches.add(m);
-		} else {
-			if( m.distance() < this.matches.peek().distance() ) {
-				this.matches.add(m);
-				this.matches.remove(this.matches.peek());
+		this.add(m.queryIdx(), m.trainIdx(), m.imgIdx(), m.distance() * m.distance());
+	}
+
+	@Override
+	public void add(int queryIdx, int trainIdx, int imgIdx, float squaredDistance) {
+		this.queryIdx = queryIdx;
+		if( this.size < this.k ) {
+			// insert at the bottom of the heap and sift up
+			int i = this.size++;
+			while( i > 0 ) {
+				int parent = (i - 1) >>> 1;
+				if( !this.isFurther(squaredDistance, imgIdx, trainIdx, parent) ) {
+					break;
+				}
+				this.move(parent, i);
+				i = parent;
+			}
+			this.set(i, squaredDistance, imgIdx, trainIdx);
+		} else if( this.k > 0 && this.isCloser(squaredDistance, imgIdx, trainIdx, 0) ) {
+			// replace the furthest match and sift down
+			int i = 0;
+			int half = this.size >>> 1;
+			while( i < half ) {
+				int child = 2 * i + 1;
+				if( child + 1 < this.size && this.isFurther(child + 1, child) ) {
+					child++;
+				}
+				if( !this.isCloser(squaredDistance, imgIdx, trainIdx, child) ) {
+					break;
+				}
+				this.move(child, i);
+				i = child;
 			}
+			this.set(i, squaredDistance, imgIdx, trainIdx);
 		}
 	}
 
+	/**
+	 * Checks whether a candidate is further than the match at position i.
+	 * @param distance Distance of the candidate.
+	 * @param imgIdx Image index of the candidate.
+	 * @param descIdx Descriptor index of the candidate.
+	 * @param i Position of the match in the heap.
+	 * @return True if the candidate is further than the match.
+	 */
+	private boolean isFurther(float distance, int imgIdx, int descIdx, int i) {
+		if( distance != this.distances[i] ) {
+			return distance > this.distances[i];
+		}
+		if( imgIdx != this.imageIndices[i] ) {
+			return imgIdx > this.imageIndices[i];
+		}
+		return descIdx > this.descIndices[i];
+	}
+
+	/**
+	 * Checks whether a candidate is closer than the match at position i.
+	 * @param distance Distance of the candidate.
+	 * @param imgIdx Image index of the candidate.
+	 * @param descIdx Descriptor index of the candidate.
+	 * @param i Position of the match in the heap.
+	 * @return True if the candidate is closer than the match.
+	 */
+	private boolean isCloser(float distance, int imgIdx, int descIdx, int i) {
+		if( distance != this.distances[i] ) {
+			return distance < this.distances[i];
+		}
+		if( imgIdx != this.imageIndices[i] ) {
+			return imgIdx < this.imageIndices[i];
+		}
+		return descIdx < this.descIndices[i];
+	}
+
+	/**
+	 * Checks whether the match at position i is further than the match at
+	 * position j.
+	 * @param i Position of the first match.
+	 * @param j Position of the second match.
+	 * @return True if match i is further than match j.
+	 */
+	private boolean isFurther(int i, int j) {
+		return this.isFurther(this.distances[i], this.imageIndices[i], this.descIndices[i], j);
+	}
+
+	/**
+	 * Copies the match at position from to position to.
+	 * @param from Source position.
+	 * @param to Destination position.
+	 */
+	private void move(int from, int to) {
+		this.distances[to] = this.distances[from];
+		this.imageIndices[to] = this.imageIndices[from];
+		this.descIndices[to] = this.descIndices[from];
+	}
+
+	/**
+	 * Stores a match at position i.
+	 * @param i Position of the match.
+	 * @param distance Distance of the match.
+	 * @param imgIdx Image index of the match.
+	 * @param descIdx Descriptor index of the match.
+	 */
+	private void set(int i, float distance, int imgIdx, int descIdx) {
+		this.distances[i] = distance;
+		this.imageIndices[i] = imgIdx;
+		this.descIndices[i] = descIdx;
+	}
+
+	/**
+	 * Returns the matches ordered by increasing distance, as a permutation of
+	 * their positions in the heap.
+	 * @return Positions of the matches by increasing distance.
+	 */
+	private int[] sortedPositions() {
+		int[] positions = new int[this.size];
+		for( int i = 0 ; i < this.size ; i++ ) {
+			int j = i;
+			while( j > 0 && this.isFurther(positions[j-1], i) ) {
+				positions[j] = positions[j-1];
+				j--;
+			}
+			positions[j] = i;
+		}
+		return positions;
+	}
+
 	@Override
 	public DMatchVector toDMatchVector() {
-		DMatchVector v = new DMatchVector(this.matches.size());
-		int i = 0;
-		
-		for( DMatch m : this.matches ) {
-			v.put(i, m);
-			i++;
+		DMatchVector v = new DMatchVector(this.size);
+		int[] positions = this.sortedPositions();
+
+		for( int i = 0 ; i < positions.length ; i++ ) {
+			int p = positions[i];
+			v.put(i, new DMatch(this.queryIdx, this.descIndices[p], this.imageIndices[p], (float)Math.sqrt(this.distances[p])));
 		}
-		
+
 		return v;
 	}
 
 	@Override
 	public float getDistanceBound() {
-		return this.matches.size() < k ? Float.MAX_VALUE : this.matches.peek().distance();
+		return this.size < this.k ? Float.MAX_VALUE : (float)Math.sqrt(this.distances[0]);
 	}
-	
+
+	@Override
+	public float getSquaredDistanceBound() {
+		return this.size < this.k ? Float.MAX_VALUE : this.distances[0];
+	}
+
 	@Override
 	public boolean contains(int imageIdx, int descIdx) {
-		for( DMatch m : this.matches ) {
-			if( m.imgIdx() == imageIdx && m.trainIdx() == descIdx ) {
+		for( int i = 0 ; i < this.size ; i++ ) {
+			if( this.imageIndices[i] == imageIdx && this.descIndices[i] == descIdx ) {
 				return true;
 			}
 		}
 		return false;
 	}
+
+	@Override
+	public void addAll(SearchResults other) {
+		if( other instanceof KnnSearchResults ) {
+			KnnSearchResults o = (KnnSearchResults)other;
+			for( int i = 0 ; i < o.size ; i++ ) {
+				this.add(o.queryIdx, o.descIndices[i], o.imageIndices[i], o.distances[i]);
+			}
+		} else {
+			DMatchVector v = other.toDMatchVector();
+			for( int i = 0 ; i < v.size() ; i++ ) {
+				this.add(v.get(i));
+			}
+		}
+	}
+
+	@Override
+	public SearchResults emptyCopy() {
+		return new KnnSearchResults(this.k);
+	}
 }
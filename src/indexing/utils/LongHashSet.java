@@ -0,0 +1,156 @@
+package indexing.utils;
+
+import java.util.Arrays;
+
+/**
+ * Set of long values based on open addressing with linear probing.
+ *
+ * Values are stored in a primitive array, so that adding and looking up a
+ * value allocates nothing (except when the table grows). Used to identify
+ * descriptors by their packed (image index, descriptor index) pair, see
+ * key().
+ */
+public class LongHashSet {
+
+	/**
+	 * Marker of empty slots. The value itself is stored apart.
+	 */
+	private static final long EMPTY = Long.MIN_VALUE;
+
+	/**
+	 * Hash table. Its size is a power of 2.
+	 */
+	private long[] slots;
+
+	/**
+	 * Number of values in the table.
+	 */
+	private int size;
+
+	/**
+	 * True if the EMPTY value itself is in the set.
+	 */
+	private boolean containsEmpty;
+
+	/**
+	 * Creates an empty set.
+	 * @param expectedSize Number of values the set should hold without growing.
+	 */
+	public LongHashSet(int expectedSize) {
+		int capacity = 8;
+		while( capacity < 2 * expectedSize ) {
+			capacity <<= 1;
+		}
+		this.slots = new long[capacity];
+		Arrays.fill(this.slots, EMPTY);
+		this.size = 0;
+		this.containsEmpty = false;
+	}
+
+	/**
+	 * Packs an (image index, descriptor index) pair into a key.
+	 * @param imageIdx Image index of the descriptor.
+	 * @param descIdx Descriptor index (within the image) of the descriptor.
+	 * @return The key of the descriptor.
+	 */
+	public static long key(int imageIdx, int descIdx) {
+		return ((long)imageIdx << 32) | (descIdx & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Computes the slot of a value (MurmurHash3 finalizer).
+	 * @param value The value.
+	 * @return The first slot to probe for the value.
+	 */
+	private int slot(long value) {
+		value ^= value >>> 33;
+		value *= 0xff51afd7ed558ccdL;
+		value ^= value >>> 33;
+		value *= 0xc4ceb9fe1a85ec53L;
+		value ^= value >>> 33;
+		return (int)value & (this.slots.length - 1);
+	}
+
+	/**
+	 * Adds a value to the set.
+	 * @param value The value to add.
+	 * @return True if the value was not in the set, false otherwise.
+	 */
+	public boolean add(long value) {
+		if( value == EMPTY ) {
+			boolean added = !this.containsEmpty;
+			this.containsEmpty = true;
+			return added;
+		}
+		int mask = this.slots.length - 1;
+		int i = this.slot(value);
+		while( this.slots[i] != EMPTY ) {
+			if( this.slots[i] == value ) {
+				return false;
+			}
+			i = (i + 1) & mask;
+		}
+		this.slots[i] = value;
+		this.size++;
+		if( 2 * this.size > this.slots.length ) {
+			this.grow();
+		}
+		return true;
+	}
+
+	/**
+	 * Checks whether a value is in the set.
+	 * @param value The value to look for.
+	 * @return True if the value is in the set, false otherwise.
+	 */
+	public boolean contains(long value) {
+		if( value == EMPTY ) {
+			return this.containsEmpty;
+		}
+		int mask = this.slots.length - 1;
+		int i = this.slot(value);
+		while( this.slots[i] != EMPTY ) {
+			if( this.slots[i] == value ) {
+				return true;
+			}
+			i = (i + 1) & mask;
+		}
+		return false;
+	}
+
+	/**
+	 * Removes all values from the set. The table keeps its capacity.
+	 */
+	public void clear() {
+		Arrays.fill(this.slots, EMPTY);
+		this.size = 0;
+		this.containsEmpty = false;
+	}
+
+	/**
+	 * Gets the number of values in the set.
+	 * @return The number of values.
+	 */
+	public int size() {
+		return this.size + (this.containsEmpty ? 1 : 0);
+	}
+
+	/**
+	 * Doubles the capacity of the table and re-inserts the values.
+	 */
+	private void grow() {
+		long[] old = this.slots;
+		this.slots = new long[2 * old.length];
+		Arrays.fill(this.slots, EMPTY);
+		int mask = this.slots.length - 1;
+		for( long value : old ) {
+			if( value != EMPTY ) {
+				int i = this.slot(value);
+				while( this.slots[i] != EMPTY ) {
+					i = (i + 1) & mask;
+				}
+				this.slots[i] = value;
+			}
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package indexing.utils;
+
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of (id, key) pairs stored in parallel primitive arrays.
+ *
+ * Used as a priority queue of nodes or candidates during search: the id
+ * identifies the element, the key is its priority (lowest first). Adding
+ * and removing an element allocates nothing, except when the heap grows.
+ * An instance must only be used by one thread at a time.
+ */
+public class MinHeap {
+
+	/**
+	 * Ids of the elements, in heap order.
+	 */
+	private int[] ids;
+
+	/**
+	 * Keys of the elements, in heap order.
+	 */
+	private float[] keys;
+
+	/**
+	 * Number of elements in the heap.
+	 */
+	private int size;
+
+	/**
+	 * Creates an empty heap.
+	 * @param capacity Initial capacity of the heap.
+	 */
+	public MinHeap(int capacity) {
+		capacity = Math.max(capacity, 1);
+		this.ids = new int[capacity];
+		this.keys = new float[capacity];
+		this.size = 0;
+	}
+
+	/**
+	 * Adds an element to the heap.
+	 * @param id Id of the element.
+	 * @param key Key of the element.
+	 */
+	public void add(int id, float key) {
+		if( this.size == this.ids.length ) {
+			this.ids = Arrays.copyOf(this.ids, 2 * this.size);
+			this.keys = Arrays.copyOf(this.keys, 2 * this.size);
+		}
+		// sift up
+		int i = this.size++;
+		while( i > 0 ) {
+			int parent = (i - 1) >>> 1;
+			if( this.keys[parent] <= key ) {
+				break;
+			}
+			this.ids[i] = this.ids[parent];
+			this.keys[i] = this.keys[parent];
+			i = parent;
+		}
+		this.ids[i] = id;
+		this.keys[i] = key;
+	}
+
+	/**
+	 * Gets the id of the element with the lowest key.
+	 * @return The id of the first element. The heap must not be empty.
+	 */
+	public int peekId() {
+		return this.ids[0];
+	}
+
+	/**
+	 * Gets the lowest key.
+	 * @return The key of the first element. The heap must not be empty.
+	 */
+	public float peekKey() {
+		return this.keys[0];
+	}
+
+	/**
+	 * Removes the element with the lowest key.
+	 * @return The id of the removed element. The heap must not be empty.
+	 */
+	public int poll() {
+		int first = this.ids[0];
+		this.size--;
+		if( this.size > 0 ) {
+			int id = this.ids[this.size];
+			float key = this.keys[this.size];
+			// sift down
+			int i = 0;
+			int half = this.size >>> 1;
+			while( i < half ) {
+				int child = 2 * i + 1;
+				if( child + 1 < this.size && this.keys[child + 1] < this.keys[child] ) {
+					child++;
+				}
+				if( key <= this.keys[child] ) {
+					break;
+				}
+				this.ids[i] = this.ids[child];
+				this.keys[i] = this.keys[child];
+				i = child;
+			}
+			this.ids[i] = id;
+			this.keys[i] = key;
+		}
+		return first;
+	}
+
+	/**
+	 * Checks whether the heap is empty.
+	 * @return True if the heap contains no element.
+	 */
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	/**
+	 * Gets the number of elements in the heap.
+	 * @return The number of elements.
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Removes all elements. The heap keeps its capacity.
+	 */
+	public void clear() {
+		this.size = 0;
+	}
+}
@@ -6,6 +6,10 @@ import org.bytedeco.javacpp.opencv_core.DMatchVector;
 /**
  * Interface for data structure storing matches.
  * 
+ * Containers work with squared L2 distances: distances given to
+ * add(int, int, int, float) and bounds used during search are squared, and
+ * the square root is only taken when matches are converted to DMatch objects.
+ * 
  * @author Pierre Tirilly - pierre.tirilly@imt-lille-douai.fr
  *
  */
@@ -13,12 +17,24 @@ public interface SearchResults {
 
 	/**
 	 * Adds an element to the search results.
-	 * @param m The match to be added.
+	 * @param m The match to be added. Its distance is a regular (not squared)
+	 * distance.
 	 */
 	public void add(DMatch m);
 	
 	/**
-	 * Converts the search result container to a DMatchVector.
+	 * Adds an element to the search results without requiring a DMatch.
+	 * Containers only create DMatch objects in toDMatchVector().
+	 * @param queryIdx Index of the query descriptor.
+	 * @param trainIdx Descriptor index (within its image) of the match.
+	 * @param imgIdx Image index of the match.
+	 * @param squaredDistance Squared distance of the match to the query.
+	 */
+	public void add(int queryIdx, int trainIdx, int imgIdx, float squaredDistance);
+	
+	/**
+	 * Converts the search result container to a DMatchVector. Distances of
+	 * the DMatch objects are regular (not squared) distances.
 	 * @return The DMatchVector containing the search results.
 	 */
 	public DMatchVector toDMatchVector();
@@ -29,6 +45,13 @@ public interface SearchResults {
 	 */
 	public float getDistanceBound();
 	
+	/**
+	 * Computes the square of the maximum distance of current matches to the
+	 * query, i.e. the bound against which candidates are compared during search.
+	 * @return The squared distance bound.
+	 */
+	public float getSquaredDistanceBound();
+	
 	/**
 	 * Checks whether a descriptor identified by its image index and
 	 * descriptor index is already in the result set.
@@ -39,4 +62,18 @@ public interface SearchResults {
 	 * false otherwise.
 	 */
 	public boolean contains(int imageIdx, int descIdx);
+	
+	/**
+	 * Adds all the matches of another container to this one, as if they
+	 * were added one by one with add().
+	 * @param other The container whose matches are added.
+	 */
+	public void addAll(SearchResults other);
+	
+	/**
+	 * Creates a new, empty container of the same type and with the same
+	 * parameters (k, radius) as this one.
+	 * @return The new container.
+	 */
+	public SearchResults emptyCopy();
 }
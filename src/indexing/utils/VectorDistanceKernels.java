@@ -0,0 +1,259 @@
+package indexing.utils;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD implementation of the distance kernels, based on the incubator
+ * Vector API (module jdk.incubator.vector).
+ *
+ * This class must only be accessed through DistanceKernels, which falls back
+ * to scalar code when the module is not available at runtime.
+ */
+final class VectorDistanceKernels {
+
+	/**
+	 * Widest vector shape supported by the platform.
+	 */
+	private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+	/**
+	 * Number of float lanes in a vector.
+	 */
+	private static final int LANES = SPECIES.length();
+
+	private VectorDistanceKernels() {}
+
+	/**
+	 * Checks whether vectorized kernels are worth using on this platform.
+	 * @return True if the platform offers at least 4 float lanes.
+	 */
+	static boolean isSupported() {
+		return LANES >= 4;
+	}
+
+	/**
+	 * Squared L2 distance for vectors whose dimension is a multiple of
+	 * 2 * LANES (e.g. 128-d SIFT descriptors). Uses two accumulators.
+	 * @param a Array containing the first vector.
+	 * @param aOffset Position of the first vector in a.
+	 * @param b Array containing the second vector.
+	 * @param bOffset Position of the second vector in b.
+	 * @param dim Dimension of the vectors.
+	 * @return The squared L2 distance between the vectors.
+	 */
+	static float squaredL2Short(float[] a, int aOffset, float[] b, int bOffset, int dim) {
+		FloatVector acc0 = FloatVector.zero(SPECIES);
+		FloatVector acc1 = FloatVector.zero(SPECIES);
+
+		for( int i = 0 ; i < dim ; i += 2 * LANES ) {
+			FloatVector d0 = FloatVector.fromArray(SPECIES, a, aOffset + i).sub(FloatVector.fromArray(SPECIES, b, bOffset + i));
+			FloatVector d1 = FloatVector.fromArray(SPECIES, a, aOffset + i + LANES).sub(FloatVector.fromArray(SPECIES, b, bOffset + i + LANES));
+			acc0 = d0.fma(d0, acc0);
+			acc1 = d1.fma(d1, acc1);
+		}
+
+		return acc0.add(acc1).reduceLanes(VectorOperators.ADD);
+	}
+
+	/**
+	 * Squared L2 distance for long vectors whose dimension is a multiple of
+	 * 4 * LANES (e.g. 4096-d color histograms). Uses four accumulators to
+	 * hide the latency of the fused multiply-adds.
+	 * @param a Array containing the first vector.
+	 * @param aOffset Position of the first vector in a.
+	 * @param b Array containing the second vector.
+	 * @param bOffset Position of the second vector in b.
+	 * @param dim Dimension of the vectors.
+	 * @return The squared L2 distance between the vectors.
+	 */
+	static float squaredL2Long(float[] a, int aOffset, float[] b, int bOffset, int dim) {
+		FloatVector acc0 = FloatVector.zero(SPECIES);
+		FloatVector acc1 = FloatVector.zero(SPECIES);
+		FloatVector acc2 = FloatVector.zero(SPECIES);
+		FloatVector acc3 = FloatVector.zero(SPECIES);
+
+		for( int i = 0 ; i < dim ; i += 4 * LANES ) {
+			FloatVector d0 = FloatVector.fromArray(SPECIES, a, aOffset + i).sub(FloatVector.fromArray(SPECIES, b, bOffset + i));
+			FloatVector d1 = FloatVector.fromArray(SPECIES, a, aOffset + i + LANES).sub(FloatVector.fromArray(SPECIES, b, bOffset + i + LANES));
+			FloatVector d2 = FloatVector.fromArray(SPECIES, a, aOffset + i + 2 * LANES).sub(FloatVector.fromArray(SPECIES, b, bOffset + i + 2 * LANES));
+			FloatVector d3 = FloatVector.fromArray(SPECIES, a, aOffset + i + 3 * LANES).sub(FloatVector.fromArray(SPECIES, b, bOffset + i + 3 * LANES));
+			acc0 = d0.fma(d0, acc0);
+			acc1 = d1.fma(d1, acc1);
+			acc2 = d2.fma(d2, acc2);
+			acc3 = d3.fma(d3, acc3);
+		}
+
+		return acc0.add(acc1).add(acc2.add(acc3)).reduceLanes(VectorOperators.ADD);
+	}
+
+	/**
+	 * Squared L2 distance for vectors of any dimension.
+	 * @param a Array containing the first vector.
+	 * @param aOffset Position of the first vector in a.
+	 * @param b Array containing the second vector.
+	 * @param bOffset Position of the second vector in b.
+	 * @param dim Dimension of the vectors.
+	 * @return The squared L2 distance between the vectors.
+	 */
+	static float squaredL2(float[] a, int aOffset, float[] b, int bOffset, int dim) {
+		FloatVector acc = FloatVector.zero(SPECIES);
+		int bound = SPECIES.loopBound(dim);
+		int i = 0;
+
+		for( ; i < bound ; i += LANES ) {
+			FloatVector d = FloatVector.fromArray(SPECIES, a, aOffset + i).sub(FloatVector.fromArray(SPECIES, b, bOffset + i));
+			acc = d.fma(d, acc);
+		}
+		float sum = acc.reduceLanes(VectorOperators.ADD);
+		for( ; i < dim ; i++ ) {
+			float d = a[aOffset + i] - b[bOffset + i];
+			sum += d * d;
+		}
+
+		return sum;
+	}
+
+	/**
+	 * Squared L2 distance computed by chunks of at least CHECK_INTERVAL
+	 * dimensions, stopping as soon as the partial sum exceeds a bound.
+	 * @param a Array containing the first vector.
+	 * @param aOffset Position of the first vector in a.
+	 * @param b Array containing the second vector.
+	 * @param bOffset Position of the second vector in b.
+	 * @param dim Dimension of the vectors.
+	 * @param squaredBound Bound on the squared distance.
+	 * @return The squared L2 distance between the vectors if it is at most
+	 * squaredBound, a partial sum greater than squaredBound otherwise.
+	 */
+	static float squaredL2Bounded(float[] a, int aOffset, float[] b, int bOffset, int dim, float squaredBound) {
+		int step = LANES * Math.max(1, DistanceKernels.CHECK_INTERVAL / LANES);
+		int bound = SPECIES.loopBound(dim);
+		float sum = 0f;
+		int i = 0;
+
+		while( i < bound ) {
+			int end = Math.min(i + step, bound);
+			FloatVector acc = FloatVector.zero(SPECIES);
+			for( ; i < end ; i += LANES ) {
+				FloatVector d = FloatVector.fromArray(SPECIES, a, aOffset + i).sub(FloatVector.fromArray(SPECIES, b, bOffset + i));
+				acc = d.fma(d, acc);
+			}
+			sum += acc.reduceLanes(VectorOperators.ADD);
+			if( sum > squaredBound ) {
+				return sum;
+			}
+		}
+		for( ; i < dim ; i++ ) {
+			float d = a[aOffset + i] - b[bOffset + i];
+			sum += d * d;
+		}
+
+		return sum;
+	}
+
+	/**
+	 * Dot product of two vectors of any dimension.
+	 * @param a Array containing the first vector.
+	 * @param aOffset Position of the first vector in a.
+	 * @param b Array containing the second vector.
+	 * @param bOffset Position of the second vector in b.
+	 * @param dim Dimension of the vectors.
+	 * @return The dot product of the vectors.
+	 */
+	static float dot(float[] a, int aOffset, float[] b, int bOffset, int dim) {
+		FloatVector acc = FloatVector.zero(SPECIES);
+		int bound = SPECIES.loopBound(dim);
+		int i = 0;
+
+		for( ; i < bound ; i += LANES ) {
+			acc = FloatVector.fromArray(SPECIES, a, aOffset + i).fma(FloatVector.fromArray(SPECIES, b, bOffset + i), acc);
+		}
+		float sum = acc.reduceLanes(VectorOperators.ADD);
+		for( ; i < dim ; i++ ) {
+			sum += a[aOffset + i] * b[bOffset + i];
+		}
+
+		return sum;
+	}
+
+	/**
+	 * Computes the dot products between a block of rows of a and a block of
+	 * rows of b (a * b^T). Four rows of a are processed at once so that each
+	 * loaded chunk of b is reused four times.
+	 * @param a Array containing the rows of the first matrix.
+	 * @param aRow First row of the block of a.
+	 * @param aRows Number of rows in the block of a.
+	 * @param b Array containing the rows of the second matrix.
+	 * @param bRow First row of the block of b.
+	 * @param bRows Number of rows in the block of b.
+	 * @param dim Dimension of the rows.
+	 * @param out Output array. The dot product of rows aRow+i and bRow+j is
+	 * written at i*bRows+j.
+	 */
+	static void dotBlock(float[] a, int aRow, int aRows, float[] b, int bRow, int bRows, int dim, float[] out) {
+		int bound = SPECIES.loopBound(dim);
+		int i = 0;
+
+		for( ; i + 3 < aRows ; i += 4 ) {
+			int a0 = (aRow + i) * dim;
+			int a1 = a0 + dim;
+			int a2 = a1 + dim;
+			int a3 = a2 + dim;
+			for( int j = 0 ; j < bRows ; j++ ) {
+				int b0 = (bRow + j) * dim;
+				FloatVector s0 = FloatVector.zero(SPECIES);
+				FloatVector s1 = FloatVector.zero(SPECIES);
+				FloatVector s2 = FloatVector.zero(SPECIES);
+				FloatVector s3 = FloatVector.zero(SPECIES);
+				int d = 0;
+				for( ; d < bound ; d += LANES ) {
+					FloatVector bv = FloatVector.fromArray(SPECIES, b, b0 + d);
+					s0 = FloatVector.fromArray(SPECIES, a, a0 + d).fma(bv, s0);
+					s1 = FloatVector.fromArray(SPECIES, a, a1 + d).fma(bv, s1);
+					s2 = FloatVector.fromArray(SPECIES, a, a2 + d).fma(bv, s2);
+					s3 = FloatVector.fromArray(SPECIES, a, a3 + d).fma(bv, s3);
+				}
+				float r0 = s0.reduceLanes(VectorOperators.ADD);
+				float r1 = s1.reduceLanes(VectorOperators.ADD);
+				float r2 = s2.reduceLanes(VectorOperators.ADD);
+				float r3 = s3.reduceLanes(VectorOperators.ADD);
+				for( ; d < dim ; d++ ) {
+					float bv = b[b0 + d];
+					r0 += a[a0 + d] * bv;
+					r1 += a[a1 + d] * bv;
+					r2 += a[a2 + d] * bv;
+					r3 += a[a3 + d] * bv;
+				}
+				out[i * bRows + j] = r0;
+				out[(i + 1) * bRows + j] = r1;
+				out[(i + 2) * bRows + j] = r2;
+				out[(i + 3) * bRows + j] = r3;
+			}
+		}
+		for( ; i < aRows ; i++ ) {
+			for( int j = 0 ; j < bRows ; j++ ) {
+				out[i * bRows + j] = dot(a, (aRow + i) * dim, b, (bRow + j) * dim, dim);
+			}
+		}
+	}
+
+	/**
+	 * Checks whether the dimension can use the two-accumulator kernel.
+	 * @param dim Dimension of the vectors.
+	 * @return True if squaredL2Short() can be used for this dimension.
+	 */
+	static boolean fitsShort(int dim) {
+		return dim % (2 * LANES) == 0;
+	}
+
+	/**
+	 * Checks whether the dimension can use the four-accumulator kernel.
+	 * @param dim Dimension of the vectors.
+	 * @return True if squaredL2Long() can be used for this dimension.
+	 */
+	static boolean fitsLong(int dim) {
+		return dim % (4 * LANES) == 0;
+	}
+}
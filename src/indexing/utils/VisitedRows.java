@@ -0,0 +1,68 @@
+package indexing.utils;
+
+import java.util.Arrays;
+
+/**
+ * Epoch-stamped set of visited rows of a DescriptorStore.
+ *
+ * Each row has a stamp, and a row is visited for the current query if its
+ * stamp equals the current epoch. Starting a new query only increments the
+ * epoch, so that marking and testing a row are O(1) and the set is reused
+ * from one query to the next without being cleared or reallocated.
+ * An instance must only be used by one thread at a time.
+ */
+public class VisitedRows {
+
+	/**
+	 * Epoch at which each row was last visited.
+	 */
+	private int[] stamps;
+
+	/**
+	 * Epoch of the current query.
+	 */
+	private int epoch;
+
+	/**
+	 * Creates a set for given number of rows. No row is visited.
+	 * @param size Number of rows.
+	 */
+	public VisitedRows(int size) {
+		this.stamps = new int[size];
+		this.epoch = 1;
+	}
+
+	/**
+	 * Starts a new query: all rows become unvisited.
+	 */
+	public void clear() {
+		this.epoch++;
+		if( this.epoch == 0 ) { // stamps wrapped around
+			Arrays.fill(this.stamps, 0);
+			this.epoch = 1;
+		}
+	}
+
+	/**
+	 * Marks a row as visited.
+	 * @param row The row.
+	 * @return True if the row was not visited yet for the current query,
+	 * false otherwise.
+	 */
+	public boolean visit(int row) {
+		if( this.stamps[row] == this.epoch ) {
+			return false;
+		}
+		this.stamps[row] = this.epoch;
+		return true;
+	}
+
+	/**
+	 * Checks whether a row was visited for the current query.
+	 * @param row The row.
+	 * @return True if the row was visited.
+	 */
+	public boolean isVisited(int row) {
+		return this.stamps[row] == this.epoch;
+	}
+}